@@ -0,0 +1,70 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+/**
+ * Phase timings and payload sizes of one HTTP call to SourcePoint, retries and hedged requests
+ * being calls of their own. Durations are in milliseconds, -1 for a phase that didn't happen,
+ * e.g. dns, connect and tls when the call reused a pooled connection.
+ */
+public class CallTimings {
+
+    public enum Phase {
+        /** name resolution */
+        DNS,
+        /** TCP connect, TLS excluded */
+        CONNECT,
+        /** TLS handshake */
+        TLS,
+        /** writing the request headers and body */
+        REQUEST,
+        /** from the request being written to the first byte of the response, i.e. server time plus one round trip */
+        TTFB,
+        /** reading the response body */
+        BODY,
+        /** the whole call */
+        TOTAL
+    }
+
+    public final String url;
+    public final long dnsMs, connectMs, tlsMs, requestMs, ttfbMs, bodyMs, totalMs;
+    /** request and response body bytes as they went over the wire, i.e. compressed if they were */
+    public final long requestBytes, responseBytes;
+    public final boolean reusedConnection;
+    /** null if the call succeeded */
+    public final String error;
+
+    CallTimings(String url, long dnsMs, long connectMs, long tlsMs, long requestMs, long ttfbMs, long bodyMs, long totalMs,
+                long requestBytes, long responseBytes, boolean reusedConnection, String error) {
+        this.url = url;
+        this.dnsMs = dnsMs;
+        this.connectMs = connectMs;
+        this.tlsMs = tlsMs;
+        this.requestMs = requestMs;
+        this.ttfbMs = ttfbMs;
+        this.bodyMs = bodyMs;
+        this.totalMs = totalMs;
+        this.requestBytes = requestBytes;
+        this.responseBytes = responseBytes;
+        this.reusedConnection = reusedConnection;
+        this.error = error;
+    }
+
+    public long get(Phase phase) {
+        switch (phase) {
+            case DNS: return dnsMs;
+            case CONNECT: return connectMs;
+            case TLS: return tlsMs;
+            case REQUEST: return requestMs;
+            case TTFB: return ttfbMs;
+            case BODY: return bodyMs;
+            default: return totalMs;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CallTimings{" + url + " dns=" + dnsMs + " connect=" + connectMs + " tls=" + tlsMs
+                + " request=" + requestMs + " ttfb=" + ttfbMs + " body=" + bodyMs + " total=" + totalMs
+                + " requestBytes=" + requestBytes + " responseBytes=" + responseBytes
+                + (reusedConnection ? " reused" : "") + (error != null ? " error=" + error : "") + "}";
+    }
+}
@@ -0,0 +1,56 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.util.Log;
+
+/**
+ * Calls onConnected on the main thread every time the device gets a network back, from start() until stop().
+ * It listens to CONNECTIVITY_ACTION on the application context, NetworkCallback isn't there before API 21.
+ */
+class ConnectivityWatcher extends BroadcastReceiver {
+    private static final String TAG = "ConnectivityWatcher";
+
+    private final Context context;
+    private final Runnable onConnected;
+    private boolean registered;
+
+    /**
+     * @param context - the application context, null disables watching
+     */
+    ConnectivityWatcher(Context context, Runnable onConnected) {
+        this.context = context;
+        this.onConnected = onConnected;
+    }
+
+    synchronized void start() {
+        if (registered || context == null) return;
+        context.registerReceiver(this, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        registered = true;
+        Log.d(TAG, "Waiting for the connection to come back");
+    }
+
+    synchronized void stop() {
+        if (!registered) return;
+        registered = false;
+        try {
+            context.unregisterReceiver(this);
+        } catch (IllegalArgumentException e) {
+            Log.d(TAG, "Receiver was already unregistered: " + e.getMessage());
+        }
+    }
+
+    synchronized boolean isWatching() {
+        return registered;
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        // the sticky broadcast delivered on registering only tells the state we already know
+        if (isInitialStickyBroadcast() || intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) return;
+        if (isWatching()) onConnected.run();
+    }
+}
@@ -0,0 +1,147 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.UUID;
+import java.util.WeakHashMap;
+
+/**
+ * Consent actions the user took while offline, persisted through StoreClient until they can be sent.
+ * Each action is stored as the params of its consent request together with its own requestUUID, so
+ * replaying it after a lost response can be recognized as a duplicate. A newer action for the same
+ * consent uuid supersedes the queued one, only the user's last choice is ever sent. GDPRConsentLib sends
+ * them one request each, the endpoint has no batch form, before loading a message and whenever the
+ * connection comes back.
+ * Every ConsentActionQueue over the same SharedPreferences works on one in-memory queue, so two libs
+ * enqueuing or removing actions at the same time don't overwrite each other's changes.
+ */
+class ConsentActionQueue {
+    private static final String TAG = "ConsentActionQueue";
+
+    private static final String PERSISTENCE_KEY = "pendingConsentActions";
+
+    private static final WeakHashMap<SharedPreferences, Pending> shared = new WeakHashMap<>();
+
+    private final StoreClient storeClient;
+    private final PersistenceQueue persistence;
+    private final Pending pending;
+
+    private static class Pending {
+        // the queue as last written, it's persisted in the background
+        JSONArray queue;
+    }
+
+    ConsentActionQueue(StoreClient storeClient, PersistenceQueue persistence) {
+        this.storeClient = storeClient;
+        this.persistence = persistence;
+        this.pending = pending(storeClient.preferences());
+    }
+
+    private static Pending pending(SharedPreferences preferences) {
+        synchronized (shared) {
+            Pending pending = shared.get(preferences);
+            if (pending == null) {
+                pending = new Pending();
+                shared.put(preferences, pending);
+            }
+            return pending;
+        }
+    }
+
+    void enqueue(JSONObject params) throws ConsentLibException {
+        try {
+            if (!params.has("requestUUID")) params.put("requestUUID", UUID.randomUUID().toString());
+            String uuid = params.optString("uuid", "");
+            synchronized (pending) {
+                JSONArray queue = read();
+                JSONArray updated = new JSONArray();
+                for (int i = 0; i < queue.length(); i++) {
+                    JSONObject queued = queue.getJSONObject(i);
+                    if (uuid.equals(queued.optString("uuid", ""))) {
+                        Log.d(TAG, "Dropping queued action superseded by a newer one for uuid " + uuid);
+                        continue;
+                    }
+                    updated.put(queued);
+                }
+                updated.put(params);
+                write(updated);
+            }
+        } catch (JSONException e) {
+            throw new ConsentLibException(e, "Error trying to queue consent action.");
+        }
+    }
+
+    /**
+     * @return the params of the oldest queued action or null if there is none
+     */
+    JSONObject peek() {
+        synchronized (pending) {
+            JSONArray queue = read();
+            return queue.length() > 0 ? queue.optJSONObject(0) : null;
+        }
+    }
+
+    void remove(JSONObject params) {
+        String requestUUID = params.optString("requestUUID");
+        synchronized (pending) {
+            JSONArray queue = read();
+            JSONArray updated = new JSONArray();
+            for (int i = 0; i < queue.length(); i++) {
+                JSONObject queued = queue.optJSONObject(i);
+                if (queued != null && !requestUUID.equals(queued.optString("requestUUID"))) updated.put(queued);
+            }
+            write(updated);
+        }
+    }
+
+    boolean isEmpty() {
+        synchronized (pending) {
+            return read().length() == 0;
+        }
+    }
+
+    int size() {
+        synchronized (pending) {
+            return read().length();
+        }
+    }
+
+    /**
+     * Drops the in-memory queue so it's read again from StoreClient. Meant to be called on the writer
+     * thread right after something other than this class replaced the stored queue (e.g. a user switch).
+     */
+    void reload() {
+        synchronized (pending) {
+            pending.queue = null;
+        }
+    }
+
+    private JSONArray read() {
+        if (pending.queue == null) pending.queue = load();
+        return pending.queue;
+    }
+
+    private JSONArray load() {
+        String stored = storeClient.getPendingConsentActions();
+        if (stored == null) return new JSONArray();
+        try {
+            return new JSONArray(stored);
+        } catch (JSONException e) {
+            Log.d(TAG, "Dropping unreadable consent action queue: " + e.getMessage());
+            write(new JSONArray());
+            return new JSONArray();
+        }
+    }
+
+    // only the latest state of the queue needs to reach the disk
+    private void write(JSONArray updated) {
+        pending.queue = updated;
+        String pendingActions = updated.length() > 0 ? updated.toString() : null;
+        persistence.submit(PERSISTENCE_KEY, () -> storeClient.setPendingConsentActions(pendingActions));
+    }
+}
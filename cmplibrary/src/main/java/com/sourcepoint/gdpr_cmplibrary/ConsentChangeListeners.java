@@ -0,0 +1,83 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Listeners of consent changes, each scoped to any change, to a vendor or to a purpose.
+ * The consent is diffed against the one of the previous dispatch, or the one current when the first
+ * listener was added, so a listener only hears about what changed since it could last act on it.
+ */
+class ConsentChangeListeners {
+
+    private static final int ANY = 0, VENDOR = 1, PURPOSE = 2;
+
+    private final CopyOnWriteArrayList<Registration> registrations = new CopyOnWriteArrayList<>();
+
+    private ConsentSnapshot baseline;
+
+    void addForAny(GDPRConsentLib.OnConsentChangedCallback callback, ConsentSnapshot current) {
+        add(new Registration(ANY, null, callback), current);
+    }
+
+    void addForVendor(String vendorId, GDPRConsentLib.OnConsentChangedCallback callback, ConsentSnapshot current) {
+        add(new Registration(VENDOR, vendorId, callback), current);
+    }
+
+    void addForPurpose(String purposeId, GDPRConsentLib.OnConsentChangedCallback callback, ConsentSnapshot current) {
+        add(new Registration(PURPOSE, purposeId, callback), current);
+    }
+
+    private synchronized void add(Registration registration, ConsentSnapshot current) {
+        if (baseline == null) baseline = current;
+        registrations.add(registration);
+    }
+
+    /**
+     * @return true if the callback was registered, under any scope
+     */
+    boolean remove(GDPRConsentLib.OnConsentChangedCallback callback) {
+        boolean removed = false;
+        for (Registration registration : registrations) {
+            if (registration.callback == callback) removed |= registrations.remove(registration);
+        }
+        return removed;
+    }
+
+    /**
+     * Calls the listeners the change from the previous consent to this one affects.
+     * @return the diff, null if no listener was ever added
+     */
+    ConsentDiff dispatch(ConsentSnapshot current) {
+        ConsentDiff diff;
+        synchronized (this) {
+            if (baseline == null) return null;
+            diff = ConsentDiff.between(baseline, current);
+            baseline = current;
+        }
+        if (diff.isEmpty()) return diff;
+        for (Registration registration : registrations) {
+            if (registration.isAffectedBy(diff)) registration.callback.run(diff);
+        }
+        return diff;
+    }
+
+    private static class Registration {
+        final int scope;
+        final String id;
+        final GDPRConsentLib.OnConsentChangedCallback callback;
+
+        Registration(int scope, String id, GDPRConsentLib.OnConsentChangedCallback callback) {
+            this.scope = scope;
+            this.id = id;
+            this.callback = callback;
+        }
+
+        boolean isAffectedBy(ConsentDiff diff) {
+            switch (scope) {
+                case VENDOR: return diff.affectsVendor(id);
+                case PURPOSE: return diff.affectsPurpose(id);
+                default: return true;
+            }
+        }
+    }
+}
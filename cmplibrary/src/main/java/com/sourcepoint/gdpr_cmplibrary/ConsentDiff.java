@@ -0,0 +1,159 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What changed from one consent to the next, so that only the vendor SDKs a change affects need to
+ * be restarted: vendors added and removed, vendors whose grant or purpose grants changed, purposes
+ * that changed for any vendor or in the accepted and legitimate interest categories, and TC data keys.
+ * Purposes and vendors are the ids of the userConsent JSON.
+ */
+public final class ConsentDiff {
+
+    private final ConsentSnapshot previous, current;
+    private final Set<String> addedVendors, removedVendors, changedVendors, changedPurposes, changedSpecialFeatures;
+    private final Map<String, Set<String>> changedVendorPurposes;
+    private final TCDataDelta tcDataDelta;
+    private final boolean consentStringChanged;
+
+    private ConsentDiff(ConsentSnapshot previous, ConsentSnapshot current) {
+        this.previous = previous;
+        this.current = current;
+        Set<String> added = new HashSet<>(), removed = new HashSet<>(), purposes = new HashSet<>();
+        Map<String, Set<String>> vendorPurposes = new HashMap<>();
+        Set<String> vendors = new HashSet<>(previous.vendorIds());
+        vendors.addAll(current.vendorIds());
+        for (String vendor : vendors) {
+            Map<String, Boolean> before = previous.getPurposeGrants(vendor), after = current.getPurposeGrants(vendor);
+            boolean wasKnown = previous.vendorIds().contains(vendor), isKnown = current.vendorIds().contains(vendor);
+            if (!wasKnown) added.add(vendor);
+            if (!isKnown) removed.add(vendor);
+            Set<String> changed = changedKeys(before, after);
+            if (!changed.isEmpty() || wasKnown != isKnown || previous.isVendorGranted(vendor) != current.isVendorGranted(vendor)) {
+                vendorPurposes.put(vendor, Collections.unmodifiableSet(changed));
+                purposes.addAll(changed);
+            }
+        }
+        purposes.addAll(symmetricDifference(previous.getAcceptedCategories(), current.getAcceptedCategories()));
+        purposes.addAll(symmetricDifference(previous.getLegIntCategories(), current.getLegIntCategories()));
+        addedVendors = Collections.unmodifiableSet(added);
+        removedVendors = Collections.unmodifiableSet(removed);
+        changedVendors = Collections.unmodifiableSet(vendorPurposes.keySet());
+        changedVendorPurposes = vendorPurposes;
+        changedPurposes = Collections.unmodifiableSet(purposes);
+        changedSpecialFeatures = Collections.unmodifiableSet(symmetricDifference(previous.getSpecialFeatures(), current.getSpecialFeatures()));
+        tcDataDelta = TCDataDelta.between(previous.getTCData(), current.getTCData());
+        String consentString = previous.getConsentString();
+        consentStringChanged = consentString == null ? current.getConsentString() != null : !consentString.equals(current.getConsentString());
+    }
+
+    static ConsentDiff between(ConsentSnapshot previous, ConsentSnapshot current) {
+        return new ConsentDiff(previous, current);
+    }
+
+    // purposes granted on one side only, a purpose missing on one side counts as not granted
+    private static Set<String> changedKeys(Map<String, Boolean> before, Map<String, Boolean> after) {
+        Set<String> changed = new HashSet<>();
+        Set<String> purposes = new HashSet<>(before.keySet());
+        purposes.addAll(after.keySet());
+        for (String purpose : purposes) {
+            if (Boolean.TRUE.equals(before.get(purpose)) != Boolean.TRUE.equals(after.get(purpose))) changed.add(purpose);
+        }
+        return changed;
+    }
+
+    private static Set<String> symmetricDifference(List<String> before, List<String> after) {
+        Set<String> difference = new HashSet<>(before);
+        difference.addAll(after);
+        Set<String> common = new HashSet<>(before);
+        common.retainAll(after);
+        difference.removeAll(common);
+        return difference;
+    }
+
+    public ConsentSnapshot getPrevious() {
+        return previous;
+    }
+
+    public ConsentSnapshot getCurrent() {
+        return current;
+    }
+
+    /**
+     * @return true if nothing a vendor could depend on changed
+     */
+    public boolean isEmpty() {
+        return changedVendors.isEmpty() && changedPurposes.isEmpty() && changedSpecialFeatures.isEmpty()
+                && tcDataDelta.isEmpty() && !consentStringChanged;
+    }
+
+    public Set<String> getAddedVendors() {
+        return addedVendors;
+    }
+
+    public Set<String> getRemovedVendors() {
+        return removedVendors;
+    }
+
+    /**
+     * @return vendors added, removed or whose vendor grant or purpose grants changed
+     */
+    public Set<String> getChangedVendors() {
+        return changedVendors;
+    }
+
+    /**
+     * @return purposes whose grant to the vendor changed, empty if there are none or only its vendor grant changed
+     */
+    public Set<String> getChangedPurposes(String vendorId) {
+        Set<String> purposes = changedVendorPurposes.get(vendorId);
+        return purposes != null ? purposes : Collections.<String>emptySet();
+    }
+
+    /**
+     * @return purposes whose grant changed for any vendor or that were accepted or rejected as a category
+     */
+    public Set<String> getChangedPurposes() {
+        return changedPurposes;
+    }
+
+    public Set<String> getChangedSpecialFeatures() {
+        return changedSpecialFeatures;
+    }
+
+    public Set<String> getAddedTCDataKeys() {
+        return tcDataDelta.added;
+    }
+
+    public Set<String> getChangedTCDataKeys() {
+        return tcDataDelta.changed;
+    }
+
+    public Set<String> getRemovedTCDataKeys() {
+        return tcDataDelta.removed;
+    }
+
+    public boolean isConsentStringChanged() {
+        return consentStringChanged;
+    }
+
+    public boolean affectsVendor(String vendorId) {
+        return changedVendors.contains(vendorId);
+    }
+
+    public boolean affectsPurpose(String purposeId) {
+        return changedPurposes.contains(purposeId);
+    }
+
+    @Override
+    public String toString() {
+        if (isEmpty()) return "unchanged";
+        return "vendors added " + addedVendors + ", removed " + removedVendors + ", changed " + changedVendors
+                + ", purposes changed " + changedPurposes + ", TC data " + tcDataDelta;
+    }
+}
@@ -0,0 +1,409 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the GDPRUserConsent in a file of its own, in a compact binary format, instead of a JSON
+ * string in the host app's SharedPreferences, which are read whole at startup and rewritten on every commit.
+ *
+ * Format version 1, every count, index and length is an unsigned LEB128 varint:
+ *   "SPUC", format version (1 byte), payload length, payload, CRC32 of the payload (4 bytes, big endian)
+ *   payload:
+ *     string table: count, then each distinct string as (byte length << 1 | packed) followed by its bytes.
+ *       Lowercase hex strings of even length, like the vendor and purpose ids, are packed two chars per byte.
+ *     uuid, consentString: table indexes
+ *     acceptedVendors, acceptedCategories, specialFeatures, legIntCategories: count, table indexes
+ *     grants: count, then per vendor its index, its purpose count and indexes and a bitset of
+ *       purposes + 1 bits, bit 0 being the vendor grant
+ *     TCData: count, then per entry its key index, a type tag and the value
+ * Readers ignore anything following the sections they know, so sections can be appended without a
+ * version bump. FORMAT_VERSION changes only for incompatible layouts, which older readers refuse.
+ */
+class ConsentFile {
+
+    private static final String TAG = "ConsentFile";
+
+    static final String NAME = "sp_gdpr_user_consent";
+
+    static final int FORMAT_VERSION = 1;
+
+    private static final byte[] MAGIC = {'S', 'P', 'U', 'C'};
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int TC_INT = 0, TC_LONG = 1, TC_DOUBLE = 2, TC_FALSE = 3, TC_TRUE = 4, TC_STRING = 5, TC_JSON = 6;
+
+    private final File file;
+
+    ConsentFile(File file) {
+        this.file = file;
+    }
+
+    boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * @return the stored consent or null if there is none
+     * @throws ConsentLibException if the file can't be read or is corrupt
+     */
+    synchronized GDPRUserConsent read() throws ConsentLibException {
+        if (!file.exists()) return null;
+        try {
+            return decode(readFully(file));
+        } catch (IOException e) {
+            throw new ConsentLibException(e, "Error reading the user consent file");
+        }
+    }
+
+    /**
+     * Replaces the file atomically: the bytes go to a temporary file that is then renamed over it.
+     * @return false if the consent couldn't be written, the previous file is left untouched
+     */
+    synchronized boolean write(byte[] encoded) {
+        try {
+            replace(file, encoded);
+            return true;
+        } catch (IOException e) {
+            Log.d(TAG, "Failed to write the user consent file: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Writes the bytes to a temporary file, syncs it and renames it over the file so readers never see half of it
+    static void replace(File file, byte[] bytes) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) throw new IOException("could not create " + dir);
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(bytes);
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) throw new IOException("could not rename " + tmp);
+        } catch (IOException e) {
+            closeQuietly(out);
+            tmp.delete();
+            throw e;
+        }
+    }
+
+    static byte[] readFully(File file) throws IOException {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[4096];
+            for (int read; (read = in.read(buffer)) != -1; ) bytes.write(buffer, 0, read);
+            return bytes.toByteArray();
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    synchronized void delete() {
+        file.delete();
+    }
+
+    static byte[] encode(GDPRUserConsent userConsent) throws ConsentLibException {
+        StringTable strings = new StringTable();
+        Output payload = new Output();
+        payload.varint(strings.index(userConsent.uuid));
+        payload.varint(strings.index(userConsent.consentString));
+        for (List<String> list : lists(userConsent)) {
+            payload.varint(list.size());
+            for (String value : list) payload.varint(strings.index(value));
+        }
+
+        payload.varint(userConsent.vendorGrants.size());
+        for (Map.Entry<String, GDPRUserConsent.VendorGrants.VendorGrant> vendor : userConsent.vendorGrants.entrySet()) {
+            GDPRUserConsent.VendorGrants.VendorGrant grant = vendor.getValue();
+            payload.varint(strings.index(vendor.getKey()));
+            payload.varint(grant.purposeGrants.size());
+            byte[] bits = new byte[(grant.purposeGrants.size() + 8) / 8];
+            if (grant.vendorGrant) bits[0] |= 1;
+            int bit = 1;
+            for (Map.Entry<String, Boolean> purpose : grant.purposeGrants.entrySet()) {
+                payload.varint(strings.index(purpose.getKey()));
+                if (Boolean.TRUE.equals(purpose.getValue())) bits[bit / 8] |= 1 << (bit % 8);
+                bit++;
+            }
+            payload.write(bits, 0, bits.length);
+        }
+
+        Map<?, ?> tcData = userConsent.TCData;
+        payload.varint(tcData.size());
+        for (Map.Entry<?, ?> entry : tcData.entrySet()) {
+            payload.varint(strings.index(String.valueOf(entry.getKey())));
+            Object value = entry.getValue();
+            if (value instanceof Integer) {
+                payload.write(TC_INT);
+                payload.varint(zigzag((Integer) value));
+            } else if (value instanceof Long) {
+                payload.write(TC_LONG);
+                payload.varint(zigzag((Long) value));
+            } else if (value instanceof Double) {
+                payload.write(TC_DOUBLE);
+                payload.fixed64(Double.doubleToLongBits((Double) value));
+            } else if (value instanceof Boolean) {
+                payload.write((Boolean) value ? TC_TRUE : TC_FALSE);
+            } else if (value instanceof String) {
+                payload.write(TC_STRING);
+                payload.varint(strings.index((String) value));
+            } else {
+                payload.write(TC_JSON);
+                payload.varint(strings.index(json(value)));
+            }
+        }
+
+        Output table = new Output();
+        table.varint(strings.size());
+        for (String value : strings.values()) table.string(value);
+
+        CRC32 crc = new CRC32();
+        crc.update(table.buffer(), 0, table.size());
+        crc.update(payload.buffer(), 0, payload.size());
+        Output file = new Output();
+        file.write(MAGIC, 0, MAGIC.length);
+        file.write(FORMAT_VERSION);
+        file.varint(table.size() + payload.size());
+        file.write(table.buffer(), 0, table.size());
+        file.write(payload.buffer(), 0, payload.size());
+        file.fixed32(crc.getValue());
+        return file.toByteArray();
+    }
+
+    static GDPRUserConsent decode(byte[] bytes) throws ConsentLibException {
+        try {
+            Input in = new Input(bytes);
+            for (byte b : MAGIC) if (in.read() != b) throw new ConsentLibException("Not a user consent file");
+            int version = in.read();
+            if (version != FORMAT_VERSION) throw new ConsentLibException("Unsupported user consent file version " + version);
+            int length = (int) in.varint();
+            int start = in.pos;
+            CRC32 crc = new CRC32();
+            crc.update(bytes, start, length);
+            in.pos = start + length;
+            if (in.fixed32() != crc.getValue()) throw new ConsentLibException("User consent file checksum mismatch");
+            in.pos = start;
+
+            String[] strings = new String[(int) in.varint()];
+            for (int i = 0; i < strings.length; i++) strings[i] = in.string();
+
+            GDPRUserConsent userConsent = new GDPRUserConsent();
+            userConsent.uuid = strings[(int) in.varint()];
+            userConsent.consentString = strings[(int) in.varint()];
+            for (List<String> list : lists(userConsent)) {
+                int count = (int) in.varint();
+                for (int i = 0; i < count; i++) list.add(strings[(int) in.varint()]);
+            }
+
+            int vendors = (int) in.varint();
+            for (int v = 0; v < vendors; v++) {
+                String vendorId = strings[(int) in.varint()];
+                String[] purposes = new String[(int) in.varint()];
+                for (int p = 0; p < purposes.length; p++) purposes[p] = strings[(int) in.varint()];
+                byte[] bits = in.bytes((purposes.length + 8) / 8);
+                HashMap<String, Boolean> purposeGrants = new HashMap<>();
+                for (int p = 0; p < purposes.length; p++) purposeGrants.put(purposes[p], (bits[(p + 1) / 8] & (1 << ((p + 1) % 8))) != 0);
+                userConsent.vendorGrants.put(vendorId, userConsent.vendorGrants.new VendorGrant((bits[0] & 1) != 0, purposeGrants));
+            }
+
+            int tcDataSize = (int) in.varint();
+            HashMap<String, Object> tcData = new HashMap<>();
+            for (int i = 0; i < tcDataSize; i++) {
+                String key = strings[(int) in.varint()];
+                int type = in.read();
+                switch (type) {
+                    case TC_INT: tcData.put(key, (int) unzigzag(in.varint())); break;
+                    case TC_LONG: tcData.put(key, unzigzag(in.varint())); break;
+                    case TC_DOUBLE: tcData.put(key, Double.longBitsToDouble(in.fixed64())); break;
+                    case TC_FALSE: tcData.put(key, false); break;
+                    case TC_TRUE: tcData.put(key, true); break;
+                    case TC_STRING: tcData.put(key, strings[(int) in.varint()]); break;
+                    case TC_JSON: tcData.put(key, new JSONTokener(strings[(int) in.varint()]).nextValue()); break;
+                    default: throw new ConsentLibException("Unknown TCData type " + type + " in user consent file");
+                }
+            }
+            userConsent.TCData = tcData;
+            return userConsent;
+        } catch (ArrayIndexOutOfBoundsException | JSONException e) {
+            throw new ConsentLibException(e, "Corrupt user consent file");
+        }
+    }
+
+    // the four string lists of a consent, in file order
+    private static List<List<String>> lists(GDPRUserConsent userConsent) {
+        List<List<String>> lists = new ArrayList<>(4);
+        lists.add(userConsent.acceptedVendors);
+        lists.add(userConsent.acceptedCategories);
+        lists.add(userConsent.specialFeatures);
+        lists.add(userConsent.legIntCategories);
+        return lists;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static String json(Object value) {
+        if (value == null) return "null";
+        if (value instanceof Number || value == JSONObject.NULL || value instanceof JSONObject || value instanceof JSONArray) return value.toString();
+        return JSONObject.quote(value.toString());
+    }
+
+    private static boolean isPackedHex(String value) {
+        if (value.isEmpty() || value.length() % 2 != 0) return false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) return false;
+        }
+        return true;
+    }
+
+    private static class StringTable {
+        private final LinkedHashMap<String, Integer> indexes = new LinkedHashMap<>();
+
+        int index(String value) {
+            if (value == null) value = "";
+            Integer index = indexes.get(value);
+            if (index == null) {
+                index = indexes.size();
+                indexes.put(value, index);
+            }
+            return index;
+        }
+
+        int size() {
+            return indexes.size();
+        }
+
+        Iterable<String> values() {
+            return indexes.keySet();
+        }
+    }
+
+    private static class Output extends ByteArrayOutputStream {
+
+        void varint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void fixed32(long value) {
+            for (int shift = 24; shift >= 0; shift -= 8) write((int) (value >>> shift) & 0xFF);
+        }
+
+        void fixed64(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) write((int) (value >>> shift) & 0xFF);
+        }
+
+        void string(String value) {
+            if (isPackedHex(value)) {
+                varint((value.length() / 2) << 1 | 1);
+                for (int i = 0; i < value.length(); i += 2) write(Character.digit(value.charAt(i), 16) << 4 | Character.digit(value.charAt(i + 1), 16));
+            } else {
+                byte[] bytes = value.getBytes(UTF_8);
+                varint(bytes.length << 1);
+                write(bytes, 0, bytes.length);
+            }
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
+    private static class Input {
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+        private final byte[] bytes;
+        int pos;
+
+        Input(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        int read() {
+            return bytes[pos++] & 0xFF;
+        }
+
+        long varint() throws ConsentLibException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = read();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new ConsentLibException("Malformed varint in user consent file");
+        }
+
+        long fixed32() {
+            long value = 0;
+            for (int i = 0; i < 4; i++) value = value << 8 | read();
+            return value;
+        }
+
+        long fixed64() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) value = value << 8 | read();
+            return value;
+        }
+
+        byte[] bytes(int length) {
+            if (length < 0 || pos + length > bytes.length) throw new ArrayIndexOutOfBoundsException(pos + length);
+            byte[] value = new byte[length];
+            System.arraycopy(bytes, pos, value, 0, length);
+            pos += length;
+            return value;
+        }
+
+        String string() throws ConsentLibException {
+            long header = varint();
+            int length = (int) (header >>> 1);
+            if ((header & 1) == 0) return new String(bytes(length), UTF_8);
+            byte[] packed = bytes(length);
+            char[] hex = new char[length * 2];
+            for (int i = 0; i < length; i++) {
+                hex[2 * i] = HEX[(packed[i] >> 4) & 0xF];
+                hex[2 * i + 1] = HEX[packed[i] & 0xF];
+            }
+            return new String(hex);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) { }
+    }
+}
@@ -10,6 +10,9 @@ import android.util.Log;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.util.concurrent.Executor;
+
 import okhttp3.OkHttpClient;
 
 @SuppressWarnings("unused")
@@ -30,6 +33,7 @@ public class ConsentLibBuilder {
     protected GDPRConsentLib.pmFinishedCallback pmFinished;
     protected GDPRConsentLib.messageFinishedCallback messageFinished;
     protected GDPRConsentLib.onActionCallback onAction;
+    protected GDPRConsentLib.OnNetworkTimingsCallback onNetworkTimings;
     boolean staging, stagingCampaign, shouldCleanConsentOnError;
 
     SourcePointClient sourcePointClient;
@@ -38,10 +42,26 @@ public class ConsentLibBuilder {
     String authId = null;
     GDPRConsentLib.DebugLevel debugLevel = GDPRConsentLib.DebugLevel.OFF;
     long messageTimeOut;
+    long messageCacheTtl = 0;
+    int maxConsentProfiles = 0;
+    boolean publishMappedConsent = false;
+    ConsentStorage consentStorage = null;
+    long messageCacheMaxStale = MessageCache.DEFAULT_MAX_STALE;
+    long messageCacheMaxSize = MessageCache.DEFAULT_MAX_SIZE;
+    int maxRetries = RetryPolicy.DEFAULT_MAX_RETRIES;
+    long initialRetryBackoff = RetryPolicy.DEFAULT_INITIAL_BACKOFF;
+    long maxRetryBackoff = RetryPolicy.DEFAULT_MAX_BACKOFF;
+    int hedgePercentile = 0;
+    long requestCompressionThreshold = -1;
+    long customConsentBatchWindow = 0;
 
     StoreClient storeClient;
     private CountDownTimer timer;
 
+    OkHttpClient httpClient = null;
+    ConsentTransport transport = null;
+    String baseUrl = SourcePointClient.DEFAULT_BASE_URL;
+
     PropertyConfig propertyConfig;
 
 
@@ -59,7 +79,10 @@ public class ConsentLibBuilder {
     }
 
     protected StoreClient getStoreClient(){
-        return new StoreClient(PreferenceManager.getDefaultSharedPreferences(activity));
+        File filesDir = activity.getFilesDir();
+        StoreClient storeClient = new StoreClient(PreferenceManager.getDefaultSharedPreferences(activity), filesDir != null ? new File(filesDir, ConsentFile.NAME) : null, maxConsentProfiles, consentStorage);
+        if (publishMappedConsent && filesDir != null) storeClient.mappedConsentFile = new File(filesDir, MappedConsent.FILE_NAME);
+        return storeClient;
     }
 
     protected ConnectivityManager getConnectivityManager(){
@@ -124,6 +147,19 @@ public class ConsentLibBuilder {
         return this;
     }
 
+    /**
+     *  <b>Optional</b> Sets a Callback to be called with the phase timings (dns, connect, tls, ttfb, body)
+     *  and payload sizes of every HTTP call to SourcePoint. It runs on a background thread.
+     *  Percentiles over recent calls are available from {@link NetworkTimings}.
+     * @param callback called when a call to SourcePoint ends, successfully or not
+     * @return ConsentLibBuilder - the next build step
+     * @see ConsentLibBuilder
+     */
+    public ConsentLibBuilder setOnNetworkTimings(GDPRConsentLib.OnNetworkTimingsCallback callback) {
+        onNetworkTimings = callback;
+        return this;
+    }
+
     /**
      *  <b>Optional</b> Sets a Callback to be called when something goes wrong in the WebView
      * @param callback called when something wrong happens in the webview
@@ -201,12 +237,83 @@ public class ConsentLibBuilder {
         return this;
     }
 
+    /**
+     * <b>Optional</b> Sets the OkHttpClient used to talk to SourcePoint's API.
+     * <b>Default:</b> a client shared by every GDPRConsentLib in the process, so its
+     * connections are kept alive and reused across builds.
+     * @param httpClient - the OkHttpClient to be used for consent requests
+     * @return ConsentLibBuilder - the next build step
+     * @see ConsentLibBuilder
+     */
+    public ConsentLibBuilder setHttpClient(OkHttpClient httpClient) {
+        this.httpClient = httpClient;
+        return this;
+    }
+
+    /**
+     * <b>Optional</b> Sets the transport used to send requests to SourcePoint instead of an OkHttpClient,
+     * e.g. to go through Cronet. The byte counters, request compression and network timings
+     * only apply to the default OkHttp transport.
+     * @param transport - the ConsentTransport to be used for consent requests
+     * @return ConsentLibBuilder - the next build step
+     * @see ConsentLibBuilder
+     */
+    public ConsentLibBuilder setTransport(ConsentTransport transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    /**
+     * <b>Optional</b> Sets the base url of SourcePoint's wrapper-api, e.g. to point the lib at a local stand-in.
+     * The message and consent endpoints are resolved against it.
+     * <b>Default:</b> https://wrapper-api.sp-prod.net/tcfv2/v1/gdpr/
+     * @param baseUrl - absolute url ending with a slash
+     * @return ConsentLibBuilder - the next build step
+     * @see ConsentLibBuilder
+     */
+    public ConsentLibBuilder setBaseUrl(String baseUrl) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+        return this;
+    }
+
     String getTargetingParamsString() {
         return targetingParams.toString();
     }
 
+    OkHttpClient getHttpClient() {
+        return httpClient != null ? httpClient : HttpClientProvider.getSharedClient();
+    }
+
     protected SourcePointClient getSourcePointClient(){
-        return new SourcePointClient(new OkHttpClient(), spClientConfig() , getConnectivityManager());
+        SourcePointClient client = new SourcePointClient(getHttpClient(), spClientConfig() , getConnectivityManager(), getMessageCache());
+        client.retryPolicy = getRetryPolicy();
+        client.requestCompressionThreshold = requestCompressionThreshold;
+        client.onNetworkTimings = onNetworkTimings;
+        client.transport = transport;
+        client.baseUrl = baseUrl;
+        return client;
+    }
+
+    PersistenceQueue getPersistenceQueue(){
+        return PersistenceQueue.getInstance();
+    }
+
+    Executor getConsentDecoder(){
+        return StoredUserConsent.decoder();
+    }
+
+    ConnectivityWatcher getConnectivityWatcher(Runnable onConnected){
+        return new ConnectivityWatcher(activity.getApplicationContext(), onConnected);
+    }
+
+    RetryPolicy getRetryPolicy(){
+        return new RetryPolicy(maxRetries, initialRetryBackoff, maxRetryBackoff, messageTimeOut, hedgePercentile);
+    }
+
+    MessageCache getMessageCache(){
+        if (messageCacheTtl <= 0) return null;
+        File dir = new File(activity.getCacheDir(), MessageCache.DIR_NAME);
+        return new MessageCache(dir, messageCacheTtl, messageCacheMaxStale, messageCacheMaxSize);
     }
 
     private SourcePointClientConfig spClientConfig(){
@@ -247,6 +354,159 @@ public class ConsentLibBuilder {
         return this;
     }
 
+    /**
+     * <b>Optional</b> Enables the on-disk cache of message responses that don't carry a message to show.
+     * Within the ttl a repeated run() with the same consent data completes without a network call,
+     * after it the cached decision is still used while a fresh one is fetched in the background.
+     * <b>Default:</b> 0 (disabled)
+     * @param milliSecond - how long a cached response is considered fresh
+     * @return ConsentLibBuilder - the next build step
+     * @see ConsentLibBuilder
+     */
+    public ConsentLibBuilder setMessageCacheTtl(long milliSecond){
+        this.messageCacheTtl = milliSecond;
+        return this;
+    }
+
+    /**
+     * <b>Optional</b> How long after its ttl a cached response may still be served while it gets revalidated.
+     * <b>Default:</b> 24 hours
+     * @param milliSecond - stale window after the ttl
+     * @return ConsentLibBuilder - the next build step
+     * @see ConsentLibBuilder
+     */
+    public ConsentLibBuilder setMessageCacheMaxStale(long milliSecond){
+        this.messageCacheMaxStale = milliSecond;
+        return this;
+    }
+
+    /**
+     * <b>Optional</b> Upper bound for the size of the message cache, least recently used entries are evicted first.
+     * <b>Default:</b> 512KB
+     * @param bytes - maximum size of the cache directory
+     * @return ConsentLibBuilder - the next build step
+     * @see ConsentLibBuilder
+     */
+    public ConsentLibBuilder setMessageCacheMaxSize(long bytes){
+        this.messageCacheMaxSize = bytes;
+        return this;
+    }
+
+    /**
+     * <b>Optional</b> Keeps the consent of users switched away from with setAuthId, so switching back to
+     * one of them restores their consent on the device instead of clearing it and asking again.
+     * Users that have been inactive the longest are dropped first.
+     * <b>Default:</b> 0 (switching users clears the consent data)
+     * @param maxProfiles - how many inactive users keep their consent
+     * @return ConsentLibBuilder - the next build step
+     * @see ConsentLibBuilder
+     */
+    public ConsentLibBuilder setMaxConsentProfiles(int maxProfiles){
+        this.maxConsentProfiles = maxProfiles;
+        return this;
+    }
+
+    /**
+     * <b>Optional</b> Publishes the TC data and vendor grants to a memory-mapped file every time they're stored,
+     * so other processes of the app can read them with {@link MappedConsent#open(android.content.Context)}.
+     * <b>Default:</b> false
+     * @param publish - true to publish them
+     * @return ConsentLibBuilder - the next build step
+     * @see ConsentLibBuilder
+     */
+    public ConsentLibBuilder setPublishMappedConsent(boolean publish){
+        this.publishMappedConsent = publish;
+        return this;
+    }
+
+    /**
+     * <b>Optional</b> Where the lib keeps its own values (consent uuid, meta data, authId...), e.g. a
+     * {@link FileConsentStorage} to keep them out of the default SharedPreferences. Values already stored in
+     * the SharedPreferences are moved to it on first use. The IABTCF_ values stay in the SharedPreferences either way.
+     * Pass the same storage to {@link ConsentStatePreloader#start(android.content.Context, ConsentStorage)}.
+     * <b>Default:</b> {@link PreferencesConsentStorage} over the default SharedPreferences
+     * @param storage - the storage engine
+     * @return ConsentLibBuilder - the next build step
+     * @see ConsentLibBuilder
+     */
+    public ConsentLibBuilder setConsentStorage(ConsentStorage storage){
+        this.consentStorage = storage;
+        return this;
+    }
+
+    /**
+     * <b>Optional</b> How many times a request to SourcePoint is retried after a network error or a
+     * 408, 425, 429 or 5xx response before onError is called. Retries back off exponentially with
+     * jitter and are only attempted while they fit in the message timeout. Consent actions are only
+     * retried when the connection couldn't be opened or the server answered 429 or 503 with a Retry-After,
+     * so an action the server may already have stored is never sent twice.
+     * <b>Default:</b> 2
+     * @param maxRetries - extra attempts per request, 0 disables retries
+     * @return ConsentLibBuilder - the next build step
+     * @see ConsentLibBuilder
+     */
+    public ConsentLibBuilder setMaxRetries(int maxRetries){
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    /**
+     * <b>Optional</b> Bounds of the backoff between retries. The n-th retry waits a random time
+     * between 0 and min(maxMilliSecond, initialMilliSecond * 2^n), or what the server asked for in Retry-After.
+     * <b>Default:</b> 200ms and 2000ms
+     * @param initialMilliSecond - upper bound of the wait before the first retry
+     * @param maxMilliSecond - upper bound of the wait before any retry
+     * @return ConsentLibBuilder - the next build step
+     * @see ConsentLibBuilder
+     */
+    public ConsentLibBuilder setRetryBackoff(long initialMilliSecond, long maxMilliSecond){
+        this.initialRetryBackoff = initialMilliSecond;
+        this.maxRetryBackoff = maxMilliSecond;
+        return this;
+    }
+
+    /**
+     * <b>Optional</b> Sends a second, hedged, message request when the first one takes longer than
+     * the given percentile of recently observed message latencies. Whichever responds first is used.
+     * A hedged request counts as one of the retries.
+     * <b>Default:</b> 0 (disabled)
+     * @param percentile - latency percentile between 1 and 100, e.g. 95
+     * @return ConsentLibBuilder - the next build step
+     * @see ConsentLibBuilder
+     */
+    public ConsentLibBuilder setHedgeAfterPercentile(int percentile){
+        this.hedgePercentile = percentile;
+        return this;
+    }
+
+    /**
+     * <b>Optional</b> Gzips the body of requests to SourcePoint when it is at least the given size,
+     * sending it with Content-Encoding: gzip. Responses are always requested and decompressed as gzip.
+     * See {@link TransferStats} for the bytes saved.
+     * <b>Default:</b> -1 (disabled)
+     * @param bytes - smallest body to compress, 0 compresses every body
+     * @return ConsentLibBuilder - the next build step
+     * @see ConsentLibBuilder
+     */
+    public ConsentLibBuilder setRequestCompressionThreshold(long bytes){
+        this.requestCompressionThreshold = bytes;
+        return this;
+    }
+
+    /**
+     * <b>Optional</b> Batches customConsentTo() calls: the ones made within the window of the first are sent
+     * as a single request with all of their vendors and categories, and each of their callbacks gets the
+     * consent it results in.
+     * <b>Default:</b> 0 (every call is sent right away)
+     * @param milliSecond - how long to wait for more calls after the first one
+     * @return ConsentLibBuilder - the next build step
+     * @see ConsentLibBuilder
+     */
+    public ConsentLibBuilder setCustomConsentBatchWindow(long milliSecond){
+        this.customConsentBatchWindow = milliSecond;
+        return this;
+    }
+
     protected GDPRConsentLib getConsentLib(){
         return new GDPRConsentLib(this);
     }
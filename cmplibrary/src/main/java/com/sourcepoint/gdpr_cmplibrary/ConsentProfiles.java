@@ -0,0 +1,187 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Consent of the users that were active before the current one, one file per authId, so switching
+ * back to a user restores their consent locally instead of starting over. The current user's consent
+ * lives in StoreClient's usual keys and is saved here when another user takes over. Taking a profile
+ * back removes its file, so the directory only holds inactive users and is bounded to the
+ * maxProfiles most recently active ones.
+ */
+class ConsentProfiles {
+
+    private static final String TAG = "ConsentProfiles";
+
+    static final String DIR_NAME = "sp_gdpr_consent_profiles";
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Object lock = new Object();
+
+    static class Profile {
+        String consentUUID, metaData, euConsent, pendingConsentActions;
+        HashMap<String, Object> tcData = new HashMap<>();
+        GDPRUserConsent userConsent = new GDPRUserConsent();
+    }
+
+    private final File dir;
+    private final int maxProfiles;
+
+    ConsentProfiles(File dir, int maxProfiles) {
+        this.dir = dir;
+        this.maxProfiles = maxProfiles;
+    }
+
+    void save(String authId, Profile profile) {
+        synchronized (lock) {
+            if (!dir.exists() && !dir.mkdirs()) return;
+            File tmp = null;
+            DataOutputStream out = null;
+            try {
+                File file = file(authId);
+                tmp = new File(dir, file.getName() + ".tmp");
+                out = new DataOutputStream(new FileOutputStream(tmp));
+                out.writeInt(FORMAT_VERSION);
+                writeString(out, profile.consentUUID);
+                writeString(out, profile.metaData);
+                writeString(out, profile.euConsent);
+                writeString(out, profile.pendingConsentActions);
+                out.writeInt(profile.tcData.size());
+                for (Map.Entry<String, Object> entry : profile.tcData.entrySet()) {
+                    writeString(out, entry.getKey());
+                    if (entry.getValue() instanceof Integer) {
+                        out.writeBoolean(true);
+                        out.writeInt((Integer) entry.getValue());
+                    } else {
+                        out.writeBoolean(false);
+                        writeString(out, String.valueOf(entry.getValue()));
+                    }
+                }
+                byte[] userConsent = ConsentFile.encode(profile.userConsent);
+                out.writeInt(userConsent.length);
+                out.write(userConsent);
+                out.close();
+                out = null;
+                if (!tmp.renameTo(file)) throw new IOException("could not rename " + tmp);
+                evict(file);
+            } catch (IOException | ConsentLibException e) {
+                Log.d(TAG, "Failed to save the consent profile: " + e.getMessage());
+                if (tmp != null) tmp.delete();
+            } finally {
+                closeQuietly(out);
+            }
+        }
+    }
+
+    /**
+     * @return the profile saved for authId, removing it, or null if there is none or it can't be read
+     */
+    Profile take(String authId) {
+        synchronized (lock) {
+            File file;
+            try {
+                file = file(authId);
+            } catch (ConsentLibException e) {
+                return null;
+            }
+            if (!file.exists()) return null;
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new FileInputStream(file));
+                if (in.readInt() != FORMAT_VERSION) return null;
+                Profile profile = new Profile();
+                profile.consentUUID = readString(in);
+                profile.metaData = readString(in);
+                profile.euConsent = readString(in);
+                profile.pendingConsentActions = readString(in);
+                int tcDataSize = in.readInt();
+                for (int i = 0; i < tcDataSize; i++) {
+                    String key = readString(in);
+                    profile.tcData.put(key, in.readBoolean() ? (Object) in.readInt() : readString(in));
+                }
+                byte[] userConsent = new byte[in.readInt()];
+                in.readFully(userConsent);
+                profile.userConsent = ConsentFile.decode(userConsent);
+                return profile;
+            } catch (IOException | ConsentLibException | RuntimeException e) {
+                Log.d(TAG, "Failed to read the consent profile: " + e.getMessage());
+                return null;
+            } finally {
+                closeQuietly(in);
+                file.delete();
+            }
+        }
+    }
+
+    void clear() {
+        synchronized (lock) {
+            File[] files = dir.listFiles();
+            if (files != null) for (File file : files) file.delete();
+        }
+    }
+
+    int size() {
+        synchronized (lock) {
+            String[] names = dir.list();
+            return names != null ? names.length : 0;
+        }
+    }
+
+    // file names don't give the authIds away
+    private File file(String authId) throws ConsentLibException {
+        return new File(dir, MessageCache.sha256(authId));
+    }
+
+    // drops the profiles of the users that have been inactive the longest, never the one just saved
+    private void evict(File saved) {
+        File[] files = dir.listFiles();
+        if (files == null || files.length <= maxProfiles) return;
+        Arrays.sort(files, (a, b) -> a.lastModified() < b.lastModified() ? -1 : a.lastModified() == b.lastModified() ? 0 : 1);
+        int excess = files.length - maxProfiles;
+        for (int i = 0; i < files.length && excess > 0; i++) {
+            if (files[i].equals(saved)) continue;
+            files[i].delete();
+            excess--;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) { }
+    }
+}
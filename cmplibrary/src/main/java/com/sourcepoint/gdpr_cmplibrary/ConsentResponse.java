@@ -0,0 +1,227 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Response of the message and consent endpoints, decoded in a single pass straight from the
+ * response stream into GDPRUserConsent, without an intermediate String or JSONObject copy of
+ * the whole payload. Only msgJSON, which is small and handed to NativeMessageAttrs, is
+ * materialized as a JSONObject.
+ */
+class ConsentResponse {
+
+    String uuid;
+    String meta;
+    GDPRUserConsent userConsent;
+    String url;
+    JSONObject msgJSON;
+
+    private final AtomicBoolean stored = new AtomicBoolean();
+
+    // callers that lost claimStore, waiting for the claimer's write
+    private final ArrayList<PersistenceQueue.OnWritten> onStored = new ArrayList<>();
+    private boolean storeDone;
+    private Exception storeError;
+
+    boolean hasMessage() {
+        return url != null || msgJSON != null;
+    }
+
+    /**
+     * The same response can be handed to several callers when their requests were coalesced.
+     * @return true for the first caller only, the one that should persist it
+     */
+    boolean claimStore() {
+        return stored.compareAndSet(false, true);
+    }
+
+    /**
+     * @param callback - called with the outcome of the claimer's write once it's done, right away if it already is
+     */
+    void whenStored(PersistenceQueue.OnWritten callback) {
+        synchronized (onStored) {
+            if (!storeDone) {
+                onStored.add(callback);
+                return;
+            }
+        }
+        callback.run(storeError);
+    }
+
+    /**
+     * Called by the claimer once its write is done, hands the outcome to the callers waiting on it.
+     * @param error - what the write threw or null if it succeeded
+     */
+    void stored(Exception error) {
+        ArrayList<PersistenceQueue.OnWritten> waiting;
+        synchronized (onStored) {
+            storeDone = true;
+            storeError = error;
+            waiting = new ArrayList<>(onStored);
+            onStored.clear();
+        }
+        for (PersistenceQueue.OnWritten callback : waiting) callback.run(error);
+    }
+
+    static ConsentResponse parse(String json) throws ConsentLibException {
+        return parse(new StringReader(json));
+    }
+
+    static ConsentResponse parse(Reader in) throws ConsentLibException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            ConsentResponse response = new ConsentResponse();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.skipValue();
+                    continue;
+                }
+                switch (name) {
+                    case "uuid": response.uuid = reader.nextString(); break;
+                    case "meta": response.meta = reader.nextString(); break;
+                    case "userConsent": response.userConsent = readUserConsent(reader); break;
+                    case "url": response.url = reader.nextString(); break;
+                    case "msgJSON": response.msgJSON = readJSONObject(reader); break;
+                    default: reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (response.uuid == null) throw new ConsentLibException("uuid missing from response");
+            if (response.meta == null) throw new ConsentLibException("meta missing from response");
+            if (response.userConsent == null) throw new ConsentLibException("userConsent missing from response");
+            response.userConsent.uuid = response.uuid;
+            return response;
+        } catch (IOException | IllegalStateException | JSONException | NumberFormatException e) {
+            throw new ConsentLibException(e, "Error parsing response from SourcePoint");
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    private static GDPRUserConsent readUserConsent(JsonReader reader) throws IOException, ConsentLibException {
+        GDPRUserConsent userConsent = new GDPRUserConsent();
+        int missingFields = 7;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "acceptedVendors": userConsent.acceptedVendors = readStrings(reader); break;
+                case "acceptedCategories": userConsent.acceptedCategories = readStrings(reader); break;
+                case "specialFeatures": userConsent.specialFeatures = readStrings(reader); break;
+                case "legIntCategories": userConsent.legIntCategories = readStrings(reader); break;
+                case "euconsent": userConsent.consentString = reader.nextString(); break;
+                case "TCData": userConsent.TCData = readTCData(reader); break;
+                case "grants": userConsent.vendorGrants = readVendorGrants(reader, userConsent); break;
+                default: reader.skipValue(); continue;
+            }
+            missingFields--;
+        }
+        reader.endObject();
+        if (missingFields > 0) throw new ConsentLibException("Error parsing userConsent: missing fields");
+        return userConsent;
+    }
+
+    private static ArrayList<String> readStrings(JsonReader reader) throws IOException {
+        ArrayList<String> strings = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) strings.add(reader.nextString());
+        reader.endArray();
+        return strings;
+    }
+
+    private static HashMap<String, Object> readTCData(JsonReader reader) throws IOException {
+        HashMap<String, Object> tcData = new HashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            switch (reader.peek()) {
+                case STRING: tcData.put(key, reader.nextString()); break;
+                case NUMBER: tcData.put(key, readNumber(reader)); break;
+                case BOOLEAN: tcData.put(key, reader.nextBoolean()); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return tcData;
+    }
+
+    private static GDPRUserConsent.VendorGrants readVendorGrants(JsonReader reader, GDPRUserConsent userConsent) throws IOException {
+        GDPRUserConsent.VendorGrants vendorGrants = userConsent.new VendorGrants();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String vendorId = reader.nextName();
+            boolean vendorGrant = false;
+            HashMap<String, Boolean> purposeGrants = new HashMap<>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("vendorGrant")) {
+                    vendorGrant = reader.nextBoolean();
+                } else if (name.equals("purposeGrants")) {
+                    reader.beginObject();
+                    while (reader.hasNext()) purposeGrants.put(reader.nextName(), reader.nextBoolean());
+                    reader.endObject();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            vendorGrants.put(vendorId, vendorGrants.new VendorGrant(vendorGrant, purposeGrants));
+        }
+        reader.endObject();
+        return vendorGrants;
+    }
+
+    // Same number types as org.json: Integer when it fits, then Long, then Double
+    private static Object readNumber(JsonReader reader) throws IOException {
+        String number = reader.nextString();
+        try {
+            long value = Long.parseLong(number);
+            if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) return (int) value;
+            return value;
+        } catch (NumberFormatException e) {
+            return Double.parseDouble(number);
+        }
+    }
+
+    private static Object readJSONValue(JsonReader reader) throws IOException, JSONException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT: return readJSONObject(reader);
+            case BEGIN_ARRAY:
+                JSONArray array = new JSONArray();
+                reader.beginArray();
+                while (reader.hasNext()) array.put(readJSONValue(reader));
+                reader.endArray();
+                return array;
+            case NUMBER: return readNumber(reader);
+            case BOOLEAN: return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default: return reader.nextString();
+        }
+    }
+
+    private static JSONObject readJSONObject(JsonReader reader) throws IOException, JSONException {
+        JSONObject json = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) json.put(reader.nextName(), readJSONValue(reader));
+        reader.endObject();
+        return json;
+    }
+}
@@ -0,0 +1,164 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable copy of a user consent, for threads reading it while the lib replaces it. GDPRConsentLib
+ * publishes a new snapshot atomically with every consent it gets, so a reader holding one never sees it
+ * change or half built and needs neither locks nor copies of its own.
+ * The version goes up by one with every published snapshot, 0 being the stored consent the lib started from.
+ */
+public final class ConsentSnapshot {
+
+    private final long version;
+    private final String uuid;
+    private final String consentString;
+    private final List<String> acceptedVendors;
+    private final List<String> acceptedCategories;
+    private final List<String> specialFeatures;
+    private final List<String> legIntCategories;
+    private final Map<String, Object> tcData;
+    private final Map<String, GDPRUserConsent.VendorGrants.VendorGrant> vendorGrants;
+    private final Map<String, Map<String, Boolean>> purposeGrants;
+
+    // derived on first use
+    private volatile GrantIndex grantIndex;
+    private volatile TCString tcString;
+    private volatile boolean tcStringDecoded;
+
+    ConsentSnapshot(GDPRUserConsent userConsent, long version) {
+        this.version = version;
+        uuid = userConsent.uuid;
+        consentString = userConsent.consentString;
+        acceptedVendors = copy(userConsent.acceptedVendors);
+        acceptedCategories = copy(userConsent.acceptedCategories);
+        specialFeatures = copy(userConsent.specialFeatures);
+        legIntCategories = copy(userConsent.legIntCategories);
+        tcData = Collections.unmodifiableMap(GDPRUserConsent.copyTCData(userConsent.TCData));
+        GDPRUserConsent.VendorGrants grants = new GDPRUserConsent().vendorGrants;
+        HashMap<String, Map<String, Boolean>> purposes = new HashMap<>();
+        for (Map.Entry<String, GDPRUserConsent.VendorGrants.VendorGrant> vendor : userConsent.vendorGrants.entrySet()) {
+            HashMap<String, Boolean> vendorPurposes = new HashMap<>(vendor.getValue().purposeGrants);
+            grants.put(vendor.getKey(), grants.new VendorGrant(vendor.getValue().vendorGrant, vendorPurposes));
+            purposes.put(vendor.getKey(), Collections.unmodifiableMap(vendorPurposes));
+        }
+        vendorGrants = grants;
+        purposeGrants = Collections.unmodifiableMap(purposes);
+    }
+
+    private ConsentSnapshot(ConsentSnapshot snapshot, long version) {
+        this.version = version;
+        uuid = snapshot.uuid;
+        consentString = snapshot.consentString;
+        acceptedVendors = snapshot.acceptedVendors;
+        acceptedCategories = snapshot.acceptedCategories;
+        specialFeatures = snapshot.specialFeatures;
+        legIntCategories = snapshot.legIntCategories;
+        tcData = snapshot.tcData;
+        vendorGrants = snapshot.vendorGrants;
+        purposeGrants = snapshot.purposeGrants;
+    }
+
+    // the copy is made before taking the lock publishing it, the version once holding it
+    ConsentSnapshot withVersion(long version) {
+        return new ConsentSnapshot(this, version);
+    }
+
+    private static List<String> copy(List<String> list) {
+        return Collections.unmodifiableList(new ArrayList<>(list));
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public String getConsentString() {
+        return consentString;
+    }
+
+    public List<String> getAcceptedVendors() {
+        return acceptedVendors;
+    }
+
+    public List<String> getAcceptedCategories() {
+        return acceptedCategories;
+    }
+
+    public List<String> getSpecialFeatures() {
+        return specialFeatures;
+    }
+
+    public List<String> getLegIntCategories() {
+        return legIntCategories;
+    }
+
+    public Map<String, Object> getTCData() {
+        return tcData;
+    }
+
+    /**
+     * @return purpose id to grant of the vendor, empty if the vendor has no grants
+     */
+    public Map<String, Boolean> getPurposeGrants(String vendorId) {
+        Map<String, Boolean> grants = purposeGrants.get(vendorId);
+        return grants != null ? grants : Collections.<String, Boolean>emptyMap();
+    }
+
+    // vendors with grants
+    Set<String> vendorIds() {
+        return purposeGrants.keySet();
+    }
+
+    public boolean hasConsent(String vendorId, String purposeId) {
+        return getGrantIndex().isPurposeGranted(vendorId, purposeId);
+    }
+
+    public boolean isVendorGranted(String vendorId) {
+        return getGrantIndex().isVendorGranted(vendorId);
+    }
+
+    public GrantIndex getGrantIndex() {
+        GrantIndex index = grantIndex;
+        if (index == null) grantIndex = index = new GrantIndex(vendorGrants);
+        return index;
+    }
+
+    /**
+     * @return the consent string decoded, null if it's empty or isn't a TCF v2 consent string
+     */
+    public TCString getTCString() {
+        if (!tcStringDecoded) {
+            tcString = TCString.parseOrNull(consentString);
+            tcStringDecoded = true;
+        }
+        return tcString;
+    }
+
+    /**
+     * @return a mutable copy, for APIs still taking a GDPRUserConsent
+     */
+    public GDPRUserConsent toUserConsent() {
+        GDPRUserConsent userConsent = new GDPRUserConsent();
+        userConsent.uuid = uuid;
+        userConsent.consentString = consentString;
+        userConsent.acceptedVendors = new ArrayList<>(acceptedVendors);
+        userConsent.acceptedCategories = new ArrayList<>(acceptedCategories);
+        userConsent.specialFeatures = new ArrayList<>(specialFeatures);
+        userConsent.legIntCategories = new ArrayList<>(legIntCategories);
+        userConsent.TCData = new HashMap<>(tcData);
+        for (Map.Entry<String, Map<String, Boolean>> vendor : purposeGrants.entrySet()) {
+            boolean granted = vendorGrants.get(vendor.getKey()).vendorGrant;
+            userConsent.vendorGrants.put(vendor.getKey(), userConsent.vendorGrants.new VendorGrant(granted, new HashMap<>(vendor.getValue())));
+        }
+        return userConsent;
+    }
+}
@@ -0,0 +1,19 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+/**
+ * The stored values GDPRConsentLib starts from, read together by {@link StoreClient#readConsentState()}.
+ */
+class ConsentState {
+
+    final String authId;
+    final String consentUUID;
+    final String metaData;
+    final String euConsent;
+
+    ConsentState(String authId, String consentUUID, String metaData, String euConsent) {
+        this.authId = authId;
+        this.consentUUID = consentUUID;
+        this.metaData = metaData;
+        this.euConsent = euConsent;
+    }
+}
@@ -0,0 +1,90 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.content.Context;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Reads the stored consent state off the main thread ahead of the first GDPRConsentLib. The first read of
+ * the default SharedPreferences parses the host app's whole preferences file, so the earlier start() is
+ * called, e.g. from Application.onCreate() or an App Startup Initializer, the likelier it's done by the
+ * time the lib is built. The lib waits for a read in progress rather than starting a second one.
+ * The state is used once and only if nothing was stored since the read began.
+ */
+public class ConsentStatePreloader {
+
+    private static final String TAG = "ConsentStatePreloader";
+
+    private static FutureTask<ConsentState> pending;
+    private static ConsentStorage pendingStorage;
+    private static int pendingGeneration;
+
+    // bumped by every write of the values in ConsentState
+    private static int generation;
+
+    /**
+     * Starts reading the consent state kept in the default SharedPreferences.
+     * @param context - any context, its application context is used
+     */
+    public static void start(Context context) {
+        start(context, null);
+    }
+
+    /**
+     * Starts reading the consent state.
+     * @param context - any context, its application context is used
+     * @param storage - the storage passed to {@link ConsentLibBuilder#setConsentStorage(ConsentStorage)}, if any
+     */
+    public static void start(Context context, ConsentStorage storage) {
+        Context appContext = context.getApplicationContext();
+        FutureTask<ConsentState> task = new FutureTask<>(() ->
+                new StoreClient(PreferenceManager.getDefaultSharedPreferences(appContext), null, 0, storage).readConsentState());
+        synchronized (ConsentStatePreloader.class) {
+            pending = task;
+            pendingStorage = storage;
+            pendingGeneration = generation;
+        }
+        Thread thread = new Thread(task, "sp-gdpr-preload");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static synchronized void invalidate() {
+        generation++;
+        pending = null;
+    }
+
+    /**
+     * @param storage - the storage of the lib taking the state, a state read from another one doesn't apply
+     * @param timeoutMillis - how long to wait for a read in progress
+     * @return the preloaded state or null if there is none that can be used
+     */
+    static ConsentState take(ConsentStorage storage, long timeoutMillis) {
+        FutureTask<ConsentState> task;
+        int startedAt;
+        synchronized (ConsentStatePreloader.class) {
+            if (pending == null || pendingStorage != storage) return null;
+            task = pending;
+            startedAt = pendingGeneration;
+            pending = null;
+        }
+        ConsentState state;
+        try {
+            state = task.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            Log.d(TAG, "Preloaded consent state not available: " + e);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        synchronized (ConsentStatePreloader.class) {
+            return startedAt == generation ? state : null;
+        }
+    }
+}
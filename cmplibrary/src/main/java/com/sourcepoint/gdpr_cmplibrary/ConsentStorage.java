@@ -0,0 +1,37 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+/**
+ * Where StoreClient keeps the lib's own values: consent uuid, meta data, euconsent, authId, pending consent
+ * actions and the user consent when it isn't in its own file. The IABTCF_ values always stay in the default
+ * SharedPreferences, where the TCF spec has the vendors' SDKs look for them.
+ * Engines: {@link PreferencesConsentStorage} (default), {@link FileConsentStorage} and {@link InMemoryConsentStorage}.
+ */
+public interface ConsentStorage {
+
+    String getString(String key, String defaultValue);
+
+    boolean contains(String key);
+
+    /**
+     * @return Editor - staging changes until apply() or commit()
+     */
+    Editor edit();
+
+    interface Editor {
+
+        Editor putString(String key, String value);
+
+        Editor remove(String key);
+
+        /**
+         * Makes the changes visible to getString right away, they may reach the disk later.
+         */
+        void apply();
+
+        /**
+         * Writes the changes before returning.
+         * @return true if they were written
+         */
+        boolean commit();
+    }
+}
@@ -0,0 +1,20 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import okhttp3.Call;
+import okhttp3.Request;
+
+/**
+ * Carries the lib's HTTP requests to SourcePoint's wrapper-api.
+ * Retries, coalescing, caching and decoding happen on top of it, so an implementation only has to
+ * execute the request it's given, e.g. through Cronet's OkHttp bridge or an in-process stand-in.
+ * By default the lib's own OkHttpClient is used, together with its byte counters, request
+ * compression and phase timings, none of which apply to a custom transport.
+ */
+public interface ConsentTransport {
+
+    /**
+     * @param request - a POST of a JSON body to one of the wrapper-api endpoints
+     * @return a call that isn't executed yet, the lib enqueues and, if needed, cancels it
+     */
+    Call newCall(Request request);
+}
@@ -0,0 +1,48 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * customConsentTo() calls waiting for the batch window to close. They're sent as one request with
+ * the union of their vendors and categories, the same callback passed more than once is called once.
+ */
+class CustomConsentBatch {
+
+    // closes the batch windows, kept apart from the retries so a backlog of them doesn't delay a batch
+    private static ScheduledExecutorService scheduler;
+
+    final LinkedHashSet<String> vendors = new LinkedHashSet<>();
+    final LinkedHashSet<String> categories = new LinkedHashSet<>();
+    final LinkedHashSet<String> legIntCategories = new LinkedHashSet<>();
+
+    private final LinkedHashSet<GDPRConsentLib.OnConsentReadyCallback> callbacks = new LinkedHashSet<>();
+
+    void add(List<String> vendors, List<String> categories, List<String> legIntCategories, GDPRConsentLib.OnConsentReadyCallback callback) {
+        this.vendors.addAll(vendors);
+        this.categories.addAll(categories);
+        this.legIntCategories.addAll(legIntCategories);
+        callbacks.add(callback);
+    }
+
+    GDPRConsentLib.OnConsentReadyCallback callback() {
+        ArrayList<GDPRConsentLib.OnConsentReadyCallback> callbacks = new ArrayList<>(this.callbacks);
+        return consent -> {
+            for (GDPRConsentLib.OnConsentReadyCallback callback : callbacks) callback.run(consent);
+        };
+    }
+
+    static synchronized ScheduledExecutorService scheduler() {
+        if (scheduler == null) {
+            scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, "sp-gdpr-custom-consent");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler;
+    }
+}
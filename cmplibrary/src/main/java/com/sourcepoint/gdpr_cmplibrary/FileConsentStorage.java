@@ -0,0 +1,149 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the values in a single file of their own, loaded once and rewritten as a whole on every write.
+ * Unlike SharedPreferences there's no XML to parse and no other keys to rewrite along with them, and a
+ * write is a temporary file renamed over the previous one, so a crash leaves either version but never half.
+ * apply() writes before returning as well: the lib only writes from its background writer.
+ *
+ * File layout: "SPKV", format version, entry count, entries (key and value as length-prefixed UTF-8), CRC32.
+ */
+public class FileConsentStorage implements ConsentStorage {
+
+    private static final String TAG = "FileConsentStorage";
+
+    public static final String NAME = "sp_gdpr_storage";
+
+    static final int FORMAT_VERSION = 1;
+
+    private static final byte[] MAGIC = {'S', 'P', 'K', 'V'};
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+
+    // loaded on first use
+    private HashMap<String, String> values;
+
+    public FileConsentStorage(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @param context - the file is kept in its files dir
+     */
+    public FileConsentStorage(Context context) {
+        this(new File(context.getFilesDir(), NAME));
+    }
+
+    @Override
+    public synchronized String getString(String key, String defaultValue) {
+        String value = values().get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return values().containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new StagingEditor() {
+            @Override
+            boolean write(HashMap<String, String> changes) {
+                return FileConsentStorage.this.write(changes);
+            }
+        };
+    }
+
+    private synchronized boolean write(HashMap<String, String> changes) {
+        StagingEditor.merge(values(), changes);
+        try {
+            ConsentFile.replace(file, encode(values));
+            return true;
+        } catch (IOException e) {
+            Log.d(TAG, "Failed to write " + file + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private HashMap<String, String> values() {
+        if (values == null) values = load();
+        return values;
+    }
+
+    // a missing or corrupt file reads as empty
+    private HashMap<String, String> load() {
+        if (!file.exists()) return new HashMap<>();
+        try {
+            return decode(ConsentFile.readFully(file));
+        } catch (IOException e) {
+            Log.d(TAG, "Failed to read " + file + ": " + e.getMessage());
+            return new HashMap<>();
+        }
+    }
+
+    static byte[] encode(Map<String, String> values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+        out.writeInt(values.size());
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        return bytes.toByteArray();
+    }
+
+    static HashMap<String, String> decode(byte[] bytes) throws IOException {
+        if (bytes.length < MAGIC.length + 5 + 4) throw new IOException("truncated file");
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) throw new IOException("not a consent storage file");
+        int version = in.readUnsignedByte();
+        if (version != FORMAT_VERSION) throw new IOException("unknown format version " + version);
+        DataInputStream tail = new DataInputStream(new ByteArrayInputStream(bytes, bytes.length - 4, 4));
+        if (tail.readInt() != (int) crc.getValue()) throw new IOException("checksum mismatch");
+        int count = in.readInt();
+        HashMap<String, String> values = new HashMap<>();
+        for (int i = 0; i < count; i++) values.put(readString(in), readString(in));
+        return values;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] encoded = value.getBytes(UTF_8);
+        out.writeInt(encoded.length);
+        out.write(encoded);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) throw new IOException("truncated file");
+        byte[] encoded = new byte[length];
+        in.readFully(encoded);
+        return new String(encoded, UTF_8);
+    }
+}
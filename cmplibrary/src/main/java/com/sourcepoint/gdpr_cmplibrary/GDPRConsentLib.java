@@ -2,6 +2,7 @@ package com.sourcepoint.gdpr_cmplibrary;
 
 import android.app.Activity;
 import android.os.CountDownTimer;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.View;
@@ -12,6 +13,9 @@ import org.json.JSONObject;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Entry point class encapsulating the Consents a giving user has given to one or several vendors.
@@ -30,16 +34,55 @@ public class GDPRConsentLib {
     String metaData;
     String euConsent;
 
+    private volatile TCString tcString;
+
     public enum DebugLevel {DEBUG, OFF}
 
 
     public Boolean isSubjectToGdpr = null;
 
+    /**
+     * The stored consent uuid is read in the background after build(), the field is null until then.
+     */
     public String consentUUID;
 
     public ConsentLibException error = null;
 
-    public GDPRUserConsent userConsent;
+    /**
+     * The consent of the last response or, until there is one, the stored consent. The stored one is decoded
+     * in the background after build(), so the field is null for a moment: use {@link #getUserConsent()}, which
+     * waits for it, to read the stored consent before run() or showPm() are done, and
+     * {@link #getConsentSnapshot()} to read it from threads other than the one of the callbacks.
+     */
+    public volatile GDPRUserConsent userConsent;
+
+    // immutable copy of userConsent for concurrent readers, null until first asked for or replaced
+    private final AtomicReference<ConsentSnapshot> consentSnapshot = new AtomicReference<>();
+
+    private StoredUserConsent storedUserConsent;
+
+    private final Executor consentDecoder;
+
+    private final ConsentChangeListeners consentChangeListeners = new ConsentChangeListeners();
+
+    private static final String STORE_DATA_WRITE = "storeData";
+
+    // how long reading the stored data waits for a preload or, in getUserConsent(), for the read itself
+    private static final long STORE_FLUSH_TIMEOUT = 2000;
+
+    // set once the writer has read the stored state and no clearAllData() is waiting to be written,
+    // consentUUID, metaData and euConsent hold it from then on
+    private volatile boolean consentDataLoaded;
+
+    // clearAllData() during the read wins over the stored state
+    private final Object consentDataLock = new Object();
+    private boolean consentDataCleared;
+    private int pendingClears;
+
+    final PersistenceQueue persistence;
+
+    // tells whether a preloaded consent state was read from the same storage as storeClient's
+    private final ConsentStorage consentStorage;
 
     private static final String TAG = "GDPRConsentLib";
 
@@ -61,6 +104,20 @@ public class GDPRConsentLib {
 
     private CountDownTimer mCountDownTimer;
 
+    // a prefetched message older than this is fetched again by run()
+    static final long PREFETCH_MAX_AGE = 60000;
+
+    private final Object prefetchLock = new Object();
+
+    private final long customConsentBatchWindow;
+
+    // customConsentTo() calls of the open batch window, null when there is none
+    private CustomConsentBatch customConsentBatch;
+    private final Object customConsentBatchLock = new Object();
+    private boolean prefetching = false, prefetchFailed = false;
+    private long prefetchStartedAt, runStartedAt;
+    private Runnable prefetchedStep;
+
     private final SourcePointClient sourcePoint;
 
     @SuppressWarnings("WeakerAccess")
@@ -85,6 +142,10 @@ public class GDPRConsentLib {
         void run(GDPRUserConsent c);
     }
 
+    public interface OnConsentChangedCallback {
+        void run(ConsentDiff diff);
+    }
+
     public interface OnErrorCallback {
         void run(ConsentLibException v);
     }
@@ -109,6 +170,10 @@ public class GDPRConsentLib {
         void run(ActionTypes actionTypes);
     }
 
+    public interface OnNetworkTimingsCallback {
+        void run(CallTimings timings);
+    }
+
     public interface OnLoadComplete {
         void onSuccess(Object result);
 
@@ -120,6 +185,11 @@ public class GDPRConsentLib {
 
     private StoreClient storeClient;
 
+    ConsentActionQueue consentActionQueue;
+
+    // sends the queued consent actions as soon as the device is back online, watching only while there are some
+    private final ConnectivityWatcher connectivityWatcher;
+
     /**
      * @return a new instance of GDPRConsentLib.Builder
      */
@@ -143,12 +213,18 @@ public class GDPRConsentLib {
         messageFinished = b.messageFinished;
         onAction = b.onAction;
         shouldCleanConsentOnError = b.shouldCleanConsentOnError;
+        customConsentBatchWindow = b.customConsentBatchWindow;
 
         mCountDownTimer = b.getTimer(onCountdownFinished());
 
         sourcePoint = b.getSourcePointClient();
 
         storeClient = b.getStoreClient();
+        consentStorage = b.consentStorage;
+        persistence = b.getPersistenceQueue();
+        consentDecoder = b.getConsentDecoder();
+        consentActionQueue = new ConsentActionQueue(storeClient, persistence);
+        connectivityWatcher = b.getConnectivityWatcher(() -> flushConsentActions(() -> { }));
         setConsentData(b.authId);
     }
 
@@ -156,41 +232,192 @@ public class GDPRConsentLib {
         return () -> GDPRConsentLib.this.onErrorTask(new ConsentLibException("a timeout has occurred when loading the message"));
     }
 
+    /**
+     * @return the consent of the last response or the stored one, decoded on the first call if it isn't yet
+     */
+    public GDPRUserConsent getUserConsent() {
+        GDPRUserConsent consent = userConsent;
+        if (consent != null) return consent;
+        // a user switch may still replace the stored consent
+        if (!consentDataLoaded) persistence.flush(STORE_FLUSH_TIMEOUT);
+        consent = storedUserConsent.get();
+        // a response may have set its consent while the stored one was decoded
+        synchronized (consentSnapshot) {
+            if (userConsent == null) userConsent = consent;
+            return userConsent;
+        }
+    }
+
+    /**
+     * Purpose and vendor checks straight from the euconsent, which is read with the other stored values on the
+     * writer after build and replaced by every response, so unlike getUserConsent() it never decodes the stored consent.
+     * @return the euconsent decoded, null if there is none or it isn't a TCF v2 consent string
+     */
+    public TCString getTCString() {
+        String consentString = euConsent;
+        TCString decoded = tcString;
+        if (decoded == null || decoded.consentString != consentString) {
+            decoded = TCString.parseOrNull(consentString);
+            tcString = decoded;
+        }
+        return decoded;
+    }
+
+    /**
+     * Lock free and never half built: a new snapshot is published as a whole with every new consent.
+     * Until the first response it's the stored consent, with version 0.
+     * @return ConsentSnapshot - of the consent getUserConsent() returns
+     */
+    public ConsentSnapshot getConsentSnapshot() {
+        ConsentSnapshot snapshot = consentSnapshot.get();
+        if (snapshot != null) return snapshot;
+        // if a response publishes its consent meanwhile, that one wins
+        consentSnapshot.compareAndSet(null, new ConsentSnapshot(getUserConsent(), 0));
+        return consentSnapshot.get();
+    }
+
+    // The consent is only replaced through here so its snapshot follows. Callbacks of different requests
+    // can race, the lock keeps the field and the snapshot on the same consent.
+    private void setUserConsent(GDPRUserConsent consent) {
+        ConsentSnapshot snapshot = new ConsentSnapshot(consent, 0);
+        synchronized (consentSnapshot) {
+            ConsentSnapshot previous = consentSnapshot.get();
+            userConsent = consent;
+            consentSnapshot.set(snapshot.withVersion(previous != null ? previous.getVersion() + 1 : 1));
+        }
+    }
+
+    /**
+     * Called on the UI thread right before onConsentReady, only when the consent changed since the previous
+     * call or, the first time, since the first consent change listener was added.
+     * Adding the first listener reads the stored consent if there is no response yet, as getConsentSnapshot() does.
+     * @param callback - gets the diff of the previous consent to the new one
+     */
+    public void addConsentChangeListener(OnConsentChangedCallback callback) {
+        consentChangeListeners.addForAny(callback, getConsentSnapshot());
+    }
+
+    /**
+     * As {@link #addConsentChangeListener(OnConsentChangedCallback)} but only called when the vendor was added
+     * or removed or its vendor grant or one of its purpose grants changed.
+     * @param vendorId - id of the vendor, as in userConsent.vendorGrants
+     */
+    public void addVendorChangeListener(String vendorId, OnConsentChangedCallback callback) {
+        consentChangeListeners.addForVendor(vendorId, callback, getConsentSnapshot());
+    }
+
+    /**
+     * As {@link #addConsentChangeListener(OnConsentChangedCallback)} but only called when the purpose grant of
+     * any vendor changed or the purpose was accepted or rejected as a category.
+     * @param purposeId - id of the purpose, as in userConsent.vendorGrants and acceptedCategories
+     */
+    public void addPurposeChangeListener(String purposeId, OnConsentChangedCallback callback) {
+        consentChangeListeners.addForPurpose(purposeId, callback, getConsentSnapshot());
+    }
+
+    /**
+     * @return true if the callback was added, with any scope
+     */
+    public boolean removeConsentChangeListener(OnConsentChangedCallback callback) {
+        return consentChangeListeners.remove(callback);
+    }
+
     private void resetDataFields() {
-        userConsent = new GDPRUserConsent();
+        setUserConsent(new GDPRUserConsent());
         metaData = storeClient.DEFAULT_META_DATA;
         euConsent = storeClient.DEFAULT_EMPTY_CONSENT_STRING;
         consentUUID = null;
     }
 
     public void clearAllData() {
-        resetDataFields();
-        storeClient.clearAllData();
+        synchronized (consentDataLock) {
+            consentDataCleared = true;
+            consentDataLoaded = false;
+            pendingClears++;
+            resetDataFields();
+        }
+        persistence.submit(null, () -> {
+            storeClient.clearAllData();
+            consentActionQueue.reload();
+            // cached messages are keyed by the cleared state too, serving one would bring the old consent back
+            sourcePoint.clearMessageCache();
+        }, error -> consentDataSettled(true));
     }
 
-    void setConsentData(String newAuthId) {
-
-        if (didConsentUserChange(newAuthId, storeClient.getAuthId())) storeClient.clearAllData();
+    /**
+     * Blocks until every consent data write queued so far has reached the disk.
+     * Writes happen in the background, this is meant for the rare caller that can't move on without them,
+     * it shouldn't be called from the UI thread.
+     * @param milliSecond - how long to wait at most
+     * @return true if the writes are done
+     */
+    public boolean flushPendingWrites(long milliSecond) {
+        persistence.submit(null, storeClient::flush);
+        return persistence.flush(milliSecond);
+    }
 
-        euConsent = storeClient.getConsentString();
+    /**
+     * Nothing here waits for the disk: the stored state is read by the writer, behind whatever earlier libs are
+     * still writing, and the calls that need it wait for it with {@link #whenConsentDataLoaded(Runnable)}.
+     */
+    void setConsentData(String newAuthId) {
+        storedUserConsent = new StoredUserConsent(storeClient);
+
+        // values left where older versions kept them are moved by the writer, reads find them either way
+        persistence.submit(null, storeClient::migrate);
+
+        persistence.submit(null, () -> loadConsentData(newAuthId), error -> {
+            if (error != null) Log.d(TAG, "Failed to read the stored consent data: " + error.getMessage());
+            consentDataSettled(false);
+            // actions queued in an earlier session go out once we're online, even if the CMP isn't opened again
+            if (!consentActionQueue.isEmpty()) connectivityWatcher.start();
+            // decoding every vendor grant is kept off the thread building the lib, userConsent is set once it's done
+            consentDecoder.execute(this::getUserConsent);
+        });
+    }
 
-        metaData = storeClient.getMetaData();
+    // Runs on the writer thread
+    private void loadConsentData(String newAuthId) {
+        ConsentState state = ConsentStatePreloader.take(consentStorage, STORE_FLUSH_TIMEOUT);
+        if (state == null) state = storeClient.readConsentState();
 
-        consentUUID = storeClient.getConsentUUID();
+        String oldAuthId = state.authId;
+        if (didConsentUserChange(newAuthId, oldAuthId)) {
+            storeClient.switchUser(oldAuthId, newAuthId);
+            consentActionQueue.reload();
+            state = storeClient.readConsentState();
+        }
 
-        try {
-            userConsent = storeClient.getUserConsent();
-        } catch (ConsentLibException e) {
-            userConsent = new GDPRUserConsent();
+        synchronized (consentDataLock) {
+            if (!consentDataCleared) {
+                euConsent = state.euConsent;
+                metaData = state.metaData;
+                consentUUID = state.consentUUID;
+            }
         }
 
         storeClient.setAuthId(newAuthId);
-
         storeClient.setCmpSdkID();
-
         storeClient.setCmpSdkVersion();
     }
 
+    // Runs on the writer thread after the read or a clear, calls waiting for the stored state go on once no clear is left
+    private void consentDataSettled(boolean cleared) {
+        synchronized (consentDataLock) {
+            if (cleared) pendingClears--;
+            if (pendingClears == 0) consentDataLoaded = true;
+        }
+    }
+
+    // Runs next once the stored state is read: right away if it is, otherwise on the writer thread as soon as it is
+    private void whenConsentDataLoaded(Runnable next) {
+        if (consentDataLoaded) {
+            next.run();
+            return;
+        }
+        persistence.submit(null, () -> { }, error -> next.run());
+    }
+
     private boolean didConsentUserChange(String newAuthId, String oldAuthId) {
         return oldAuthId != null && newAuthId != null && !newAuthId.equals(oldAuthId);
     }
@@ -200,7 +427,8 @@ public class GDPRConsentLib {
 
             @Override
             public void onConsentUIReady(boolean isFromPM) {
-                showView(this , isFromPM);
+                if (isFromPM) showView(this, true);
+                else runOrPark(() -> showView(this , false));
             }
 
             @Override
@@ -309,18 +537,100 @@ public class GDPRConsentLib {
      */
     public void run() {
         try {
+            runStartedAt = SystemClock.elapsedRealtime();
             mCountDownTimer.start();
+            if (consumePrefetch()) return;
+            flushConsentActions(this::loadMessage);
+        } catch (Exception e) {
+            onErrorTask(new ConsentLibException(e, "Unexpected error on consentLib.run()"));
+        }
+    }
+
+    private void loadMessage() {
+        try {
             renderMsgAndSaveConsent();
+        } catch (ConsentLibException.NoInternetConnectionException e) {
+            onLoadMessageFailed(e);
         } catch (Exception e) {
             onErrorTask(new ConsentLibException(e, "Unexpected error on consentLib.run()"));
         }
     }
 
+    private void onLoadMessageFailed(ConsentLibException e) {
+        // the user's last choice is still waiting to be sent, there is no point in asking again
+        if (e instanceof ConsentLibException.NoInternetConnectionException && !consentActionQueue.isEmpty())
+            runOrPark(() -> consentFinished());
+        else onErrorTask(e);
+    }
+
+    /**
+     * Starts loading the message ahead of {@link #run()}, e.g. from a splash screen. The message request
+     * is sent and, if there is a message to show, the WebView is built and loaded off-screen. No callback is
+     * called until run() which, if the prefetched result is still fresh, shows the message or finishes
+     * right away instead of starting from scratch. A failed prefetch is silently discarded and run() starts over.
+     */
+    public void prefetch() {
+        synchronized (prefetchLock) {
+            if (prefetching) return;
+            prefetching = true;
+            prefetchFailed = false;
+            prefetchedStep = null;
+            prefetchStartedAt = SystemClock.elapsedRealtime();
+        }
+        flushConsentActions(this::loadMessage);
+    }
+
+    // Runs the step that hands the result to the host, or keeps it for run() while prefetching.
+    private void runOrPark(Runnable step) {
+        synchronized (prefetchLock) {
+            if (prefetching) {
+                prefetchedStep = step;
+                return;
+            }
+        }
+        step.run();
+    }
+
+    // Returns true if run() was served by the ongoing or finished prefetch.
+    private boolean consumePrefetch() {
+        Runnable step;
+        synchronized (prefetchLock) {
+            if (!prefetching) return false;
+            prefetching = false;
+            step = prefetchedStep;
+            prefetchedStep = null;
+            boolean isStale = SystemClock.elapsedRealtime() - prefetchStartedAt > PREFETCH_MAX_AGE;
+            if (prefetchFailed || (step != null && isStale)) return false;
+        }
+        // if the prefetch is still in flight its result is handed over as soon as it arrives
+        if (step != null) step.run();
+        return true;
+    }
+
+    private void cancelPrefetch() {
+        synchronized (prefetchLock) {
+            prefetching = false;
+            prefetchedStep = null;
+        }
+    }
+
+    // Errors during a prefetch are kept away from the host, run() will try again.
+    private boolean discardFailedPrefetch(ConsentLibException e) {
+        synchronized (prefetchLock) {
+            if (!prefetching) return false;
+            prefetchFailed = true;
+            prefetchedStep = null;
+        }
+        Log.d(TAG, "prefetch failed, run() will load the message again: " + e.consentLibErrorMessage);
+        return true;
+    }
+
     public void showPm() {
         try {
+            cancelPrefetch();
             mCountDownTimer.start();
             isPmOn = true;
-            loadConsentUI(pmUrl());
+            flushConsentActions(() -> loadConsentUI(pmUrl()));
         } catch (Exception e) {
             onErrorTask(new ConsentLibException(e, "Unexpected error on consentLib.showPm()"));
         }
@@ -328,10 +638,12 @@ public class GDPRConsentLib {
 
     public void run(NativeMessage v) {
         try {
+            runStartedAt = SystemClock.elapsedRealtime();
+            cancelPrefetch();
             mCountDownTimer.start();
             nativeView = v;
             isNative = true;
-            renderMsgAndSaveConsent();
+            flushConsentActions(this::loadMessage);
         } catch (Exception e) {
             onErrorTask(new ConsentLibException(e, "Error trying to load pm URL."));
         }
@@ -351,14 +663,45 @@ public class GDPRConsentLib {
             ArrayList<String> legIntCategories,
             OnConsentReadyCallback onCustomConsentReady
     ) {
-        try {
-            mCountDownTimer.start();
-            sendCustomConsents(paramsToSendCustomConsents(vendors, categories, legIntCategories), onCustomConsentReady);
-        } catch (ConsentLibException e) {
-            onErrorTask(e);
-        } catch (Exception e) {
-            onErrorTask(new ConsentLibException(e, "Error trying to send custom consents."));
+        if (customConsentBatchWindow > 0) {
+            synchronized (customConsentBatchLock) {
+                boolean opensBatch = customConsentBatch == null;
+                if (opensBatch) customConsentBatch = new CustomConsentBatch();
+                customConsentBatch.add(vendors, categories, legIntCategories, onCustomConsentReady);
+                if (!opensBatch) return;
+            }
+            CustomConsentBatch.scheduler().schedule(this::sendCustomConsentBatch, customConsentBatchWindow, TimeUnit.MILLISECONDS);
+            return;
         }
+        sendCustomConsents(vendors, categories, legIntCategories, onCustomConsentReady);
+    }
+
+    private void sendCustomConsentBatch() {
+        CustomConsentBatch batch;
+        synchronized (customConsentBatchLock) {
+            batch = customConsentBatch;
+            customConsentBatch = null;
+        }
+        Log.d(TAG, "Sending " + batch.vendors.size() + " vendors of batched custom consents");
+        sendCustomConsents(new ArrayList<>(batch.vendors), new ArrayList<>(batch.categories), new ArrayList<>(batch.legIntCategories), batch.callback());
+    }
+
+    private void sendCustomConsents(
+            ArrayList<String> vendors,
+            ArrayList<String> categories,
+            ArrayList<String> legIntCategories,
+            OnConsentReadyCallback onCustomConsentReady
+    ) {
+        mCountDownTimer.start();
+        whenConsentDataLoaded(() -> {
+            try {
+                sendCustomConsents(paramsToSendCustomConsents(vendors, categories, legIntCategories), onCustomConsentReady);
+            } catch (ConsentLibException e) {
+                onErrorTask(e);
+            } catch (Exception e) {
+                onErrorTask(new ConsentLibException(e, "Error trying to send custom consents."));
+            }
+        });
     }
 
     private void renderMsgAndSaveConsent() throws ConsentLibException {
@@ -366,21 +709,19 @@ public class GDPRConsentLib {
             @Override
             public void onSuccess(Object result) {
                 try {
-                    JSONObject jsonResult = new JSONObject((String) result);
-                    consentUUID = jsonResult.getString("uuid");
-                    metaData = jsonResult.getString("meta");
-                    JSONObject jConsent = jsonResult.getJSONObject("userConsent");
-                    jConsent.put("uuid", consentUUID);
-                    userConsent = new GDPRUserConsent(jsonResult.getJSONObject("userConsent"), consentUUID);
-                    storeData();
-                    if (jsonResult.has("msgJSON") && !jsonResult.isNull("msgJSON")) {
-                        setNativeMessageView(jsonResult.getJSONObject("msgJSON"));
+                    ConsentResponse response = (ConsentResponse) result;
+                    euConsent = response.userConsent.consentString;
+                    consentUUID = response.uuid;
+                    metaData = response.meta;
+                    setUserConsent(response.userConsent);
+                    storeDataOnce(response, orError(() -> {
+                        if (!response.hasMessage()) runOrPark(() -> consentFinished());
+                    }));
+                    if (response.msgJSON != null) {
+                        setNativeMessageView(response.msgJSON);
                         showView(nativeView,false);
-                    } else if(jsonResult.has("url") && !jsonResult.isNull("url")){
-                        loadConsentUI(jsonResult.getString("url")+"&consentUUID="+consentUUID);
-                    } else {
-                        storeData();
-                        consentFinished();
+                    } else if(response.url != null){
+                        loadConsentUI(response.url+"&consentUUID="+consentUUID);
                     }
                 } catch (Exception e) {
                     onErrorTask(new ConsentLibException(e, "Error trying to parse response from getConsents."));
@@ -389,13 +730,14 @@ public class GDPRConsentLib {
 
             @Override
             public void onFailure(ConsentLibException exception) {
-                onErrorTask(exception);
+                onLoadMessageFailed(exception);
             }
         });
     }
 
     void showView(View view, boolean isFromPM) {
         mCountDownTimer.cancel();
+        logTimeSinceRun("consent UI ready");
         if (!hasParent(view)) {
             runOnLiveActivityUIThread(() -> GDPRConsentLib.this.onConsentUIReady.run(view));
         }
@@ -471,19 +813,23 @@ public class GDPRConsentLib {
     }
 
     protected void sendConsent(ConsentAction action)  {
+        whenConsentDataLoaded(() -> sendConsentAction(action));
+    }
+
+    private void sendConsentAction(ConsentAction action) {
+        JSONObject params = null;
         try {
-            sourcePoint.sendConsent(paramsToSendConsent(action), new OnLoadComplete() {
+            params = paramsToSendConsent(action);
+            sourcePoint.sendConsent(params, new OnLoadComplete() {
                 @Override
                 public void onSuccess(Object result) {
                     try {
-                        JSONObject jsonResult = new JSONObject((String) result);
-                        JSONObject jsonUserConsent = jsonResult.getJSONObject("userConsent");
-                        euConsent = jsonUserConsent.getString("euconsent");
-                        consentUUID = jsonResult.getString("uuid");
-                        metaData = jsonResult.getString("meta");
-                        userConsent = new GDPRUserConsent(jsonUserConsent, consentUUID);
-                        storeData();
-                        consentFinished();
+                        ConsentResponse response = (ConsentResponse) result;
+                        euConsent = response.userConsent.consentString;
+                        consentUUID = response.uuid;
+                        metaData = response.meta;
+                        setUserConsent(response.userConsent);
+                        storeDataOnce(response, orError(() -> consentFinished()));
                     } catch (Exception e) {
                         onErrorTask(new ConsentLibException(e, "Error trying to parse response from sendConsents."));
                     }
@@ -494,11 +840,71 @@ public class GDPRConsentLib {
                     onErrorTask(exception);
                 }
             });
+        } catch (ConsentLibException.NoInternetConnectionException e) {
+            queueConsentAction(params);
+        } catch (ConsentLibException e) {
+            onErrorTask(e);
+        }
+    }
+
+    // Keeps the action for the next time we're online and finishes with the consent we already have
+    private void queueConsentAction(JSONObject params) {
+        try {
+            consentActionQueue.enqueue(params);
+            connectivityWatcher.start();
+            Log.d(TAG, "No internet connection, consent action queued to be sent later");
+            consentFinished();
         } catch (ConsentLibException e) {
             onErrorTask(e);
         }
     }
 
+    // Sends the queued consent actions, oldest first, then runs next whether they could be sent or not.
+    // The consent endpoint takes one action per request, and each response is the consent the next one is
+    // sent against, so they go one after the other. A newer action supersedes the queued one for the same
+    // uuid, the queue rarely holds more than one.
+    private void flushConsentActions(Runnable next) {
+        whenConsentDataLoaded(() -> sendConsentActions(next));
+    }
+
+    private void sendConsentActions(Runnable next) {
+        JSONObject params = consentActionQueue.peek();
+        if (params == null) {
+            connectivityWatcher.stop();
+            next.run();
+            return;
+        }
+        try {
+            sourcePoint.sendConsent(params, new OnLoadComplete() {
+                @Override
+                public void onSuccess(Object result) {
+                    consentActionQueue.remove(params);
+                    ConsentResponse response = (ConsentResponse) result;
+                    euConsent = response.userConsent.consentString;
+                    consentUUID = response.uuid;
+                    metaData = response.meta;
+                    setUserConsent(response.userConsent);
+                    storeDataOnce(response, error -> {
+                        if (error == null) {
+                            sendConsentActions(next);
+                            return;
+                        }
+                        Log.d(TAG, "Error trying to store the response of a queued consent action: " + error.getMessage());
+                        next.run();
+                    });
+                }
+
+                @Override
+                public void onFailure(ConsentLibException exception) {
+                    Log.d(TAG, "Failed to send queued consent action, will try again later: " + exception.consentLibErrorMessage);
+                    next.run();
+                }
+            });
+        } catch (ConsentLibException e) {
+            next.run();
+        }
+    }
+
     private JSONObject paramsToSendCustomConsents(
             ArrayList<String> vendors,
             ArrayList<String> categories,
@@ -524,7 +930,7 @@ public class GDPRConsentLib {
                 public void onSuccess(Object result) {
                     try {
                         JSONObject jsonResult = new JSONObject((String) result);
-                        userConsent = new GDPRUserConsent(fullConsentObj(jsonResult), consentUUID);
+                        setUserConsent(getUserConsent().withCustomConsent(jsonResult, consentUUID));
                         consentFinished(c);
                     } catch (Exception e) {
                         onErrorTask(new ConsentLibException(e, "Error trying to parse response from sendConsents."));
@@ -540,15 +946,6 @@ public class GDPRConsentLib {
         }
     }
 
-    private JSONObject fullConsentObj(JSONObject customConsent) throws JSONException, ConsentLibException {
-        JSONObject fullObj = storeClient.getUserConsent().toJsonObject();
-        fullObj.put("acceptedVendors", customConsent.getJSONArray("vendors"));
-        fullObj.put("acceptedCategories", customConsent.getJSONArray("categories"));
-        fullObj.put("specialFeatures", customConsent.getJSONArray("specialFeatures"));
-        fullObj.put("legIntCategories", customConsent.getJSONArray("legIntCategories"));
-        return fullObj;
-    }
-
 
     String pmUrl() {
         HashSet<String> params = new HashSet<>();
@@ -566,9 +963,10 @@ public class GDPRConsentLib {
     }
 
     void onErrorTask(ConsentLibException e) {
+        if (discardFailedPrefetch(e)) return;
         this.error = e;
         if (shouldCleanConsentOnError) {
-            storeClient.clearConsentData();
+            persistence.submit(null, storeClient::clearConsentData);
         }
         mCountDownTimer.cancel();
         closeCurrentMessageView(isPmOn);
@@ -578,22 +976,63 @@ public class GDPRConsentLib {
         });
     }
 
-    void storeData() throws JSONException, ConsentLibException {
-        storeClient.setConsentUuid(consentUUID);
-        storeClient.setMetaData(metaData);
-        storeClient.setTCData(userConsent.TCData);
-        storeClient.setConsentString(euConsent);
-        storeClient.setUserConsents(userConsent);
+    void storeData(String consentUUID, String metaData, String euConsent, GDPRUserConsent userConsent) throws JSONException, ConsentLibException {
+        StoreClient.Transaction transaction = storeClient.edit()
+                .setConsentUuid(consentUUID)
+                .setMetaData(metaData)
+                .setTCData(userConsent.TCData)
+                .setConsentString(euConsent)
+                .setUserConsents(userConsent);
+        transaction.apply();
+        TCDataDelta tcDataDelta = transaction.getTCDataDelta();
+        if (tcDataDelta != null) Log.d(TAG, "TC data " + tcDataDelta + ", " + storeClient.getTCDataChanges() + " changes in " + storeClient.getTCDataWrites() + " writes");
+    }
+
+    /**
+     * Queues the write of the current consent data and calls onStored once it's done, so whoever is told the
+     * consent is ready finds it stored. Each write replaces all of the consent data, so one still waiting
+     * is dropped for a newer one. A response shared by coalesced requests is persisted by the first lib
+     * that handles it only, the others wait for that write to land before moving on.
+     */
+    private void storeDataOnce(ConsentResponse response, PersistenceQueue.OnWritten onStored) {
+        if (!response.claimStore()) {
+            response.whenStored(onStored);
+            return;
+        }
+        String consentUUID = this.consentUUID, metaData = this.metaData, euConsent = this.euConsent;
+        GDPRUserConsent userConsent = getUserConsent();
+        persistence.submit(STORE_DATA_WRITE, () -> storeData(consentUUID, metaData, euConsent, userConsent), error -> {
+            try {
+                onStored.run(error);
+            } finally {
+                response.stored(error);
+            }
+        });
+    }
+
+    private PersistenceQueue.OnWritten orError(Runnable next) {
+        return error -> {
+            if (error != null) onErrorTask(new ConsentLibException(error, "Error trying to store the consent."));
+            else next.run();
+        };
     }
 
     void consentFinished(OnConsentReadyCallback c) {
         mCountDownTimer.cancel();
+        logTimeSinceRun("consent ready");
         runOnLiveActivityUIThread(() -> {
-            c.run(userConsent);
+            ConsentDiff diff = consentChangeListeners.dispatch(getConsentSnapshot());
+            if (diff != null) Log.d(TAG, "consent " + diff);
+            c.run(getUserConsent());
             releaseActivity();
         });
     }
 
+    private void logTimeSinceRun(String event) {
+        if (runStartedAt > 0)
+            Log.d(TAG, event + " " + (SystemClock.elapsedRealtime() - runStartedAt) + "ms after run()");
+    }
+
     public void releaseActivity(){
         activity = null;
     }
@@ -6,6 +6,7 @@ import org.json.JSONObject;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
 
 import static com.sourcepoint.gdpr_cmplibrary.CustomJsonParser.getBoolean;
 import static com.sourcepoint.gdpr_cmplibrary.CustomJsonParser.getHashMap;
@@ -23,6 +24,12 @@ public class GDPRUserConsent {
     public HashMap TCData;
     public VendorGrants vendorGrants;
 
+    // compiled from vendorGrants on the first query
+    private volatile GrantIndex grantIndex;
+
+    // decoded from consentString on the first call to getTCString()
+    private volatile TCString tcString;
+
     public GDPRUserConsent() {
         acceptedVendors = new ArrayList<>();
         acceptedCategories = new ArrayList<>();
@@ -47,6 +54,27 @@ public class GDPRUserConsent {
         init(jConsent);
     }
 
+    /**
+     * The consent a custom consent response leads to: its accepted vendors and categories, special features
+     * and legitimate interest categories, with the grants, TC data and consent string of this one.
+     * Everything is copied, nothing goes through JSON but the response arrays.
+     */
+    GDPRUserConsent withCustomConsent(JSONObject customConsent, String uuid) throws JSONException {
+        GDPRUserConsent merged = new GDPRUserConsent();
+        merged.uuid = uuid;
+        merged.acceptedVendors = json2StrArr(customConsent.getJSONArray("vendors"));
+        merged.acceptedCategories = json2StrArr(customConsent.getJSONArray("categories"));
+        merged.specialFeatures = json2StrArr(customConsent.getJSONArray("specialFeatures"));
+        merged.legIntCategories = json2StrArr(customConsent.getJSONArray("legIntCategories"));
+        merged.consentString = consentString;
+        merged.TCData = copyTCData(TCData);
+        for (Map.Entry<String, VendorGrants.VendorGrant> vendor : vendorGrants.entrySet()) {
+            VendorGrants.VendorGrant grant = vendor.getValue();
+            merged.vendorGrants.put(vendor.getKey(), merged.vendorGrants.new VendorGrant(grant.vendorGrant, new HashMap<>(grant.purposeGrants)));
+        }
+        return merged;
+    }
+
     private void init(JSONObject jConsent) throws ConsentLibException {
         try {
             uuid = jConsent.getString("uuid");
@@ -63,6 +91,48 @@ public class GDPRUserConsent {
         }
     }
 
+    /**
+     * @return whether the vendor may use the purpose, false if either is unknown
+     */
+    public boolean hasConsent(String vendorId, String purposeId) {
+        return getGrantIndex().isPurposeGranted(vendorId, purposeId);
+    }
+
+    /**
+     * @return whether the vendor is granted every purpose it asked for, false if it's unknown
+     */
+    public boolean isVendorGranted(String vendorId) {
+        return getGrantIndex().isVendorGranted(vendorId);
+    }
+
+    /**
+     * The vendorGrants maps compiled for repeated checks. It's built on the first call and again only when
+     * vendorGrants is replaced, changes made to the maps in place aren't picked up.
+     * @return GrantIndex - of the current vendorGrants
+     */
+    public GrantIndex getGrantIndex() {
+        VendorGrants grants = vendorGrants;
+        GrantIndex index = grantIndex;
+        if (index == null || index.source != grants) {
+            index = new GrantIndex(grants);
+            grantIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * @return consentString decoded, null if it's empty or isn't a TCF v2 consent string
+     */
+    public TCString getTCString() {
+        String consentString = this.consentString;
+        TCString decoded = tcString;
+        if (decoded == null || decoded.consentString != consentString) {
+            decoded = TCString.parseOrNull(consentString);
+            tcString = decoded;
+        }
+        return decoded;
+    }
+
     private ArrayList<String> json2StrArr(JSONArray jArray) throws JSONException {
         ArrayList<String> listData = new ArrayList();
         if (jArray != null) {
@@ -73,6 +143,13 @@ public class GDPRUserConsent {
         return listData;
     }
 
+    // TCData is a raw HashMap, copying it entry by entry gives a typed copy without unchecked conversions
+    static HashMap<String, Object> copyTCData(Map<?, ?> tcData) {
+        HashMap<String, Object> copy = new HashMap<>();
+        for (Map.Entry<?, ?> entry : tcData.entrySet()) copy.put((String) entry.getKey(), entry.getValue());
+        return copy;
+    }
+
     public JSONObject toJsonObject() throws JSONException, ConsentLibException {
         JSONObject jsonConsents = new JSONObject();
         jsonConsents.put("acceptedVendors", new JSONArray(acceptedVendors));
@@ -114,6 +191,10 @@ public class GDPRUserConsent {
                 vendorGrant = getBoolean("vendorGrant", jVendorGrant);
                 purposeGrants = getHashMap(getJson("purposeGrants", jVendorGrant));
             }
+            VendorGrant(boolean vendorGrant, HashMap<String, Boolean> purposeGrants) {
+                this.vendorGrant = vendorGrant;
+                this.purposeGrants = purposeGrants;
+            }
             public String toString(){
                 return "{" + "vendorGrant=" + vendorGrant + ", " + "purposeGrants=" + purposeGrants + "}";
             }
@@ -0,0 +1,106 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Vendor grants compiled into bitsets: every vendor and purpose id gets an ordinal, granted vendors are
+ * a bitset over the vendor ordinals and each vendor has a bitset over the purpose ordinals.
+ * Checks by ordinal are a couple of array reads; callers asking the same question many times (e.g. once
+ * per ad request) can resolve the ordinals once and skip hashing the ids too. No query allocates.
+ */
+public final class GrantIndex {
+
+    // the maps it was compiled from
+    final Map<String, GDPRUserConsent.VendorGrants.VendorGrant> source;
+
+    private final HashMap<String, Integer> vendorOrdinals = new HashMap<>();
+    private final HashMap<String, Integer> purposeOrdinals = new HashMap<>();
+
+    private final long[] grantedVendors;
+
+    // purpose bitsets of all vendors back to back, wordsPerVendor longs each
+    private final long[] purposeGrants;
+    private final int wordsPerVendor;
+
+    GrantIndex(Map<String, GDPRUserConsent.VendorGrants.VendorGrant> vendorGrants) {
+        source = vendorGrants;
+        for (GDPRUserConsent.VendorGrants.VendorGrant grant : vendorGrants.values()) {
+            for (String purpose : grant.purposeGrants.keySet()) {
+                if (!purposeOrdinals.containsKey(purpose)) purposeOrdinals.put(purpose, purposeOrdinals.size());
+            }
+        }
+        wordsPerVendor = words(purposeOrdinals.size());
+        grantedVendors = new long[words(vendorGrants.size())];
+        purposeGrants = new long[vendorGrants.size() * wordsPerVendor];
+        for (Map.Entry<String, GDPRUserConsent.VendorGrants.VendorGrant> vendor : vendorGrants.entrySet()) {
+            int ordinal = vendorOrdinals.size();
+            vendorOrdinals.put(vendor.getKey(), ordinal);
+            if (vendor.getValue().vendorGrant) set(grantedVendors, 0, ordinal);
+            for (Map.Entry<String, Boolean> purpose : vendor.getValue().purposeGrants.entrySet()) {
+                if (Boolean.TRUE.equals(purpose.getValue())) set(purposeGrants, ordinal * wordsPerVendor, purposeOrdinals.get(purpose.getKey()));
+            }
+        }
+    }
+
+    /**
+     * @return the ordinal of the vendor or -1 if it has no grants
+     */
+    public int vendorOrdinal(String vendorId) {
+        Integer ordinal = vendorOrdinals.get(vendorId);
+        return ordinal != null ? ordinal : -1;
+    }
+
+    /**
+     * @return the ordinal of the purpose or -1 if no vendor has a grant for it
+     */
+    public int purposeOrdinal(String purposeId) {
+        Integer ordinal = purposeOrdinals.get(purposeId);
+        return ordinal != null ? ordinal : -1;
+    }
+
+    public int vendorCount() {
+        return vendorOrdinals.size();
+    }
+
+    public int purposeCount() {
+        return purposeOrdinals.size();
+    }
+
+    /**
+     * @param vendor - ordinal from vendorOrdinal(), -1 reads as not granted
+     */
+    public boolean isVendorGranted(int vendor) {
+        return vendor >= 0 && vendor < vendorOrdinals.size() && isSet(grantedVendors, 0, vendor);
+    }
+
+    /**
+     * @param vendor - ordinal from vendorOrdinal(), -1 reads as not granted
+     * @param purpose - ordinal from purposeOrdinal(), -1 reads as not granted
+     */
+    public boolean isPurposeGranted(int vendor, int purpose) {
+        return vendor >= 0 && vendor < vendorOrdinals.size()
+                && purpose >= 0 && purpose < purposeOrdinals.size()
+                && isSet(purposeGrants, vendor * wordsPerVendor, purpose);
+    }
+
+    public boolean isVendorGranted(String vendorId) {
+        return isVendorGranted(vendorOrdinal(vendorId));
+    }
+
+    public boolean isPurposeGranted(String vendorId, String purposeId) {
+        return isPurposeGranted(vendorOrdinal(vendorId), purposeOrdinal(purposeId));
+    }
+
+    private static int words(int bits) {
+        return (bits + 63) >>> 6;
+    }
+
+    private static void set(long[] bits, int offset, int bit) {
+        bits[offset + (bit >>> 6)] |= 1L << bit;
+    }
+
+    private static boolean isSet(long[] bits, int offset, int bit) {
+        return (bits[offset + (bit >>> 6)] & (1L << bit)) != 0;
+    }
+}
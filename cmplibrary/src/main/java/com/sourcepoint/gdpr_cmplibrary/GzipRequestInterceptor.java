@@ -0,0 +1,49 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import java.io.IOException;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+/**
+ * Gzips request bodies of at least threshold bytes and marks them with Content-Encoding: gzip.
+ * The compressed body is buffered so it's sent with a Content-Length instead of chunked.
+ * Responses need nothing from us, OkHttp asks for gzip and decompresses it transparently.
+ */
+class GzipRequestInterceptor implements Interceptor {
+
+    private final long threshold;
+
+    GzipRequestInterceptor(long threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        RequestBody body = request.body();
+        if (body == null || request.header("Content-Encoding") != null || body.contentLength() < threshold) {
+            return chain.proceed(request);
+        }
+        return chain.proceed(request.newBuilder()
+                .header("Content-Encoding", "gzip")
+                .method(request.method(), gzip(body))
+                .build());
+    }
+
+    static RequestBody gzip(RequestBody body) throws IOException {
+        Buffer compressed = new Buffer();
+        BufferedSink sink = Okio.buffer(new GzipSink(compressed));
+        body.writeTo(sink);
+        sink.close();
+        MediaType contentType = body.contentType();
+        return RequestBody.create(contentType, compressed.readByteString());
+    }
+}
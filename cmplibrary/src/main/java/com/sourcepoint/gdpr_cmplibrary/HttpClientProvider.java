@@ -0,0 +1,46 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+/**
+ * Holds the OkHttpClient shared by every GDPRConsentLib instance in the process.
+ * Sharing one client means sharing its dispatcher, connection pool and TLS session cache,
+ * so consecutive consent runs reuse the warm connection to wrapper-api instead of paying
+ * a new TCP + TLS handshake each time the lib is built.
+ */
+final class HttpClientProvider {
+
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+
+    private static volatile OkHttpClient sharedClient;
+
+    private HttpClientProvider() { }
+
+    static OkHttpClient getSharedClient() {
+        OkHttpClient client = sharedClient;
+        if (client == null) {
+            synchronized (HttpClientProvider.class) {
+                client = sharedClient;
+                if (client == null) {
+                    client = newSharedClient();
+                    sharedClient = client;
+                }
+            }
+        }
+        return client;
+    }
+
+    private static OkHttpClient newSharedClient() {
+        return new OkHttpClient.Builder()
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .retryOnConnectionFailure(true)
+                .build();
+    }
+}
@@ -0,0 +1,35 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import java.util.HashMap;
+
+/**
+ * Keeps the values in memory only, they're gone with the process. Meant for tests and benchmarks.
+ */
+public class InMemoryConsentStorage implements ConsentStorage {
+
+    private final HashMap<String, String> values = new HashMap<>();
+
+    @Override
+    public synchronized String getString(String key, String defaultValue) {
+        String value = values.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return values.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new StagingEditor() {
+            @Override
+            boolean write(HashMap<String, String> changes) {
+                synchronized (InMemoryConsentStorage.this) {
+                    StagingEditor.merge(values, changes);
+                }
+                return true;
+            }
+        };
+    }
+}
@@ -0,0 +1,43 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import java.util.Arrays;
+
+/**
+ * Fixed size ring buffer of the most recent request latencies, in milliseconds.
+ * Percentiles are computed on demand over the samples currently held.
+ */
+class LatencyTracker {
+
+    private final long[] samples;
+    private int count, next;
+
+    LatencyTracker(int capacity) {
+        samples = new long[capacity];
+    }
+
+    synchronized void record(long millis) {
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) count++;
+    }
+
+    synchronized int size() {
+        return count;
+    }
+
+    /**
+     * @param percentile - between 0 and 100
+     * @return the nearest-rank percentile of the recorded samples or -1 if there are none
+     */
+    synchronized long percentile(double percentile) {
+        if (count == 0) return -1;
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100 * count);
+        return sorted[Math.max(0, Math.min(count, rank) - 1)];
+    }
+
+    synchronized void clear() {
+        count = next = 0;
+    }
+}
@@ -0,0 +1,291 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only view of the TC data and vendor grants for processes other than the one running the lib
+ * (e.g. :ads or :sync), which can't rely on SharedPreferences. The lib publishes them to a file that is
+ * written elsewhere and renamed over the previous one, so a reader maps a complete snapshot without
+ * locking and looks values up in place through binary search. Every snapshot carries a sequence number
+ * one higher than the one it replaces, refresh() compares it to find out about a newer one.
+ * Publishing is enabled with {@link ConsentLibBuilder#setPublishMappedConsent(boolean)}.
+ *
+ * Layout, big endian, offsets into the string area, records sorted by the unsigned bytes of their key:
+ *   header: magic "SPMC", version, sequence (long), TC data count and index offset, vendor count and
+ *     index offset, purpose index offset, string area offset
+ *   TC data records: key offset, key length, type (0 int, 1 string), int value or string offset, string length
+ *   vendor records: id offset, id length, vendor grant, first purpose record, purpose count
+ *   purpose records: id offset, id length, purpose grant
+ *   string area: UTF-8 bytes
+ */
+public class MappedConsent {
+
+    private static final String TAG = "MappedConsent";
+
+    public static final String FILE_NAME = "sp_gdpr_consent.map";
+
+    private static final int MAGIC = 0x53504D43;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 40, TC_RECORD = 20, VENDOR_RECORD = 20, PURPOSE_RECORD = 12;
+    private static final int TYPE_INT = 0, TYPE_STRING = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+
+    // the snapshot currently mapped, replaced as a whole by refresh()
+    private volatile ByteBuffer snapshot;
+
+    MappedConsent(File file) {
+        this.file = file;
+        snapshot = map(file);
+    }
+
+    /**
+     * @param context - any context of the app, from any of its processes
+     */
+    public static MappedConsent open(Context context) {
+        return new MappedConsent(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    /**
+     * @return the sequence number of the mapped snapshot, 0 if there is none
+     */
+    public long getSequence() {
+        ByteBuffer snapshot = this.snapshot;
+        return snapshot != null ? snapshot.getLong(8) : 0;
+    }
+
+    /**
+     * Maps the latest snapshot if it's newer than the one mapped. Only the header of the file is read
+     * to find out, so this is cheap enough to poll.
+     * @return true if a newer snapshot was mapped
+     */
+    public boolean refresh() {
+        if (readSequence(file) <= getSequence()) return false;
+        ByteBuffer latest = map(file);
+        if (latest == null) return false;
+        snapshot = latest;
+        return true;
+    }
+
+    /**
+     * @return the Integer or String stored under an IABTCF_ key or null if there is none
+     */
+    public Object getTCValue(String key) {
+        ByteBuffer snapshot = this.snapshot;
+        if (snapshot == null) return null;
+        int record = find(snapshot, snapshot.getInt(20), snapshot.getInt(16), TC_RECORD, key);
+        if (record < 0) return null;
+        if (snapshot.getInt(record + 8) == TYPE_INT) return snapshot.getInt(record + 12);
+        return string(snapshot, snapshot.getInt(record + 12), snapshot.getInt(record + 16));
+    }
+
+    /**
+     * @return whether the vendor is granted or null if the vendor isn't known
+     */
+    public Boolean isVendorGranted(String vendorId) {
+        ByteBuffer snapshot = this.snapshot;
+        if (snapshot == null) return null;
+        int record = find(snapshot, snapshot.getInt(28), snapshot.getInt(24), VENDOR_RECORD, vendorId);
+        return record < 0 ? null : snapshot.getInt(record + 8) != 0;
+    }
+
+    /**
+     * @return whether the purpose is granted to the vendor or null if either isn't known
+     */
+    public Boolean isPurposeGranted(String vendorId, String purposeId) {
+        ByteBuffer snapshot = this.snapshot;
+        if (snapshot == null) return null;
+        int vendor = find(snapshot, snapshot.getInt(28), snapshot.getInt(24), VENDOR_RECORD, vendorId);
+        if (vendor < 0) return null;
+        int purposes = snapshot.getInt(32) + snapshot.getInt(vendor + 12) * PURPOSE_RECORD;
+        int record = find(snapshot, purposes, snapshot.getInt(vendor + 16), PURPOSE_RECORD, purposeId);
+        return record < 0 ? null : snapshot.getInt(record + 8) != 0;
+    }
+
+    public int getTCDataSize() {
+        ByteBuffer snapshot = this.snapshot;
+        return snapshot != null ? snapshot.getInt(16) : 0;
+    }
+
+    public int getVendorCount() {
+        ByteBuffer snapshot = this.snapshot;
+        return snapshot != null ? snapshot.getInt(24) : 0;
+    }
+
+    // binary search of records whose first two ints are the offset and length of their key
+    private static int find(ByteBuffer snapshot, int index, int count, int recordSize, String key) {
+        byte[] wanted = key.getBytes(UTF_8);
+        int strings = snapshot.getInt(36);
+        int low = 0, high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int record = index + middle * recordSize;
+            int compared = compare(snapshot, strings + snapshot.getInt(record), snapshot.getInt(record + 4), wanted);
+            if (compared == 0) return record;
+            if (compared < 0) low = middle + 1;
+            else high = middle - 1;
+        }
+        return -1;
+    }
+
+    private static int compare(ByteBuffer snapshot, int offset, int length, byte[] wanted) {
+        for (int i = 0; i < length && i < wanted.length; i++) {
+            int a = snapshot.get(offset + i) & 0xFF, b = wanted[i] & 0xFF;
+            if (a != b) return a - b;
+        }
+        return length - wanted.length;
+    }
+
+    private static String string(ByteBuffer snapshot, int offset, int length) {
+        byte[] bytes = new byte[length];
+        int start = snapshot.getInt(36) + offset;
+        for (int i = 0; i < length; i++) bytes[i] = snapshot.get(start + i);
+        return new String(bytes, UTF_8);
+    }
+
+    private static ByteBuffer map(File file) {
+        if (!file.exists()) return null;
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(file, "r");
+            MappedByteBuffer mapped = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+            if (mapped.capacity() < HEADER_SIZE || mapped.getInt(0) != MAGIC || mapped.getInt(4) != FORMAT_VERSION) return null;
+            return mapped;
+        } catch (IOException e) {
+            Log.d(TAG, "Failed to map the consent snapshot: " + e.getMessage());
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static long readSequence(File file) {
+        if (!file.exists()) return 0;
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(file, "r");
+            if (in.length() < HEADER_SIZE || in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) return 0;
+            return in.readLong();
+        } catch (IOException e) {
+            return 0;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes a snapshot with the next sequence number next to the file and renames it over it.
+     * @return false if it couldn't be written, the previous snapshot is left in place
+     */
+    static synchronized boolean publish(File file, Map<String, ?> tcData, Map<String, GDPRUserConsent.VendorGrants.VendorGrant> vendorGrants) {
+        StringArea strings = new StringArea();
+
+        List<? extends Map.Entry<String, ?>> tcEntries = sorted(tcData);
+        ByteBuffer tcIndex = ByteBuffer.allocate(tcEntries.size() * TC_RECORD);
+        for (Map.Entry<String, ?> entry : tcEntries) {
+            strings.put(tcIndex, entry.getKey());
+            if (entry.getValue() instanceof Integer) {
+                tcIndex.putInt(TYPE_INT).putInt((Integer) entry.getValue()).putInt(0);
+            } else {
+                tcIndex.putInt(TYPE_STRING);
+                strings.put(tcIndex, String.valueOf(entry.getValue()));
+            }
+        }
+
+        List<Map.Entry<String, GDPRUserConsent.VendorGrants.VendorGrant>> vendors = sorted(vendorGrants);
+        ByteBuffer vendorIndex = ByteBuffer.allocate(vendors.size() * VENDOR_RECORD);
+        int purposeCount = 0;
+        for (Map.Entry<String, GDPRUserConsent.VendorGrants.VendorGrant> vendor : vendors) purposeCount += vendor.getValue().purposeGrants.size();
+        ByteBuffer purposeIndex = ByteBuffer.allocate(purposeCount * PURPOSE_RECORD);
+        int firstPurpose = 0;
+        for (Map.Entry<String, GDPRUserConsent.VendorGrants.VendorGrant> vendor : vendors) {
+            List<Map.Entry<String, Boolean>> purposes = sorted(vendor.getValue().purposeGrants);
+            strings.put(vendorIndex, vendor.getKey());
+            vendorIndex.putInt(vendor.getValue().vendorGrant ? 1 : 0).putInt(firstPurpose).putInt(purposes.size());
+            for (Map.Entry<String, Boolean> purpose : purposes) {
+                strings.put(purposeIndex, purpose.getKey());
+                purposeIndex.putInt(Boolean.TRUE.equals(purpose.getValue()) ? 1 : 0);
+            }
+            firstPurpose += purposes.size();
+        }
+
+        int tcIndexOffset = HEADER_SIZE;
+        int vendorIndexOffset = tcIndexOffset + tcIndex.capacity();
+        int purposeIndexOffset = vendorIndexOffset + vendorIndex.capacity();
+        int stringsOffset = purposeIndexOffset + purposeIndex.capacity();
+        ByteBuffer snapshot = ByteBuffer.allocate(stringsOffset + strings.size());
+        snapshot.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(readSequence(file) + 1)
+                .putInt(tcEntries.size()).putInt(tcIndexOffset)
+                .putInt(vendors.size()).putInt(vendorIndexOffset)
+                .putInt(purposeIndexOffset).putInt(stringsOffset);
+        snapshot.put(tcIndex.array()).put(vendorIndex.array()).put(purposeIndex.array());
+        snapshot.put(strings.bytes.toByteArray());
+
+        try {
+            ConsentFile.replace(file, snapshot.array());
+            return true;
+        } catch (IOException e) {
+            Log.d(TAG, "Failed to publish the consent snapshot: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static <V> List<Map.Entry<String, V>> sorted(Map<String, V> map) {
+        List<Map.Entry<String, V>> entries = new ArrayList<>(map.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, V>>() {
+            @Override
+            public int compare(Map.Entry<String, V> a, Map.Entry<String, V> b) {
+                return compareUnsigned(a.getKey().getBytes(UTF_8), b.getKey().getBytes(UTF_8));
+            }
+        });
+        return entries;
+    }
+
+    private static int compareUnsigned(byte[] a, byte[] b) {
+        for (int i = 0; i < a.length && i < b.length; i++) {
+            int compared = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (compared != 0) return compared;
+        }
+        return a.length - b.length;
+    }
+
+    private static class StringArea {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        // appends the string and puts its offset and length in the record
+        void put(ByteBuffer record, String value) {
+            byte[] encoded = value.getBytes(UTF_8);
+            record.putInt(bytes.size()).putInt(encoded.length);
+            bytes.write(encoded, 0, encoded.length);
+        }
+
+        int size() {
+            return bytes.size();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) { }
+    }
+}
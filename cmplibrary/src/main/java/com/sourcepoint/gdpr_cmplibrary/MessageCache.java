@@ -0,0 +1,217 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Disk cache for the responses of the message endpoints.
+ * Entries are keyed on a hash of the request url and body (minus the per client requestUUID),
+ * so a new entry is written whenever consentUUID, meta, euconsent or targeting params change.
+ * Only responses without a message to show are stored: a fresh entry is served without touching
+ * the network, a stale one is served right away and revalidated in the background and anything
+ * older than ttl + maxStale is ignored. The directory is bounded in size by evicting the least
+ * recently used entries.
+ */
+class MessageCache {
+
+    private static final String TAG = "MessageCache";
+
+    static final String DIR_NAME = "sp_gdpr_message_cache";
+
+    static final long DEFAULT_MAX_STALE = 24 * 60 * 60 * 1000;
+
+    static final long DEFAULT_MAX_SIZE = 512 * 1024;
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Object lock = new Object();
+
+    private static ExecutorService reader;
+
+    private final File dir;
+    private final long ttl, maxStale, maxSize;
+
+    static class Entry {
+        final String body;
+        final String etag;
+        final long storedAt;
+        private final long ttl, maxStale;
+
+        Entry(String body, String etag, long storedAt, long ttl, long maxStale) {
+            this.body = body;
+            this.etag = etag;
+            this.storedAt = storedAt;
+            this.ttl = ttl;
+            this.maxStale = maxStale;
+        }
+
+        boolean isFresh(long now) {
+            return now - storedAt < ttl;
+        }
+
+        boolean isUsable(long now) {
+            return now - storedAt < ttl + maxStale;
+        }
+    }
+
+    // a single thread that goes away when idle, lookups read the disk and mustn't run on the caller's thread
+    static synchronized ExecutorService reader() {
+        if (reader == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, "sp-gdpr-message-cache");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            reader = executor;
+        }
+        return reader;
+    }
+
+    MessageCache(File dir, long ttl, long maxStale, long maxSize) {
+        this.dir = dir;
+        this.ttl = ttl;
+        this.maxStale = maxStale;
+        this.maxSize = maxSize;
+    }
+
+    // Also identifies requests for SingleFlight: equal keys mean the same request from any client instance
+    static String key(String url, JSONObject params) throws ConsentLibException {
+        try {
+            JSONObject keyParams = new JSONObject();
+            Iterator<String> names = params.keys();
+            while (names.hasNext()) {
+                String name = names.next();
+                if (!"requestUUID".equals(name)) keyParams.put(name, params.opt(name));
+            }
+            return sha256(url + "\n" + keyParams.toString());
+        } catch (JSONException e) {
+            throw new ConsentLibException(e, "Error building message cache key");
+        }
+    }
+
+    Entry get(String key) {
+        synchronized (lock) {
+            File file = new File(dir, key);
+            if (!file.exists()) return null;
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new FileInputStream(file));
+                if (in.readInt() != FORMAT_VERSION) throw new IOException("unknown cache entry format");
+                long storedAt = in.readLong();
+                String etag = in.readUTF();
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                Entry entry = new Entry(new String(body, UTF_8), etag.isEmpty() ? null : etag, storedAt, ttl, maxStale);
+                if (!entry.isUsable(System.currentTimeMillis())) {
+                    file.delete();
+                    return null;
+                }
+                file.setLastModified(System.currentTimeMillis());
+                return entry;
+            } catch (IOException e) {
+                Log.d(TAG, "Dropping unreadable cache entry " + key + ": " + e.getMessage());
+                file.delete();
+                return null;
+            } finally {
+                closeQuietly(in);
+            }
+        }
+    }
+
+    void put(String key, String body, String etag) {
+        put(key, body, etag, System.currentTimeMillis());
+    }
+
+    void put(String key, String body, String etag, long storedAt) {
+        synchronized (lock) {
+            if (!dir.exists() && !dir.mkdirs()) return;
+            File tmp = new File(dir, key + ".tmp");
+            DataOutputStream out = null;
+            try {
+                byte[] bytes = body.getBytes(UTF_8);
+                out = new DataOutputStream(new FileOutputStream(tmp));
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(storedAt);
+                out.writeUTF(etag != null ? etag : "");
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                out.close();
+                out = null;
+                File file = new File(dir, key);
+                if (!tmp.renameTo(file)) throw new IOException("could not rename " + tmp);
+                evict();
+            } catch (IOException e) {
+                Log.d(TAG, "Failed to store cache entry " + key + ": " + e.getMessage());
+                tmp.delete();
+            } finally {
+                closeQuietly(out);
+            }
+        }
+    }
+
+    void remove(String key) {
+        synchronized (lock) {
+            new File(dir, key).delete();
+        }
+    }
+
+    void clear() {
+        synchronized (lock) {
+            File[] files = dir.listFiles();
+            if (files != null) for (File file : files) file.delete();
+        }
+    }
+
+    private void evict() {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        long size = 0;
+        for (File file : files) size += file.length();
+        if (size <= maxSize) return;
+        Arrays.sort(files, (a, b) -> a.lastModified() < b.lastModified() ? -1 : a.lastModified() == b.lastModified() ? 0 : 1);
+        for (int i = 0; i < files.length && size > maxSize; i++) {
+            size -= files[i].length();
+            files[i].delete();
+        }
+    }
+
+    static String sha256(String value) throws ConsentLibException {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new ConsentLibException(e, "SHA-256 not available to build message cache key");
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) { }
+    }
+}
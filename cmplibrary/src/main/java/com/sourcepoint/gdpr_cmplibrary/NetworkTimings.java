@@ -0,0 +1,50 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import java.util.EnumMap;
+
+/**
+ * Percentiles of the phase timings of the most recent calls to SourcePoint, for the whole process.
+ * Only phases that happened are sampled, so DNS, CONNECT and TLS percentiles describe new
+ * connections only.
+ */
+public final class NetworkTimings {
+
+    static final int SAMPLES = 128;
+
+    private static final NetworkTimings instance = new NetworkTimings();
+
+    private final EnumMap<CallTimings.Phase, LatencyTracker> trackers = new EnumMap<>(CallTimings.Phase.class);
+
+    private NetworkTimings() {
+        for (CallTimings.Phase phase : CallTimings.Phase.values()) trackers.put(phase, new LatencyTracker(SAMPLES));
+    }
+
+    public static NetworkTimings getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param phase - the phase of the calls
+     * @param percentile - between 0 and 100, e.g. 50 or 95
+     * @return the percentile in milliseconds of the last {@value #SAMPLES} samples of that phase, -1 if there are none
+     */
+    public long percentile(CallTimings.Phase phase, double percentile) {
+        return trackers.get(phase).percentile(percentile);
+    }
+
+    public int sampleCount(CallTimings.Phase phase) {
+        return trackers.get(phase).size();
+    }
+
+    public void reset() {
+        for (LatencyTracker tracker : trackers.values()) tracker.clear();
+    }
+
+    void record(CallTimings timings) {
+        if (timings.error != null) return;
+        for (CallTimings.Phase phase : CallTimings.Phase.values()) {
+            long millis = timings.get(phase);
+            if (millis >= 0) trackers.get(phase).record(millis);
+        }
+    }
+}
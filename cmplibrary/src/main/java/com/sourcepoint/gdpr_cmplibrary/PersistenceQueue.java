@@ -0,0 +1,142 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single writer for everything the lib persists through StoreClient. Writes run one at a time, in
+ * the order they were submitted, on a background thread, so a late response can't interleave with
+ * an error clearing the consent and no OkHttp or UI callback waits on the disk.
+ * A write submitted under the same key as one still waiting to run replaces it: the older one is
+ * dropped and the newer one takes its turn at the end of the queue, so the final state is the same
+ * as running both. Callbacks of a dropped write run after the write that replaced it.
+ */
+class PersistenceQueue {
+
+    private static final String TAG = "PersistenceQueue";
+
+    interface Write {
+        void run() throws Exception;
+    }
+
+    interface OnWritten {
+        /**
+         * @param error - what the write threw or null if it succeeded
+         */
+        void run(Exception error);
+    }
+
+    private static PersistenceQueue instance;
+
+    private final Executor executor;
+    private final HashMap<String, Task> waiting = new HashMap<>();
+    private volatile Thread writerThread;
+
+    /**
+     * @param executor - runs the writes, it has to run them one at a time and in order
+     */
+    PersistenceQueue(Executor executor) {
+        this.executor = executor;
+    }
+
+    // the lib's StoreClients all share the default preferences, so they share one writer too
+    static synchronized PersistenceQueue getInstance() {
+        if (instance == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, "sp-gdpr-store");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            instance = new PersistenceQueue(executor);
+        }
+        return instance;
+    }
+
+    void submit(String key, Write write) {
+        submit(key, write, null);
+    }
+
+    /**
+     * @param key - writes with the same key supersede each other while waiting, null if the write can't be coalesced
+     * @param onWritten - called on the writer thread once the write, or the one replacing it, is done
+     */
+    void submit(String key, Write write, OnWritten onWritten) {
+        Task task = new Task(key, write);
+        if (onWritten != null) task.callbacks.add(onWritten);
+        if (key != null) {
+            synchronized (waiting) {
+                Task superseded = waiting.put(key, task);
+                if (superseded != null) {
+                    superseded.superseded = true;
+                    task.callbacks.addAll(0, superseded.callbacks);
+                }
+            }
+        }
+        executor.execute(task);
+    }
+
+    /**
+     * Blocks until every write submitted so far is done.
+     * @return false if they weren't done within the timeout
+     */
+    boolean flush(long timeoutMillis) {
+        if (Thread.currentThread() == writerThread) return true;
+        CountDownLatch done = new CountDownLatch(1);
+        submit(null, done::countDown);
+        try {
+            return done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private class Task implements Runnable {
+        final String key;
+        final Write write;
+        final List<OnWritten> callbacks = new ArrayList<>(1);
+        boolean superseded;
+
+        Task(String key, Write write) {
+            this.key = key;
+            this.write = write;
+        }
+
+        @Override
+        public void run() {
+            if (key != null) {
+                synchronized (waiting) {
+                    if (superseded) return;
+                    waiting.remove(key);
+                }
+            }
+            Exception error = null;
+            Thread previousWriter = writerThread;
+            writerThread = Thread.currentThread();
+            try {
+                write.run();
+            } catch (Exception e) {
+                Log.d(TAG, "Write " + key + " failed: " + e.getMessage());
+                error = e;
+            } finally {
+                writerThread = previousWriter;
+            }
+            for (OnWritten callback : callbacks) {
+                try {
+                    callback.run(error);
+                } catch (RuntimeException e) {
+                    Log.d(TAG, "Callback of write " + key + " failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
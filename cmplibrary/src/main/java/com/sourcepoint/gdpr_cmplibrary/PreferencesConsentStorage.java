@@ -0,0 +1,62 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.content.SharedPreferences;
+
+/**
+ * Keeps the values in SharedPreferences, next to the IABTCF_ ones, as the lib always did.
+ */
+public class PreferencesConsentStorage implements ConsentStorage {
+
+    final SharedPreferences preferences;
+
+    public PreferencesConsentStorage(SharedPreferences preferences) {
+        this.preferences = preferences;
+    }
+
+    @Override
+    public String getString(String key, String defaultValue) {
+        return preferences.getString(key, defaultValue);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return preferences.contains(key);
+    }
+
+    @Override
+    public ConsentStorage.Editor edit() {
+        return new Editor(preferences.edit());
+    }
+
+    static class Editor implements ConsentStorage.Editor {
+
+        private final SharedPreferences.Editor editor;
+
+        // StoreClient passes its own editor so values sharing its preferences are written in the same commit
+        Editor(SharedPreferences.Editor editor) {
+            this.editor = editor;
+        }
+
+        @Override
+        public Editor putString(String key, String value) {
+            editor.putString(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor remove(String key) {
+            editor.remove(key);
+            return this;
+        }
+
+        @Override
+        public void apply() {
+            editor.apply();
+        }
+
+        @Override
+        public boolean commit() {
+            return editor.commit();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import okhttp3.Response;
+
+/**
+ * How SourcePointClient retries a failed request: which failures are worth another attempt,
+ * how long to back off between attempts (capped exponential with full jitter) and when to
+ * hedge a slow getMessage with a second request. Every retry has to fit in the total budget,
+ * which the builder ties to messageTimeOut so retries never outlive the lib's own timeout.
+ */
+class RetryPolicy {
+
+    static final int DEFAULT_MAX_RETRIES = 2;
+    static final long DEFAULT_INITIAL_BACKOFF = 200;
+    static final long DEFAULT_MAX_BACKOFF = 2000;
+
+    // a hedge delay derived from fewer samples than this would be noise
+    static final int HEDGE_MIN_SAMPLES = 8;
+
+    static final RetryPolicy NO_RETRIES = new RetryPolicy(0, 0, 0, Long.MAX_VALUE, 0);
+
+    // latencies of the message endpoints, shared across instances so the hedge threshold survives rebuilding the lib
+    static final LatencyTracker messageLatencies = new LatencyTracker(64);
+
+    private static ScheduledExecutorService scheduler;
+
+    final int maxRetries;
+    final long initialBackoff, maxBackoff, budget;
+    final int hedgePercentile;
+
+    private final Random random = new Random();
+
+    /**
+     * @param maxRetries - extra requests allowed after the first one, hedged requests included
+     * @param initialBackoff - backoff cap of the first retry, doubled on each following one
+     * @param maxBackoff - upper bound of the backoff cap
+     * @param budget - total time from the first attempt after which no new attempt is started
+     * @param hedgePercentile - latency percentile after which a second getMessage request is sent, 0 disables hedging
+     */
+    RetryPolicy(int maxRetries, long initialBackoff, long maxBackoff, long budget, int hedgePercentile) {
+        this.maxRetries = maxRetries;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.budget = budget;
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    static boolean isRetryable(int code) {
+        switch (code) {
+            case 408: case 425: case 429:
+            case 500: case 502: case 503: case 504:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * A request that isn't idempotent, like posting a consent action, is only sent again when the server turned
+     * it away with a Retry-After, any other failed response may have been stored already.
+     */
+    static boolean isRetryable(Response response, boolean idempotent) {
+        if (idempotent) return isRetryable(response.code());
+        return (response.code() == 429 || response.code() == 503) && retryAfter(response) >= 0;
+    }
+
+    // the same for an IOException: a request that isn't idempotent is retried only if it never reached the server
+    static boolean isRetryable(IOException e, boolean idempotent) {
+        return idempotent || e instanceof ConnectException || e instanceof UnknownHostException || e instanceof NoRouteToHostException;
+    }
+
+    /**
+     * @param retry - zero based index of the retry
+     * @param response - the failed response or null after an IOException
+     * @return milliseconds to wait before the retry
+     */
+    long retryDelay(int retry, Response response) {
+        long retryAfter = response != null ? retryAfter(response) : -1;
+        return retryAfter >= 0 ? retryAfter : backoff(retry);
+    }
+
+    long backoff(int retry) {
+        long cap = Math.min(maxBackoff, initialBackoff << Math.min(retry, 16));
+        return (long) (random.nextDouble() * cap);
+    }
+
+    /**
+     * @return milliseconds after which a hedged request should be sent or -1 if it shouldn't
+     */
+    long hedgeDelay(LatencyTracker latencies) {
+        if (hedgePercentile <= 0 || maxRetries == 0 || latencies.size() < HEDGE_MIN_SAMPLES) return -1;
+        return latencies.percentile(hedgePercentile);
+    }
+
+    private static long retryAfter(Response response) {
+        String retryAfter = response.header("Retry-After");
+        if (retryAfter == null) return -1;
+        try {
+            return Long.parseLong(retryAfter.trim()) * 1000;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static synchronized ScheduledExecutorService scheduler() {
+        if (scheduler == null) {
+            scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, "sp-gdpr-retry");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler;
+    }
+}
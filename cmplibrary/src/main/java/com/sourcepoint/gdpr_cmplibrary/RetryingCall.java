@@ -0,0 +1,127 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Runs a request under a RetryPolicy and reports a single outcome to its callback.
+ * Retryable failures are swallowed and re-attempted after a backoff while retries and budget last,
+ * for a request that isn't idempotent only the failures the server can't have processed are retryable.
+ * When a LatencyTracker is given, successful latencies are recorded in it and, if the policy
+ * allows, a hedged copy of the request is sent once the first one is slower than the configured
+ * percentile. The first usable response wins and every other attempt in flight is cancelled.
+ */
+class RetryingCall {
+    private static final String LOG_TAG = "RETRYING_CALL";
+
+    private final Call.Factory callFactory;
+    private final Request request;
+    private final RetryPolicy policy;
+    private final boolean idempotent;
+    private final LatencyTracker latencies;
+    private final Callback callback;
+
+    private final List<Call> inFlight = new ArrayList<>();
+    private long deadline;
+    private int retries;
+    private boolean done;
+    private ScheduledFuture<?> hedge;
+
+    RetryingCall(Call.Factory callFactory, Request request, RetryPolicy policy, boolean idempotent, LatencyTracker latencies, Callback callback) {
+        this.callFactory = callFactory;
+        this.request = request;
+        this.policy = policy;
+        this.idempotent = idempotent;
+        this.latencies = latencies;
+        this.callback = callback;
+    }
+
+    synchronized void enqueue() {
+        deadline = policy.budget == Long.MAX_VALUE ? Long.MAX_VALUE : now() + policy.budget;
+        attempt();
+        long hedgeDelay = latencies != null && idempotent ? policy.hedgeDelay(latencies) : -1;
+        if (hedgeDelay >= 0 && now() + hedgeDelay < deadline) {
+            hedge = RetryPolicy.scheduler().schedule(this::hedge, hedgeDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void hedge() {
+        if (done || inFlight.isEmpty() || retries >= policy.maxRetries) return;
+        retries++;
+        Log.d(LOG_TAG, "Hedging slow request to " + request.url());
+        attempt();
+    }
+
+    private synchronized void attempt() {
+        if (done) return;
+        Call call = callFactory.newCall(request);
+        inFlight.add(call);
+        long startedAt = now();
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                onAttemptFailure(call, e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) throws IOException {
+                onAttemptResponse(call, response, startedAt);
+            }
+        });
+    }
+
+    private void onAttemptFailure(Call call, IOException e) {
+        if (RetryPolicy.isRetryable(e, idempotent) && retryScheduled(call, policy.retryDelay(retries, null))) return;
+        if (finish(call)) callback.onFailure(call, e);
+    }
+
+    private void onAttemptResponse(Call call, Response response, long startedAt) throws IOException {
+        if (!response.isSuccessful() && RetryPolicy.isRetryable(response, idempotent)
+                && retryScheduled(call, policy.retryDelay(retries, response))) {
+            response.close();
+            return;
+        }
+        if (!finish(call)) {
+            response.close();
+            return;
+        }
+        if (latencies != null && response.isSuccessful()) latencies.record(now() - startedAt);
+        callback.onResponse(call, response);
+    }
+
+    // true if the failed attempt is taken care of: retried later, superseded by another attempt or already settled
+    private synchronized boolean retryScheduled(Call call, long delay) {
+        if (done) return true;
+        inFlight.remove(call);
+        if (!inFlight.isEmpty()) return true;
+        if (retries >= policy.maxRetries || now() + delay >= deadline) return false;
+        retries++;
+        if (hedge != null) hedge.cancel(false);
+        Log.d(LOG_TAG, "Retrying request to " + request.url() + " in " + delay + "ms, retry " + retries + " of " + policy.maxRetries);
+        RetryPolicy.scheduler().schedule(this::attempt, delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    private synchronized boolean finish(Call winner) {
+        if (done) return false;
+        done = true;
+        if (hedge != null) hedge.cancel(false);
+        for (Call call : inFlight) if (call != winner) call.cancel();
+        inFlight.clear();
+        return true;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
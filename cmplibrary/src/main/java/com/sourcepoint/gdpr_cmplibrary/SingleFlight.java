@@ -0,0 +1,78 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process wide registry of the requests to SourcePoint currently in flight.
+ * Several GDPRConsentLib instances run at the same time (e.g. one per screen at startup) send
+ * identical requests: the first caller for a key makes the call, the others join it and every
+ * OnLoadComplete gets the outcome of that one call. The key is dropped as soon as the call
+ * completes, nothing is cached here.
+ */
+class SingleFlight {
+    private static final String TAG = "SingleFlight";
+
+    private static final Map<String, List<GDPRConsentLib.OnLoadComplete>> inFlight = new HashMap<>();
+
+    private SingleFlight() { }
+
+    /**
+     * @return true if the caller has to make the request and complete it through {@link #completion(String)},
+     * false if an identical request is already in flight and the callback will be called with its outcome
+     */
+    static boolean join(String key, GDPRConsentLib.OnLoadComplete callback) {
+        synchronized (inFlight) {
+            List<GDPRConsentLib.OnLoadComplete> callbacks = inFlight.get(key);
+            if (callbacks != null) {
+                callbacks.add(callback);
+                Log.d(TAG, "Joining request in flight, " + callbacks.size() + " callers waiting");
+                return false;
+            }
+            callbacks = new ArrayList<>();
+            callbacks.add(callback);
+            inFlight.put(key, callbacks);
+            return true;
+        }
+    }
+
+    /**
+     * @return the callback that ends the flight and hands its outcome to every caller that joined it
+     */
+    static GDPRConsentLib.OnLoadComplete completion(String key) {
+        return new GDPRConsentLib.OnLoadComplete() {
+            @Override
+            public void onSuccess(Object result) {
+                for (GDPRConsentLib.OnLoadComplete callback : land(key)) {
+                    try {
+                        callback.onSuccess(result);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Error in a coalesced request's callback", e);
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(ConsentLibException exception) {
+                for (GDPRConsentLib.OnLoadComplete callback : land(key)) {
+                    try {
+                        callback.onFailure(exception);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Error in a coalesced request's callback", e);
+                    }
+                }
+            }
+        };
+    }
+
+    private static List<GDPRConsentLib.OnLoadComplete> land(String key) {
+        synchronized (inFlight) {
+            List<GDPRConsentLib.OnLoadComplete> callbacks = inFlight.remove(key);
+            return callbacks != null ? callbacks : new ArrayList<>();
+        }
+    }
+}
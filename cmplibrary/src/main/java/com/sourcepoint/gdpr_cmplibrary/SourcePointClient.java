@@ -21,12 +21,11 @@ import okhttp3.Response;
 class SourcePointClient {
     private static final String LOG_TAG = "SOURCE_POINT_CLIENT";
 
-    private OkHttpClient httpClient;
+    final OkHttpClient httpClient;
 
-    private static final String baseMsgUrl = "https://wrapper-api.sp-prod.net/tcfv2/v1/gdpr/message-url?inApp=true";
-    private static final String baseNativeMsgUrl = "https://wrapper-api.sp-prod.net/tcfv2/v1/gdpr/native-message?inApp=true";
-    private static final String baseSendConsentUrl = "https://wrapper-api.sp-prod.net/tcfv2/v1/gdpr/consent?inApp=true";
-    private static final String baseSendCustomConsentsUrl = "https://wrapper-api.sp-prod.net/tcfv2/v1/gdpr/custom-consent?inApp=true";
+    static final String DEFAULT_BASE_URL = "https://wrapper-api.sp-prod.net/tcfv2/v1/gdpr/";
+
+    String baseUrl = DEFAULT_BASE_URL;
 
     private String requestUUID = "";
 
@@ -34,6 +33,20 @@ class SourcePointClient {
 
     ConnectivityManager connectivityManager;
 
+    MessageCache messageCache;
+
+    RetryPolicy retryPolicy = RetryPolicy.NO_RETRIES;
+
+    // request bodies of at least this many bytes are gzipped, negative disables it
+    long requestCompressionThreshold = -1;
+
+    GDPRConsentLib.OnNetworkTimingsCallback onNetworkTimings;
+
+    // replaces httpClient when set
+    ConsentTransport transport;
+
+    private OkHttpClient callClient;
+
     private String getRequestUUID(){
         if(!requestUUID.isEmpty()) return requestUUID;
         requestUUID =  UUID.randomUUID().toString();
@@ -41,9 +54,14 @@ class SourcePointClient {
     }
 
     SourcePointClient(OkHttpClient httpClient, SourcePointClientConfig config, ConnectivityManager connectivityManager) {
+        this(httpClient, config, connectivityManager, null);
+    }
+
+    SourcePointClient(OkHttpClient httpClient, SourcePointClientConfig config, ConnectivityManager connectivityManager, MessageCache messageCache) {
         this.httpClient = httpClient;
         this.config = config;
         this.connectivityManager = connectivityManager;
+        this.messageCache = messageCache;
     }
 
     private boolean hasLostInternetConnection() {
@@ -54,48 +72,166 @@ class SourcePointClient {
         return activeNetwork == null || !activeNetwork.isConnectedOrConnecting();
     }
 
+    void clearMessageCache() {
+        if (messageCache != null) messageCache.clear();
+    }
+
+    /**
+     * The result is always delivered asynchronously: with a message cache, the lookup runs on its reader thread
+     * and a lost connection is reported through onFailure rather than thrown.
+     */
     void getMessage(boolean isNative, String consentUUID, String meta, String euconsent, GDPRConsentLib.OnLoadComplete onLoadComplete) throws ConsentLibException {
+        String url = messageUrl(isNative);
+        JSONObject params = messageParams(consentUUID, meta, euconsent);
+        if (messageCache == null) {
+            requestMessage(url, params, null, onLoadComplete);
+            return;
+        }
+        String cacheKey = MessageCache.key(url, params);
+        MessageCache.reader().execute(() -> {
+            try {
+                if (!serveCached(url, params, cacheKey, onLoadComplete)) requestMessage(url, params, cacheKey, onLoadComplete);
+            } catch (ConsentLibException e) {
+                onLoadComplete.onFailure(e);
+            }
+        });
+    }
+
+    // Hands a usable cached response to onLoadComplete, revalidating it in the background if it's stale
+    private boolean serveCached(String url, JSONObject params, String cacheKey, GDPRConsentLib.OnLoadComplete onLoadComplete) {
+        MessageCache.Entry cached = messageCache.get(cacheKey);
+        if (cached == null) return false;
+        ConsentResponse cachedResponse = parseCached(cacheKey, cached);
+        if (cachedResponse == null) return false;
+        Log.d(LOG_TAG, "Serving message from cache for: " + url);
+        onLoadComplete.onSuccess(cachedResponse);
+        if (cached.isFresh(System.currentTimeMillis()) || hasLostInternetConnection()) return true;
+        Log.d(LOG_TAG, "Revalidating cached message from: " + url);
+        fetchMessage(messageRequest(url, params, cached), url, cacheKey, cached, null);
+        return true;
+    }
+
+    private void requestMessage(String url, JSONObject params, String cacheKey, GDPRConsentLib.OnLoadComplete onLoadComplete) throws ConsentLibException {
         if(hasLostInternetConnection())
             throw new ConsentLibException.NoInternetConnectionException();
 
-        String url = messageUrl(isNative);
+        Request request = messageRequest(url, params, null);
+
+        // identical requests from other GDPRConsentLib instances share this call
+        String flightKey = cacheKey != null ? cacheKey : MessageCache.key(url, params);
+        if (!SingleFlight.join(flightKey, onLoadComplete)) return;
+
         Log.d(LOG_TAG, "Getting message from: " + url);
+        GDPRConsentLib.OnLoadComplete completion = SingleFlight.completion(flightKey);
+        try {
+            fetchMessage(request, url, cacheKey, null, completion);
+        } catch (RuntimeException e) {
+            completion.onFailure(new ConsentLibException(e, "Fail to get message from: " + url));
+        }
+    }
 
+    private Request messageRequest(String url, JSONObject params, MessageCache.Entry cached) {
         final MediaType mediaType= MediaType.parse("application/json");
-        RequestBody body = RequestBody.create(mediaType, messageParams(consentUUID, meta, euconsent).toString());
+        RequestBody body = RequestBody.create(mediaType, params.toString());
 
-        Request request = new Request.Builder().url(url).post(body)
+        Request.Builder request = new Request.Builder().url(url).post(body)
                 .header("Accept", "application/json")
-                .header("Content-Type", "application/json")
-                .build();
+                .header("Content-Type", "application/json");
+        if (cached != null && cached.etag != null) request.header("If-None-Match", cached.etag);
+        return request.build();
+    }
 
-        httpClient.newCall(request).enqueue(new Callback() {
+    // onLoadComplete is null when revalidating a stale cache entry in the background
+    private void fetchMessage(Request request, String url, String cacheKey, MessageCache.Entry cached, GDPRConsentLib.OnLoadComplete onLoadComplete) {
+        enqueue(request, true, RetryPolicy.messageLatencies, new Callback() {
             @Override
             public void onFailure(Call call, IOException e) {
                 Log.d(LOG_TAG, "Failed to load resource " + url + " due to " +   "url load failure :  " + e.getMessage());
-                onLoadComplete.onFailure(new ConsentLibException(e, "Fail to send consent to: " + url));
+                if (onLoadComplete != null)
+                    onLoadComplete.onFailure(new ConsentLibException(e, "Fail to send consent to: " + url));
             }
 
             @Override
             public void onResponse(Call call, Response response) throws IOException {
-                if (response.isSuccessful()){
-                    String messageJson = response.body().string();
-                    Log.i(LOG_TAG , messageJson);
-                    onLoadComplete.onSuccess(messageJson);
+                if (response.code() == 304 && cached != null){
+                    response.close();
+                    messageCache.put(cacheKey, cached.body, cached.etag);
+                }else if (response.isSuccessful()){
+                    ConsentResponse consentResponse;
+                    try {
+                        if (cacheKey != null) {
+                            String messageJson = response.body().string();
+                            consentResponse = ConsentResponse.parse(messageJson);
+                            cacheMessage(cacheKey, consentResponse, messageJson, response.header("ETag"));
+                        } else {
+                            consentResponse = readConsentResponse(response);
+                        }
+                    } catch (ConsentLibException e) {
+                        if (onLoadComplete != null) onLoadComplete.onFailure(e);
+                        return;
+                    }
+                    if (onLoadComplete != null) onLoadComplete.onSuccess(consentResponse);
                 }else {
                     Log.d(LOG_TAG, "Failed to load resource " + url + " due to " + response.code() + ": " + response.message());
-                    onLoadComplete.onFailure(new ConsentLibException(response.message()));
+                    response.close();
+                    if (onLoadComplete != null) onLoadComplete.onFailure(new ConsentLibException(response.message()));
                 }
             }
         });
     }
 
+    // a consent POST isn't idempotent, a retry after a lost response could store the action twice
+    private void enqueue(Request request, boolean idempotent, LatencyTracker latencies, Callback callback) {
+        Call.Factory callFactory = transport != null ? transport::newCall : callClient();
+        new RetryingCall(callFactory, request, retryPolicy, idempotent, latencies, callback).enqueue();
+    }
+
+    // httpClient plus the byte counters, request compression and phase timings, sharing its connection pool and dispatcher
+    private synchronized OkHttpClient callClient() {
+        if (callClient == null) {
+            TransferStats stats = TransferStats.getInstance();
+            OkHttpClient.Builder builder = httpClient.newBuilder().addInterceptor(stats.interceptor(false));
+            if (requestCompressionThreshold >= 0)
+                builder.addInterceptor(new GzipRequestInterceptor(requestCompressionThreshold));
+            callClient = builder.addNetworkInterceptor(stats.interceptor(true))
+                    .eventListenerFactory(TimingEventListener.factory(httpClient.eventListenerFactory(), onNetworkTimings))
+                    .build();
+        }
+        return callClient;
+    }
+
+    private void cacheMessage(String cacheKey, ConsentResponse consentResponse, String messageJson, String etag) {
+        if (!consentResponse.hasMessage()) messageCache.put(cacheKey, messageJson, etag);
+        else messageCache.remove(cacheKey);
+    }
+
+    private ConsentResponse parseCached(String cacheKey, MessageCache.Entry cached) {
+        try {
+            return ConsentResponse.parse(cached.body);
+        } catch (ConsentLibException e) {
+            Log.d(LOG_TAG, "Dropping unreadable cached message: " + e.consentLibErrorMessage);
+            messageCache.remove(cacheKey);
+            return null;
+        }
+    }
+
+    // Decodes the body straight from the response stream, without buffering it into a String first
+    private ConsentResponse readConsentResponse(Response response) throws ConsentLibException {
+        try {
+            ConsentResponse consentResponse = ConsentResponse.parse(response.body().charStream());
+            Log.i(LOG_TAG, "Received response for uuid " + consentResponse.uuid + (consentResponse.hasMessage() ? " with a message" : ""));
+            return consentResponse;
+        } finally {
+            response.close();
+        }
+    }
+
     private String messageUrl(boolean isNative) {
-        return isNative ? baseNativeMsgUrl : baseMsgUrl;
+        return baseUrl + (isNative ? "native-message" : "message-url") + "?inApp=true";
     }
 
     private String customConsentsUrl(){
-        return baseSendCustomConsentsUrl;
+        return baseUrl + "custom-consent?inApp=true";
     }
 
     private JSONObject messageParams(String consentUUID, String meta, String euconsent) throws ConsentLibException {
@@ -121,7 +257,7 @@ class SourcePointClient {
     }
 
     private String consentUrl(){
-        return baseSendConsentUrl;
+        return baseUrl + "consent?inApp=true";
     }
 
 
@@ -131,14 +267,11 @@ class SourcePointClient {
 
         String url = consentUrl();
         try {
-            params.put("requestUUID", getRequestUUID());
+            // actions replayed from the offline queue keep the requestUUID they were queued with
+            if (!params.has("requestUUID")) params.put("requestUUID", getRequestUUID());
         } catch (JSONException e) {
             throw new ConsentLibException(e, "Error adding param requestUUID.");
         }
-        Log.d(LOG_TAG, "Sending consent to: " + url);
-        Log.d(LOG_TAG, params.toString());
-
-
         final MediaType mediaType= MediaType.parse("application/json");
         RequestBody body = RequestBody.create(mediaType, params.toString());
 
@@ -147,22 +280,41 @@ class SourcePointClient {
                 .header("Content-Type", "application/json")
                 .build();
 
-        httpClient.newCall(request).enqueue(new Callback() {
+        String flightKey = MessageCache.key(url, params);
+        if (!SingleFlight.join(flightKey, onLoadComplete)) return;
+        GDPRConsentLib.OnLoadComplete completion = SingleFlight.completion(flightKey);
+
+        Log.d(LOG_TAG, "Sending consent to: " + url);
+        Log.d(LOG_TAG, params.toString());
+
+        try {
+            sendConsent(request, url, completion);
+        } catch (RuntimeException e) {
+            completion.onFailure(new ConsentLibException(e, "Fail to send consent to: " + url));
+        }
+    }
+
+    private void sendConsent(Request request, String url, GDPRConsentLib.OnLoadComplete completion) {
+        enqueue(request, false, null, new Callback() {
             @Override
             public void onFailure(Call call, IOException e) {
                 Log.d(LOG_TAG, "Failed to load resource " + url + " due to " +   "url load failure :  " + e.getMessage());
-                onLoadComplete.onFailure(new ConsentLibException(e, "Fail to send consent to: " + url));
+                completion.onFailure(new ConsentLibException(e, "Fail to send consent to: " + url));
             }
 
             @Override
             public void onResponse(Call call, Response response) throws IOException {
-                if (response.isSuccessful()){
-                    String messageJson = response.body().string();
-                    Log.i(LOG_TAG , messageJson);
-                    onLoadComplete.onSuccess(messageJson);
-                }else {
-                    Log.d(LOG_TAG, "Failed to load resource " + url + " due to " + response.code() + ": " + response.message());
-                    onLoadComplete.onFailure(new ConsentLibException("Fail to send consent to: " + url));
+                try {
+                    if (response.isSuccessful()){
+                        completion.onSuccess(readConsentResponse(response));
+                    }else {
+                        Log.d(LOG_TAG, "Failed to load resource " + url + " due to " + response.code() + ": " + response.message());
+                        completion.onFailure(new ConsentLibException("Fail to send consent to: " + url));
+                    }
+                } catch (ConsentLibException e) {
+                    completion.onFailure(e);
+                } finally {
+                    response.close();
                 }
             }
         });
@@ -187,7 +339,7 @@ class SourcePointClient {
                 .header("Content-Type", "application/json")
                 .build();
 
-        httpClient.newCall(request).enqueue(new Callback() {
+        enqueue(request, false, null, new Callback() {
             @Override
             public void onFailure(Call call, IOException e) {
                 Log.d(LOG_TAG, "Failed to load resource " + url + " due to " +   "url load failure :  " + e.getMessage());
@@ -196,13 +348,17 @@ class SourcePointClient {
 
             @Override
             public void onResponse(Call call, Response response) throws IOException {
-                if (response.isSuccessful()){
-                    String messageJson = response.body().string();
-                    Log.i(LOG_TAG , messageJson);
-                    onLoadComplete.onSuccess(messageJson);
-                }else {
-                    Log.d(LOG_TAG, "Failed to load resource " + url + " due to " + response.code() + ": " + response.message());
-                    onLoadComplete.onFailure(new ConsentLibException("Fail to send consent to: " + url));
+                try {
+                    if (response.isSuccessful()){
+                        String messageJson = response.body().string();
+                        Log.i(LOG_TAG , messageJson);
+                        onLoadComplete.onSuccess(messageJson);
+                    }else {
+                        Log.d(LOG_TAG, "Failed to load resource " + url + " due to " + response.code() + ": " + response.message());
+                        onLoadComplete.onFailure(new ConsentLibException("Fail to send consent to: " + url));
+                    }
+                } finally {
+                    response.close();
                 }
             }
         });
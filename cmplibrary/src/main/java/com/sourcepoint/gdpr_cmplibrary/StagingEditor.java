@@ -0,0 +1,49 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import java.util.HashMap;
+
+/**
+ * Editor of the storages that aren't SharedPreferences: stages the changes in a map, null values being
+ * removals, and hands them over to write() on apply() or commit().
+ */
+abstract class StagingEditor implements ConsentStorage.Editor {
+
+    private final HashMap<String, String> changes = new HashMap<>();
+
+    @Override
+    public synchronized ConsentStorage.Editor putString(String key, String value) {
+        changes.put(key, value);
+        return this;
+    }
+
+    @Override
+    public synchronized ConsentStorage.Editor remove(String key) {
+        changes.put(key, null);
+        return this;
+    }
+
+    @Override
+    public void apply() {
+        commit();
+    }
+
+    @Override
+    public boolean commit() {
+        HashMap<String, String> staged;
+        synchronized (this) {
+            staged = new HashMap<>(changes);
+            changes.clear();
+        }
+        return write(staged);
+    }
+
+    abstract boolean write(HashMap<String, String> changes);
+
+    static void merge(HashMap<String, String> values, HashMap<String, String> changes) {
+        for (String key : changes.keySet()) {
+            String value = changes.get(key);
+            if (value == null) values.remove(key);
+            else values.put(key, value);
+        }
+    }
+}
@@ -1,15 +1,22 @@
 package com.sourcepoint.gdpr_cmplibrary;
 
 import android.content.SharedPreferences;
+import android.util.Log;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 public class StoreClient {
 
+    private static final String TAG = "StoreClient";
+
     public static final String CONSENT_UUID_KEY = "sp.gdpr.consentUUID";
 
     public static final String META_DATA_KEY = "sp.gdpr.metaData";
@@ -19,6 +26,14 @@ public class StoreClient {
     public static final String USER_CONSENT_KEY = "sp.gdpr.userConsent";
 
     public static final String AUTH_ID_KEY = "sp.gdpr.authId";
+
+    public static final String PENDING_CONSENT_ACTIONS_KEY = "sp.gdpr.pendingConsentActions";
+
+    // the lib's own keys, kept in the ConsentStorage
+    private static final String[] STORAGE_KEYS = {CONSENT_UUID_KEY, META_DATA_KEY, EU_CONSENT_KEY, USER_CONSENT_KEY, AUTH_ID_KEY, PENDING_CONSENT_ACTIONS_KEY};
+
+    // names of the IABTCF_ keys written by the lib, so they can be found without scanning every preference
+    public static final String TC_DATA_KEYS_KEY = "sp.gdpr.tcDataKeys";
     public static final String DEFAULT_EMPTY_UUID = "";
     private static final String CMP_SDK_ID_KEY = "IABTCF_CmpSdkID";
     private static final int CMP_SDK_ID = 6;
@@ -37,102 +52,519 @@ public class StoreClient {
 
     static final String IABTCF_KEY_PREFIX = "IABTCF_";
 
+    // write-through copies of the stored IABTCF_ values, one per SharedPreferences for the whole process so a
+    // StoreClient never diffs against values another one has replaced since. Only the writer thread changes them.
+    private static final WeakHashMap<SharedPreferences, TCDataCache> tcDataCaches = new WeakHashMap<>();
+
+    private static class TCDataCache {
+        // loaded on first use
+        HashMap<String, Object> values;
+        // the keys index was rebuilt by a scan, reads don't write so the next staged write stores it
+        boolean indexUnsaved;
+    }
+
+    private final TCDataCache tcDataCache;
+
+    private int tcDataWrites, tcDataChanges;
+
+    // null keeps the user consent as JSON in the preferences
+    private final ConsentFile consentFile;
+
+    // consent of the previously active authIds, null when switching users clears the data
+    private final ConsentProfiles profiles;
+
+    // the lib's own values, the IABTCF_ ones stay in pref
+    private final ConsentStorage storage;
+    private final ConsentStorage.Editor storageEditor;
+
+    // a storage over pref writes through editor, in the same commit as the IABTCF_ values
+    private final boolean sharesEditor;
+
+    private boolean storageMigrated;
+
+    // where the TC data and vendor grants are published for other processes, null to not publish them
+    File mappedConsentFile;
+
     StoreClient(SharedPreferences pref){
+        this(pref, null, 0);
+    }
+
+    StoreClient(SharedPreferences pref, File consentFile){
+        this(pref, consentFile, 0);
+    }
+
+    /**
+     * @param consentFile - where the user consent is kept, a JSON one left in the preferences is moved there on first read
+     * @param maxProfiles - how many inactive users keep their consent next to the consent file, 0 to keep none
+     */
+    StoreClient(SharedPreferences pref, File consentFile, int maxProfiles){
+        this(pref, consentFile, maxProfiles, null);
+    }
+
+    /**
+     * @param storage - where the lib's own values are kept, null to keep them in pref
+     */
+    StoreClient(SharedPreferences pref, File consentFile, int maxProfiles, ConsentStorage storage){
         this.editor = pref.edit();
         this.pref = pref;
+        this.tcDataCache = tcDataCache(pref);
+        this.storage = storage != null ? storage : new PreferencesConsentStorage(pref);
+        this.sharesEditor = this.storage instanceof PreferencesConsentStorage && ((PreferencesConsentStorage) this.storage).preferences == pref;
+        this.storageEditor = sharesEditor ? new PreferencesConsentStorage.Editor(editor) : this.storage.edit();
+        this.consentFile = consentFile != null ? new ConsentFile(consentFile) : null;
+        this.profiles = consentFile != null && maxProfiles > 0
+                ? new ConsentProfiles(new File(consentFile.getParentFile(), ConsentProfiles.DIR_NAME), maxProfiles)
+                : null;
     }
 
-    public void setTCData(HashMap<String, Object> tcData){
-        clearConsentData();
-        for(String key : tcData.keySet()){
-            if(tcData.get(key).getClass().equals(Integer.class)) editor.putInt(key, (Integer) tcData.get(key));
-            if(tcData.get(key).getClass().equals(String.class)) editor.putString(key, (String) tcData.get(key));
+    // what state shared by the libs of this process is keyed on
+    SharedPreferences preferences(){
+        return pref;
+    }
+
+    private static TCDataCache tcDataCache(SharedPreferences pref){
+        synchronized (tcDataCaches) {
+            TCDataCache cache = tcDataCaches.get(pref);
+            if (cache == null) {
+                cache = new TCDataCache();
+                tcDataCaches.put(pref, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Stages several values in a single editor so they reach the disk in one write instead of
+     * one commit per setter. Values staged on this StoreClient but not written yet (e.g. the cmp sdk
+     * id and version) are written along with them.
+     */
+    public class Transaction {
+
+        private TCDataDelta tcDataDelta;
+
+        private GDPRUserConsent userConsent;
+        private byte[] encodedUserConsent;
+
+        private Transaction(){}
+
+        public Transaction setConsentUuid(String consentUuid){
+            storageEditor.putString(CONSENT_UUID_KEY, consentUuid);
+            return this;
         }
-        editor.commit();
+
+        public Transaction setMetaData(String metaData){
+            storageEditor.putString(META_DATA_KEY, metaData);
+            return this;
+        }
+
+        public Transaction setConsentString(String euconsent){
+            storageEditor.putString(EU_CONSENT_KEY, euconsent);
+            return this;
+        }
+
+        public Transaction setUserConsents(GDPRUserConsent userConsent) throws JSONException, ConsentLibException {
+            this.userConsent = userConsent;
+            if (consentFile == null) storageEditor.putString(USER_CONSENT_KEY, userConsent.toJsonObject().toString());
+            else encodedUserConsent = ConsentFile.encode(userConsent);
+            return this;
+        }
+
+        // replaces the stored IABTCF_ values with the ones in tcData, writing only the keys that differ
+        public Transaction setTCData(HashMap<String, Object> tcData){
+            tcDataDelta = stageTCData(tcData);
+            return this;
+        }
+
+        /**
+         * @return the keys touched by setTCData or null if it wasn't called
+         */
+        TCDataDelta getTCDataDelta(){
+            return tcDataDelta;
+        }
+
+        /**
+         * Updates the in-memory values right away and writes them to disk in the background.
+         * Call {@link StoreClient#flush()} when they must be on disk before moving on.
+         */
+        public void apply(){
+            ConsentStatePreloader.invalidate();
+            if (encodedUserConsent != null) writeUserConsent(userConsent, encodedUserConsent);
+            if (!sharesEditor) storageEditor().apply();
+            editor.apply();
+            if (userConsent != null) publishMappedConsent(userConsent.vendorGrants);
+        }
+
+        /**
+         * Writes the values to disk before returning.
+         * @return true if they were written
+         */
+        public boolean commit(){
+            ConsentStatePreloader.invalidate();
+            if (encodedUserConsent != null) writeUserConsent(userConsent, encodedUserConsent);
+            boolean storageWritten = sharesEditor || storageEditor().commit();
+            boolean written = editor.commit() && storageWritten;
+            if (userConsent != null) publishMappedConsent(userConsent.vendorGrants);
+            return written;
+        }
+    }
+
+    /**
+     * Starts staging values to be written together.
+     * @return StoreClient.Transaction - finished by either apply() or commit()
+     */
+    public Transaction edit(){
+        return new Transaction();
+    }
+
+    /**
+     * Durability barrier: blocks until every value applied so far has been written to disk.
+     * SharedPreferences queues a commit behind the pending applies, so an empty one is enough.
+     * The other storages are written by apply() already.
+     */
+    public void flush(){
+        pref.edit().commit();
+    }
+
+    public void setTCData(HashMap<String, Object> tcData){
+        edit().setTCData(tcData).commit();
     }
 
     public void setCmpSdkID(){
-        editor.putInt(CMP_SDK_ID_KEY, CMP_SDK_ID);
+        stageTCValue(CMP_SDK_ID_KEY, CMP_SDK_ID);
     }
 
     public void setCmpSdkVersion(){
-        editor.putInt(CMP_SDK_VERSION_KEY, CMP_SDK_VERSION);
+        stageTCValue(CMP_SDK_VERSION_KEY, CMP_SDK_VERSION);
     }
 
     public void setConsentUuid(String consentUuid){
-        editor.putString(CONSENT_UUID_KEY, consentUuid);
-        editor.commit();
+        storageEditor().putString(CONSENT_UUID_KEY, consentUuid).commit();
     }
 
     public void setMetaData(String  metaData){
-        editor.putString(META_DATA_KEY, metaData);
-        editor.commit();
+        storageEditor().putString(META_DATA_KEY, metaData).commit();
     }
 
     public void setAuthId(String authId){
-        editor.putString(AUTH_ID_KEY, authId);
-        editor.commit();
+        storageEditor().putString(AUTH_ID_KEY, authId).commit();
     }
 
     public void setConsentString(String euconsent){
-        editor.putString(EU_CONSENT_KEY, euconsent);
-        editor.commit();
+        storageEditor().putString(EU_CONSENT_KEY, euconsent).commit();
     }
 
     public void setUserConsents(GDPRUserConsent userConsent) throws JSONException, ConsentLibException {
-        editor.putString(USER_CONSENT_KEY, userConsent.toJsonObject().toString());
-        editor.commit();
+        edit().setUserConsents(userConsent).commit();
+    }
+
+    // The file is written right away, the preferences key is dropped (or kept as a fallback) with the editor
+    private void writeUserConsent(GDPRUserConsent userConsent, byte[] encoded){
+        if (consentFile.write(encoded)) {
+            storageEditor.remove(USER_CONSENT_KEY);
+            return;
+        }
+        try {
+            storageEditor.putString(USER_CONSENT_KEY, userConsent.toJsonObject().toString());
+        } catch (Exception e) {
+            Log.d(TAG, "Failed to store the user consent: " + e.getMessage());
+        }
+    }
+
+    public void setPendingConsentActions(String pendingActions){
+        if (pendingActions == null) storageEditor().remove(PENDING_CONSENT_ACTIONS_KEY);
+        else storageEditor().putString(PENDING_CONSENT_ACTIONS_KEY, pendingActions);
+        storageEditor.commit();
+    }
+
+    public String getPendingConsentActions() {
+        return getStored(PENDING_CONSENT_ACTIONS_KEY, null);
     }
 
     public String getMetaData() {
-        return pref.getString(META_DATA_KEY, DEFAULT_META_DATA);
+        return getStored(META_DATA_KEY, DEFAULT_META_DATA);
     }
 
     public String getConsentUUID() {
-        return pref.getString(CONSENT_UUID_KEY, DEFAULT_EMPTY_UUID);
+        return getStored(CONSENT_UUID_KEY, DEFAULT_EMPTY_UUID);
     }
 
+    // A JSON consent in the preferences is either from before the consent file or a fallback after failing to write it,
+    // either way it's the latest one. Reading leaves it there, migrate() moves it to the file.
     public GDPRUserConsent getUserConsent() throws ConsentLibException {
         try {
-            String uStr = pref.getString(USER_CONSENT_KEY, null);
+            String uStr = getStored(USER_CONSENT_KEY, null);
+            if (uStr == null && consentFile != null) {
+                GDPRUserConsent userConsent = consentFile.read();
+                return userConsent != null ? userConsent : new GDPRUserConsent();
+            }
             return uStr != null ? new GDPRUserConsent(new JSONObject(uStr)) : new GDPRUserConsent();
         } catch (Exception e) {
             throw new ConsentLibException(e, "Error trying to recover UserConsents for sharedPrefs");
         }
     }
 
+    /**
+     * Moves the lib's values left in the preferences to the storage and a JSON user consent to the consent file.
+     * The getters read them where they are in the meantime. It writes, so it's queued with the other writes.
+     */
+    public void migrate() throws ConsentLibException {
+        migrateStorage();
+        if (consentFile == null) return;
+        String uStr = storage.getString(USER_CONSENT_KEY, null);
+        if (uStr == null) return;
+        GDPRUserConsent userConsent;
+        try {
+            userConsent = new GDPRUserConsent(new JSONObject(uStr));
+        } catch (Exception e) {
+            throw new ConsentLibException(e, "Error trying to recover UserConsents for sharedPrefs");
+        }
+        if (consentFile.write(ConsentFile.encode(userConsent))) {
+            storage.edit().remove(USER_CONSENT_KEY).apply();
+        }
+    }
+
     public String getConsentString() {
-        return pref.getString(EU_CONSENT_KEY, DEFAULT_EMPTY_CONSENT_STRING);
+        return getStored(EU_CONSENT_KEY, DEFAULT_EMPTY_CONSENT_STRING);
     }
 
     public String getAuthId() {
-        return pref.getString(AUTH_ID_KEY, DEFAULT_AUTH_ID);
+        return getStored(AUTH_ID_KEY, DEFAULT_AUTH_ID);
+    }
+
+    /**
+     * Reads the values GDPRConsentLib starts from in one go.
+     */
+    ConsentState readConsentState(){
+        return new ConsentState(getAuthId(), getConsentUUID(), getMetaData(), getConsentString());
+    }
+
+    /**
+     * Makes newAuthId the active user. The consent of oldAuthId is kept as a profile and newAuthId's own
+     * profile, if one was kept, is restored and its IABTCF_ values republished. Without a profile, or with
+     * profiles disabled, the data is cleared as for a user never seen before.
+     * @return true if newAuthId's consent was restored
+     */
+    public boolean switchUser(String oldAuthId, String newAuthId){
+        if (profiles == null) {
+            clearAllData();
+            return false;
+        }
+        try {
+            profiles.save(oldAuthId, activeProfile());
+        } catch (ConsentLibException e) {
+            Log.d(TAG, "Failed to keep the consent of the previous user: " + e.consentLibErrorMessage);
+        }
+        ConsentProfiles.Profile profile = profiles.take(newAuthId);
+        if (profile == null) {
+            clearInternalData();
+            clearConsentData();
+            return false;
+        }
+        restoreProfile(profile);
+        return true;
+    }
+
+    private ConsentProfiles.Profile activeProfile() throws ConsentLibException {
+        ConsentProfiles.Profile profile = new ConsentProfiles.Profile();
+        profile.consentUUID = getStored(CONSENT_UUID_KEY, null);
+        profile.metaData = getStored(META_DATA_KEY, null);
+        profile.euConsent = getStored(EU_CONSENT_KEY, null);
+        profile.pendingConsentActions = getPendingConsentActions();
+        synchronized (tcDataCache) {
+            profile.tcData.putAll(tcData());
+        }
+        profile.userConsent = getUserConsent();
+        return profile;
+    }
+
+    private void restoreProfile(ConsentProfiles.Profile profile){
+        putOrRemove(CONSENT_UUID_KEY, profile.consentUUID);
+        putOrRemove(META_DATA_KEY, profile.metaData);
+        putOrRemove(EU_CONSENT_KEY, profile.euConsent);
+        putOrRemove(PENDING_CONSENT_ACTIONS_KEY, profile.pendingConsentActions);
+        Transaction transaction = edit().setTCData(profile.tcData);
+        try {
+            transaction.setUserConsents(profile.userConsent);
+        } catch (JSONException | ConsentLibException e) {
+            Log.d(TAG, "Failed to restore the user consent: " + e.getMessage());
+        }
+        transaction.commit();
+    }
+
+    private void putOrRemove(String key, String value){
+        if (value == null) storageEditor.remove(key);
+        else storageEditor.putString(key, value);
     }
 
     public void clearAllData(){
         clearInternalData();
         clearConsentData();
+        if (profiles != null) profiles.clear();
     }
 
     public void clearInternalData(){
-        editor.remove(CONSENT_UUID_KEY);
-        editor.remove(META_DATA_KEY);
-        editor.remove(EU_CONSENT_KEY);
-        editor.remove(AUTH_ID_KEY);
-        editor.commit();
+        storageEditor().remove(CONSENT_UUID_KEY)
+                .remove(META_DATA_KEY)
+                .remove(EU_CONSENT_KEY)
+                .remove(AUTH_ID_KEY)
+                .remove(PENDING_CONSENT_ACTIONS_KEY)
+                .commit();
+    }
+
+    private ConsentStorage.Editor storageEditor(){
+        ConsentStatePreloader.invalidate();
+        migrateStorage();
+        return storageEditor;
+    }
+
+    // Until they're moved, values written to pref before another storage was set are read from there
+    private String getStored(String key, String defaultValue){
+        if (sharesEditor || storage.contains(key)) return storage.getString(key, defaultValue);
+        return pref.getString(key, defaultValue);
+    }
+
+    // Values left in pref are moved to the storage before its first write, so they can't shadow what it removes
+    private synchronized void migrateStorage(){
+        if (!storageMigrated) {
+            storageMigrated = true;
+            if (!sharesEditor) moveStorageKeys();
+        }
+    }
+
+    private void moveStorageKeys(){
+        ConsentStorage.Editor moved = storage.edit();
+        SharedPreferences.Editor removed = pref.edit();
+        boolean found = false;
+        for (String key : STORAGE_KEYS) {
+            if (!pref.contains(key)) continue;
+            found = true;
+            if (!storage.contains(key)) moved.putString(key, pref.getString(key, null));
+            removed.remove(key);
+        }
+        if (found && moved.commit()) removed.apply();
     }
 
     public HashMap getTCData(){
-        HashMap tcData = new HashMap();
-        Map<String , ?> map = pref.getAll();
-        for(String key : map.keySet()) if (key.startsWith(IABTCF_KEY_PREFIX))
-            tcData.put(key, map.get(key));
-        return tcData;
+        synchronized (tcDataCache) {
+            return new HashMap<>(tcData());
+        }
     };
 
     public void clearConsentData(){
-        for(String key : pref.getAll().keySet()) if (key.startsWith(IABTCF_KEY_PREFIX))
-            editor.remove(key);
-        editor.commit();
+        synchronized (tcDataCache) {
+            for(String key : tcData().keySet()) editor.remove(key);
+            editor.remove(TC_DATA_KEYS_KEY);
+            tcData().clear();
+            tcDataCache.indexUnsaved = false;
+            editor.commit();
+        }
+        publishMappedConsent(new HashMap<String, GDPRUserConsent.VendorGrants.VendorGrant>());
+    }
+
+    // The snapshot is only republished along with the user consent, which carries the vendor grants,
+    // so other processes never see TC data and grants from different responses
+    private void publishMappedConsent(Map<String, GDPRUserConsent.VendorGrants.VendorGrant> vendorGrants){
+        if (mappedConsentFile == null) return;
+        HashMap<String, Object> tcData;
+        synchronized (tcDataCache) {
+            tcData = new HashMap<>(tcData());
+        }
+        MappedConsent.publish(mappedConsentFile, tcData, vendorGrants);
+    }
+
+    /**
+     * @return how many times TC data was written and how many of those writes changed it
+     */
+    public int getTCDataWrites(){
+        synchronized (tcDataCache) {
+            return tcDataWrites;
+        }
+    }
+
+    public int getTCDataChanges(){
+        synchronized (tcDataCache) {
+            return tcDataChanges;
+        }
+    }
+
+    // Staged values show in getTCData() right away, they reach the disk with the next commit or apply.
+    // Unchanged keys aren't rewritten so listeners of the IABTCF_ keys only hear about real changes.
+    private TCDataDelta stageTCData(HashMap<String, Object> newTCData){
+        synchronized (tcDataCache) {
+            HashMap<String, Object> tcData = tcData();
+            HashSet<String> added = new HashSet<>(), changed = new HashSet<>(), removed = new HashSet<>();
+            for(String key : tcData.keySet()) if (!newTCData.containsKey(key)) removed.add(key);
+            for(String key : removed) {
+                editor.remove(key);
+                tcData.remove(key);
+            }
+            for(String key : newTCData.keySet()) {
+                Object value = newTCData.get(key), stored = tcData.get(key);
+                if (value.equals(stored) || !putTCValue(key, value)) continue;
+                if (stored == null) added.add(key);
+                else changed.add(key);
+            }
+            if (!added.isEmpty() || !removed.isEmpty() || tcDataCache.indexUnsaved) stageTCDataKeys();
+            TCDataDelta delta = new TCDataDelta(added, changed, removed);
+            tcDataWrites++;
+            if (!delta.isEmpty()) tcDataChanges++;
+            return delta;
+        }
+    }
+
+    private void stageTCValue(String key, Object value){
+        synchronized (tcDataCache) {
+            putTCValue(key, value);
+            stageTCDataKeys();
+        }
+    }
+
+    // callers hold the tcDataCache lock
+    private void stageTCDataKeys(){
+        editor.putStringSet(TC_DATA_KEYS_KEY, new HashSet<>(tcData().keySet()));
+        tcDataCache.indexUnsaved = false;
+    }
+
+    // false if the value is neither an Integer nor a String and wasn't staged
+    private boolean putTCValue(String key, Object value){
+        if(value.getClass().equals(Integer.class)) editor.putInt(key, (Integer) value);
+        else if(value.getClass().equals(String.class)) editor.putString(key, (String) value);
+        else return false;
+        tcData().put(key, value);
+        return true;
+    }
+
+    // callers hold the tcDataCache lock
+    private HashMap<String, Object> tcData(){
+        if (tcDataCache.values == null) tcDataCache.values = loadTCData();
+        return tcDataCache.values;
+    }
+
+    private HashMap<String, Object> loadTCData(){
+        HashMap<String, Object> stored = new HashMap<>();
+        Set<String> keys = pref.getStringSet(TC_DATA_KEYS_KEY, null);
+        if (keys == null) {
+            // written before the keys were tracked, a last full scan builds the index
+            Map<String , ?> map = pref.getAll();
+            for(String key : map.keySet()) if (key.startsWith(IABTCF_KEY_PREFIX))
+                stored.put(key, map.get(key));
+            tcDataCache.indexUnsaved = true;
+            return stored;
+        }
+        for(String key : keys) {
+            Object value = readTCValue(key);
+            if (value != null) stored.put(key, value);
+        }
+        return stored;
+    }
+
+    // IABTCF_ values are either ints or Strings
+    private Object readTCValue(String key){
+        if (!pref.contains(key)) return null;
+        try {
+            return pref.getString(key, null);
+        } catch (ClassCastException e) {
+            return pref.getInt(key, 0);
+        }
     }
 }
@@ -0,0 +1,54 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handle on the consent stored by StoreClient, decoded on the first get() rather than when the
+ * lib is built. GDPRConsentLib calls get() on its decoder() once the stored state is read, so by the
+ * time the consent is needed it's usually there already; get() waits for a decode in progress.
+ * A consent that can't be decoded is replaced by an empty one, as it used to be at construction.
+ */
+class StoredUserConsent {
+
+    private static final String TAG = "StoredUserConsent";
+
+    private static ExecutorService decoder;
+
+    private final StoreClient storeClient;
+    private GDPRUserConsent userConsent;
+
+    StoredUserConsent(StoreClient storeClient) {
+        this.storeClient = storeClient;
+    }
+
+    synchronized GDPRUserConsent get() {
+        if (userConsent == null) {
+            try {
+                userConsent = storeClient.getUserConsent();
+            } catch (ConsentLibException e) {
+                Log.d(TAG, "Failed to decode the stored consent: " + e.consentLibErrorMessage);
+            }
+            if (userConsent == null) userConsent = new GDPRUserConsent();
+        }
+        return userConsent;
+    }
+
+    // a single thread that goes away when idle, decoding is rare and short lived
+    static synchronized ExecutorService decoder() {
+        if (decoder == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, "sp-gdpr-consent-decode");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            decoder = executor;
+        }
+        return decoder;
+    }
+}
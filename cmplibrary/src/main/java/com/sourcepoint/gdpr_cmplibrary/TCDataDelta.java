@@ -0,0 +1,45 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The IABTCF_ keys a TC data write actually touched: keys that weren't stored before,
+ * keys whose value changed and keys that were dropped. Keys with the same value aren't rewritten.
+ */
+class TCDataDelta {
+
+    final Set<String> added, changed, removed;
+
+    TCDataDelta(Set<String> added, Set<String> changed, Set<String> removed) {
+        this.added = Collections.unmodifiableSet(new HashSet<>(added));
+        this.changed = Collections.unmodifiableSet(new HashSet<>(changed));
+        this.removed = Collections.unmodifiableSet(new HashSet<>(removed));
+    }
+
+    static TCDataDelta between(Map<String, Object> previous, Map<String, Object> current) {
+        Set<String> added = new HashSet<>(), changed = new HashSet<>(), removed = new HashSet<>();
+        for (String key : previous.keySet()) if (!current.containsKey(key)) removed.add(key);
+        for (Map.Entry<String, Object> entry : current.entrySet()) {
+            if (!previous.containsKey(entry.getKey())) added.add(entry.getKey());
+            else if (!equal(previous.get(entry.getKey()), entry.getValue())) changed.add(entry.getKey());
+        }
+        return new TCDataDelta(added, changed, removed);
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    boolean isEmpty() {
+        return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        if (isEmpty()) return "unchanged";
+        return "added " + added + ", changed " + changed + ", removed " + removed;
+    }
+}
@@ -0,0 +1,277 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.util.Log;
+
+/**
+ * Decoder of the core segment of a TCF v2 consent string (the euconsent), so purpose and vendor checks can
+ * be answered from the stored string alone, without the userConsent JSON.
+ * parse() only decodes the base64url and checks the version; the fixed header fields are read from the
+ * bits when asked for and each vendor section is decoded into a bitset the first time it's queried.
+ * A vendor section that can't be read grants nothing.
+ * Publisher restrictions and the segments after the core one aren't decoded.
+ */
+public final class TCString {
+
+    private static final String TAG = "TCString";
+
+    private static final int VERSION = 0, CREATED = 6, LAST_UPDATED = 42, CMP_ID = 78, CMP_VERSION = 90,
+            CONSENT_SCREEN = 102, CONSENT_LANGUAGE = 108, VENDOR_LIST_VERSION = 120, POLICY_VERSION = 132,
+            IS_SERVICE_SPECIFIC = 138, USE_NON_STANDARD_STACKS = 139, SPECIAL_FEATURE_OPT_INS = 140,
+            PURPOSES_CONSENT = 152, PURPOSES_LI_TRANSPARENCY = 176, PURPOSE_ONE_TREATMENT = 200,
+            PUBLISHER_CC = 201, VENDOR_CONSENTS = 213;
+
+    private static final int SPECIAL_FEATURES = 12, PURPOSES = 24;
+
+    private static final byte[] BASE64URL = new byte[128];
+
+    static {
+        java.util.Arrays.fill(BASE64URL, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        for (int i = 0; i < alphabet.length(); i++) BASE64URL[alphabet.charAt(i)] = (byte) i;
+    }
+
+    // the string it was decoded from
+    final String consentString;
+
+    private final byte[] bits;
+    private final int bitLength;
+
+    // decoded on first use
+    private volatile VendorSection vendorConsents, vendorLegitimateInterests;
+
+    private TCString(String consentString, byte[] bits, int bitLength) {
+        this.consentString = consentString;
+        this.bits = bits;
+        this.bitLength = bitLength;
+    }
+
+    /**
+     * @param consentString - a TCF v2 consent string, only its core segment is read
+     * @throws ConsentLibException if it isn't base64url, is too short for the core header or isn't version 2
+     */
+    public static TCString parse(String consentString) throws ConsentLibException {
+        if (consentString == null) throw new ConsentLibException("No consent string to decode");
+        int end = consentString.indexOf('.');
+        if (end < 0) end = consentString.length();
+        while (end > 0 && consentString.charAt(end - 1) == '=') end--;
+        byte[] bytes = new byte[end * 6 / 8 + 1];
+        int bitLength = end * 6, buffer = 0, buffered = 0, length = 0;
+        for (int i = 0; i < end; i++) {
+            char c = consentString.charAt(i);
+            int sextet = c < 128 ? BASE64URL[c] : -1;
+            if (sextet < 0) throw new ConsentLibException("Invalid character in the consent string: " + c);
+            buffer = (buffer << 6) | sextet;
+            buffered += 6;
+            if (buffered >= 8) {
+                buffered -= 8;
+                bytes[length++] = (byte) (buffer >>> buffered);
+            }
+        }
+        if (buffered > 0) bytes[length] = (byte) (buffer << (8 - buffered));
+        TCString tcString = new TCString(consentString, bytes, bitLength);
+        if (bitLength < VENDOR_CONSENTS) throw new ConsentLibException("Consent string too short for a TCF v2 core segment");
+        if (tcString.getVersion() != 2) throw new ConsentLibException("Unsupported consent string version " + tcString.getVersion());
+        return tcString;
+    }
+
+    /**
+     * @return the decoded string or null if there is none or it isn't a TCF v2 one
+     */
+    static TCString parseOrNull(String consentString) {
+        if (consentString == null || consentString.isEmpty()) return null;
+        try {
+            return parse(consentString);
+        } catch (ConsentLibException e) {
+            Log.d(TAG, e.consentLibErrorMessage);
+            return null;
+        }
+    }
+
+    public int getVersion() {
+        return (int) read(VERSION, 6);
+    }
+
+    /**
+     * @return when the string was created, in milliseconds since the epoch (stored with decisecond precision)
+     */
+    public long getCreated() {
+        return read(CREATED, 36) * 100;
+    }
+
+    public long getLastUpdated() {
+        return read(LAST_UPDATED, 36) * 100;
+    }
+
+    public int getCmpId() {
+        return (int) read(CMP_ID, 12);
+    }
+
+    public int getCmpVersion() {
+        return (int) read(CMP_VERSION, 12);
+    }
+
+    public int getConsentScreen() {
+        return (int) read(CONSENT_SCREEN, 6);
+    }
+
+    /**
+     * @return the two letter, upper case, ISO 639-1 code of the language of the consent UI
+     */
+    public String getConsentLanguage() {
+        return letters(CONSENT_LANGUAGE);
+    }
+
+    public int getVendorListVersion() {
+        return (int) read(VENDOR_LIST_VERSION, 12);
+    }
+
+    public int getPolicyVersion() {
+        return (int) read(POLICY_VERSION, 6);
+    }
+
+    public boolean isServiceSpecific() {
+        return read(IS_SERVICE_SPECIFIC, 1) != 0;
+    }
+
+    public boolean useNonStandardStacks() {
+        return read(USE_NON_STANDARD_STACKS, 1) != 0;
+    }
+
+    public boolean isPurposeOneTreatment() {
+        return read(PURPOSE_ONE_TREATMENT, 1) != 0;
+    }
+
+    public String getPublisherCC() {
+        return letters(PUBLISHER_CC);
+    }
+
+    /**
+     * @param id - special feature id, from 1
+     */
+    public boolean isSpecialFeatureOptedIn(int id) {
+        return id >= 1 && id <= SPECIAL_FEATURES && isSet(SPECIAL_FEATURE_OPT_INS + id - 1);
+    }
+
+    /**
+     * @param id - purpose id, from 1
+     */
+    public boolean isPurposeConsented(int id) {
+        return id >= 1 && id <= PURPOSES && isSet(PURPOSES_CONSENT + id - 1);
+    }
+
+    /**
+     * @param id - purpose id, from 1
+     */
+    public boolean isPurposeLegitimateInterest(int id) {
+        return id >= 1 && id <= PURPOSES && isSet(PURPOSES_LI_TRANSPARENCY + id - 1);
+    }
+
+    /**
+     * @param id - IAB vendor id
+     */
+    public boolean isVendorConsented(int id) {
+        return vendorConsents().contains(id);
+    }
+
+    /**
+     * @param id - IAB vendor id
+     */
+    public boolean isVendorLegitimateInterest(int id) {
+        return vendorLegitimateInterests().contains(id);
+    }
+
+    /**
+     * @return the highest vendor id of the vendor consent section
+     */
+    public int getMaxVendorId() {
+        return vendorConsents().maxVendorId;
+    }
+
+    private VendorSection vendorConsents() {
+        VendorSection section = vendorConsents;
+        if (section == null) vendorConsents = section = decodeVendorSection(VENDOR_CONSENTS);
+        return section;
+    }
+
+    // the legitimate interest section starts where the consent one ends
+    private VendorSection vendorLegitimateInterests() {
+        VendorSection section = vendorLegitimateInterests;
+        if (section == null) {
+            VendorSection consents = vendorConsents();
+            section = consents.end < 0 ? VendorSection.EMPTY : decodeVendorSection(consents.end);
+            vendorLegitimateInterests = section;
+        }
+        return section;
+    }
+
+    private VendorSection decodeVendorSection(int offset) {
+        try {
+            int maxVendorId = (int) read(offset, 16);
+            long[] vendors = new long[(maxVendorId >>> 6) + 1];
+            offset += 16;
+            boolean isRangeEncoding = read(offset++, 1) != 0;
+            if (!isRangeEncoding) {
+                for (int id = 1; id <= maxVendorId; id++) {
+                    if (isSet(offset + id - 1)) vendors[id >>> 6] |= 1L << id;
+                }
+                return new VendorSection(maxVendorId, vendors, offset + maxVendorId);
+            }
+            int entries = (int) read(offset, 12);
+            offset += 12;
+            for (int i = 0; i < entries; i++) {
+                boolean isRange = read(offset++, 1) != 0;
+                int start = (int) read(offset, 16), end = start;
+                offset += 16;
+                if (isRange) {
+                    end = (int) read(offset, 16);
+                    offset += 16;
+                }
+                if (start < 1 || end < start || end > maxVendorId) throw new IndexOutOfBoundsException("invalid vendor range " + start + "-" + end);
+                for (int id = start; id <= end; id++) vendors[id >>> 6] |= 1L << id;
+            }
+            return new VendorSection(maxVendorId, vendors, offset);
+        } catch (IndexOutOfBoundsException e) {
+            Log.d(TAG, "Unreadable vendor section: " + e.getMessage());
+            return VendorSection.EMPTY;
+        }
+    }
+
+    private boolean isSet(int bit) {
+        if (bit >= bitLength) throw new IndexOutOfBoundsException("truncated consent string");
+        return (bits[bit >>> 3] & (0x80 >>> (bit & 7))) != 0;
+    }
+
+    private long read(int offset, int length) {
+        if (offset + length > bitLength) throw new IndexOutOfBoundsException("truncated consent string");
+        long value = 0;
+        for (int bit = offset; bit < offset + length; bit++) {
+            value = (value << 1) | ((bits[bit >>> 3] >>> (7 - (bit & 7))) & 1);
+        }
+        return value;
+    }
+
+    private String letters(int offset) {
+        return new String(new char[]{(char) ('A' + read(offset, 6)), (char) ('A' + read(offset + 6, 6))});
+    }
+
+    private static class VendorSection {
+
+        static final VendorSection EMPTY = new VendorSection(0, new long[1], -1);
+
+        final int maxVendorId;
+        final long[] vendors;
+
+        // bit offset of what follows the section, -1 if it couldn't be read
+        final int end;
+
+        VendorSection(int maxVendorId, long[] vendors, int end) {
+            this.maxVendorId = maxVendorId;
+            this.vendors = vendors;
+            this.end = end;
+        }
+
+        boolean contains(int id) {
+            return id >= 1 && id <= maxVendorId && (vendors[id >>> 6] & (1L << id)) != 0;
+        }
+    }
+}
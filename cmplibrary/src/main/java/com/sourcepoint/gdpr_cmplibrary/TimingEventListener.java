@@ -0,0 +1,195 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Timestamps the phases of one call and, when it ends, records its CallTimings in NetworkTimings
+ * and hands them to the host's OnNetworkTimingsCallback, on the OkHttp thread that ran the call.
+ * Every event is also forwarded to the listener of the host's own OkHttpClient, if any.
+ */
+class TimingEventListener extends EventListener {
+    private static final String TAG = "TimingEventListener";
+
+    private final EventListener delegate;
+    private final GDPRConsentLib.OnNetworkTimingsCallback callback;
+
+    private long callStart = -1, dnsStart = -1, dnsEnd = -1, connectStart = -1, connectEnd = -1,
+            secureConnectStart = -1, secureConnectEnd = -1, requestStart = -1, requestEnd = -1,
+            responseHeadersEnd = -1, responseBodyStart = -1, responseBodyEnd = -1;
+    private long requestBytes = 0, responseBytes = 0;
+
+    TimingEventListener(EventListener delegate, GDPRConsentLib.OnNetworkTimingsCallback callback) {
+        this.delegate = delegate;
+        this.callback = callback;
+    }
+
+    static EventListener.Factory factory(EventListener.Factory hostFactory, GDPRConsentLib.OnNetworkTimingsCallback callback) {
+        return call -> new TimingEventListener(hostFactory.create(call), callback);
+    }
+
+    private static long now() {
+        return System.nanoTime();
+    }
+
+    private static long millis(long start, long end) {
+        return start >= 0 && end >= start ? (end - start) / 1000000 : -1;
+    }
+
+    @Override
+    public void callStart(Call call) {
+        callStart = now();
+        delegate.callStart(call);
+    }
+
+    @Override
+    public void dnsStart(Call call, String domainName) {
+        dnsStart = now();
+        delegate.dnsStart(call, domainName);
+    }
+
+    @Override
+    public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+        dnsEnd = now();
+        delegate.dnsEnd(call, domainName, inetAddressList);
+    }
+
+    @Override
+    public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+        if (connectStart < 0) connectStart = now();
+        delegate.connectStart(call, inetSocketAddress, proxy);
+    }
+
+    @Override
+    public void secureConnectStart(Call call) {
+        secureConnectStart = now();
+        delegate.secureConnectStart(call);
+    }
+
+    @Override
+    public void secureConnectEnd(Call call, Handshake handshake) {
+        secureConnectEnd = now();
+        delegate.secureConnectEnd(call, handshake);
+    }
+
+    @Override
+    public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+        connectEnd = now();
+        delegate.connectEnd(call, inetSocketAddress, proxy, protocol);
+    }
+
+    @Override
+    public void connectFailed(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol, IOException ioe) {
+        delegate.connectFailed(call, inetSocketAddress, proxy, protocol, ioe);
+    }
+
+    @Override
+    public void connectionAcquired(Call call, Connection connection) {
+        delegate.connectionAcquired(call, connection);
+    }
+
+    @Override
+    public void connectionReleased(Call call, Connection connection) {
+        delegate.connectionReleased(call, connection);
+    }
+
+    @Override
+    public void requestHeadersStart(Call call) {
+        requestStart = now();
+        delegate.requestHeadersStart(call);
+    }
+
+    @Override
+    public void requestHeadersEnd(Call call, Request request) {
+        requestEnd = now();
+        delegate.requestHeadersEnd(call, request);
+    }
+
+    @Override
+    public void requestBodyStart(Call call) {
+        delegate.requestBodyStart(call);
+    }
+
+    @Override
+    public void requestBodyEnd(Call call, long byteCount) {
+        requestEnd = now();
+        requestBytes = byteCount;
+        delegate.requestBodyEnd(call, byteCount);
+    }
+
+    @Override
+    public void responseHeadersStart(Call call) {
+        delegate.responseHeadersStart(call);
+    }
+
+    @Override
+    public void responseHeadersEnd(Call call, Response response) {
+        // responseHeadersStart fires before blocking on the socket, the headers having been read is the first byte we can see
+        responseHeadersEnd = now();
+        delegate.responseHeadersEnd(call, response);
+    }
+
+    @Override
+    public void responseBodyStart(Call call) {
+        responseBodyStart = now();
+        delegate.responseBodyStart(call);
+    }
+
+    @Override
+    public void responseBodyEnd(Call call, long byteCount) {
+        responseBodyEnd = now();
+        responseBytes = byteCount;
+        delegate.responseBodyEnd(call, byteCount);
+    }
+
+    @Override
+    public void callEnd(Call call) {
+        delegate.callEnd(call);
+        report(call, null);
+    }
+
+    @Override
+    public void callFailed(Call call, IOException ioe) {
+        delegate.callFailed(call, ioe);
+        report(call, ioe.toString());
+    }
+
+    private void report(Call call, String error) {
+        long connectUntil = secureConnectStart >= 0 ? secureConnectStart : connectEnd;
+        CallTimings timings = new CallTimings(
+                call.request().url().toString(),
+                millis(dnsStart, dnsEnd),
+                millis(connectStart, connectUntil),
+                millis(secureConnectStart, secureConnectEnd),
+                millis(requestStart, requestEnd),
+                millis(requestEnd, responseHeadersEnd),
+                millis(responseBodyStart, responseBodyEnd),
+                millis(callStart, now()),
+                requestBytes,
+                responseBytes,
+                connectStart < 0,
+                error
+        );
+        Log.d(TAG, timings.toString());
+        NetworkTimings.getInstance().record(timings);
+        if (callback == null) return;
+        try {
+            callback.run(timings);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error in OnNetworkTimingsCallback", e);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * Byte counters of the traffic between the lib and SourcePoint, for the whole process.
+ * Body bytes are what the lib builds and decodes, wire bytes what actually went over the network,
+ * so the difference is what request and response compression saved.
+ */
+public final class TransferStats {
+
+    private static final TransferStats instance = new TransferStats();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong requestBodyBytes = new AtomicLong();
+    private final AtomicLong requestWireBytes = new AtomicLong();
+    private final AtomicLong responseBodyBytes = new AtomicLong();
+    private final AtomicLong responseWireBytes = new AtomicLong();
+
+    private TransferStats() { }
+
+    public static TransferStats getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return number of requests sent to SourcePoint, retries included
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return bytes of the request bodies before compression
+     */
+    public long getRequestBodyBytes() {
+        return requestBodyBytes.get();
+    }
+
+    /**
+     * @return bytes of the request bodies as sent, compressed or not
+     */
+    public long getRequestWireBytes() {
+        return requestWireBytes.get();
+    }
+
+    /**
+     * @return bytes of the response bodies after decompression
+     */
+    public long getResponseBodyBytes() {
+        return responseBodyBytes.get();
+    }
+
+    /**
+     * @return bytes of the response bodies as received, compressed or not
+     */
+    public long getResponseWireBytes() {
+        return responseWireBytes.get();
+    }
+
+    public void reset() {
+        requests.set(0);
+        requestBodyBytes.set(0);
+        requestWireBytes.set(0);
+        responseBodyBytes.set(0);
+        responseWireBytes.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "TransferStats{requests=" + requests + ", requestBodyBytes=" + requestBodyBytes
+                + ", requestWireBytes=" + requestWireBytes + ", responseBodyBytes=" + responseBodyBytes
+                + ", responseWireBytes=" + responseWireBytes + "}";
+    }
+
+    /**
+     * @param wire - true to count what goes over the network, as a network interceptor,
+     *             false to count what the lib sees, as the outermost application interceptor
+     */
+    Interceptor interceptor(boolean wire) {
+        AtomicLong requestBytes = wire ? requestWireBytes : requestBodyBytes;
+        AtomicLong responseBytes = wire ? responseWireBytes : responseBodyBytes;
+        return chain -> {
+            Request request = chain.request();
+            if (wire) requests.incrementAndGet();
+            if (request.body() != null && request.body().contentLength() > 0)
+                requestBytes.addAndGet(request.body().contentLength());
+            Response response = chain.proceed(request);
+            ResponseBody body = response.body();
+            if (body == null) return response;
+            ForwardingSource counting = new ForwardingSource(body.source()) {
+                @Override
+                public long read(Buffer sink, long byteCount) throws IOException {
+                    long read = super.read(sink, byteCount);
+                    if (read > 0) responseBytes.addAndGet(read);
+                    return read;
+                }
+            };
+            return response.newBuilder()
+                    .body(ResponseBody.create(body.contentType(), body.contentLength(), Okio.buffer(counting)))
+                    .build();
+        };
+    }
+}
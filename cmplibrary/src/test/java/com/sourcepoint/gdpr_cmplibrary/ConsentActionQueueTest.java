@@ -0,0 +1,117 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class ConsentActionQueueTest {
+
+    private SharedPreferences sharedPreferences;
+    private ConsentActionQueue queue;
+
+    private static JSONObject action(String uuid, int actionType) throws Exception {
+        return new JSONObject().put("uuid", uuid).put("actionType", actionType);
+    }
+
+    @Before
+    public void setUp() {
+        sharedPreferences = PreferenceManager.getDefaultSharedPreferences(ApplicationProvider.getApplicationContext());
+        sharedPreferences.edit().clear().commit();
+        queue = new ConsentActionQueue(new StoreClient(sharedPreferences), new PersistenceQueue(Runnable::run));
+    }
+
+    @Test
+    public void emptyByDefault() {
+        assertTrue(queue.isEmpty());
+        assertNull(queue.peek());
+    }
+
+    @Test
+    public void enqueueAssignsARequestUUID() throws Exception {
+        JSONObject action = action("uuid", ActionTypes.ACCEPT_ALL.code);
+        queue.enqueue(action);
+        assertTrue(action.has("requestUUID"));
+        assertEquals(action.getString("requestUUID"), queue.peek().getString("requestUUID"));
+    }
+
+    @Test
+    public void enqueueKeepsAnExistingRequestUUID() throws Exception {
+        queue.enqueue(action("uuid", ActionTypes.ACCEPT_ALL.code).put("requestUUID", "request-1"));
+        assertEquals("request-1", queue.peek().getString("requestUUID"));
+    }
+
+    @Test
+    public void newerActionForTheSameUuidSupersedesTheQueuedOne() throws Exception {
+        queue.enqueue(action("uuid", ActionTypes.ACCEPT_ALL.code));
+        queue.enqueue(action("other-uuid", ActionTypes.ACCEPT_ALL.code));
+        queue.enqueue(action("uuid", ActionTypes.REJECT_ALL.code));
+
+        assertEquals(2, queue.size());
+        assertEquals("other-uuid", queue.peek().getString("uuid"));
+        queue.remove(queue.peek());
+        assertEquals(ActionTypes.REJECT_ALL.code, queue.peek().getInt("actionType"));
+    }
+
+    @Test
+    public void actionsWithoutUuidAreCoalesced() throws Exception {
+        queue.enqueue(new JSONObject().put("actionType", ActionTypes.ACCEPT_ALL.code));
+        queue.enqueue(new JSONObject().put("actionType", ActionTypes.REJECT_ALL.code));
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void queueIsPersisted() throws Exception {
+        queue.enqueue(action("uuid", ActionTypes.ACCEPT_ALL.code));
+        ConsentActionQueue reloaded = new ConsentActionQueue(new StoreClient(sharedPreferences), new PersistenceQueue(Runnable::run));
+        assertEquals("uuid", reloaded.peek().getString("uuid"));
+    }
+
+    @Test
+    public void queuesOverTheSamePreferencesShareTheirActions() throws Exception {
+        ConsentActionQueue other = new ConsentActionQueue(new StoreClient(sharedPreferences), new PersistenceQueue(Runnable::run));
+        queue.enqueue(action("uuid", ActionTypes.ACCEPT_ALL.code));
+        other.enqueue(action("other-uuid", ActionTypes.REJECT_ALL.code));
+
+        assertEquals(2, queue.size());
+        other.remove(other.peek());
+        assertEquals("other-uuid", queue.peek().getString("uuid"));
+    }
+
+    @Test
+    public void reloadReadsTheStoredQueueAgain() throws Exception {
+        queue.enqueue(action("uuid", ActionTypes.ACCEPT_ALL.code));
+        new StoreClient(sharedPreferences).clearInternalData();
+        assertEquals(1, queue.size());
+
+        queue.reload();
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void removingTheLastActionClearsTheKey() throws Exception {
+        queue.enqueue(action("uuid", ActionTypes.ACCEPT_ALL.code));
+        queue.remove(queue.peek());
+        assertTrue(queue.isEmpty());
+        assertFalse(sharedPreferences.contains(StoreClient.PENDING_CONSENT_ACTIONS_KEY));
+    }
+
+    @Test
+    public void unreadableQueueIsDropped() {
+        sharedPreferences.edit().putString(StoreClient.PENDING_CONSENT_ACTIONS_KEY, "not json").commit();
+        assertTrue(queue.isEmpty());
+        assertFalse(sharedPreferences.contains(StoreClient.PENDING_CONSENT_ACTIONS_KEY));
+    }
+}
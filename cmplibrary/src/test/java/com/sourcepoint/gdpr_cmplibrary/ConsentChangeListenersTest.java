@@ -0,0 +1,72 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class ConsentChangeListenersTest {
+
+    private static final String VENDOR_0 = "5e7ced57b8e05c4854221000";
+    private static final String VENDOR_2 = "5e7ced57b8e05c4854221002";
+    private static final String PURPOSE_0 = "5e87321eb31ef52cd96cc500";
+    private static final String PURPOSE_1 = "5e87321eb31ef52cd96cc501";
+
+    private static ConsentSnapshot snapshot(int vendors, int purposes, long version) throws Exception {
+        return new ConsentSnapshot(FakeWrapperApi.userConsent(vendors, purposes), version);
+    }
+
+    @Test
+    public void nothingIsDiffedWithoutListeners() throws Exception {
+        assertNull(new ConsentChangeListeners().dispatch(snapshot(2, 2, 1)));
+    }
+
+    @Test
+    public void listenersOnlyHearOfWhatAffectsThem() throws Exception {
+        ConsentChangeListeners listeners = new ConsentChangeListeners();
+        List<String> calls = new ArrayList<>();
+        listeners.addForAny(diff -> calls.add("any"), snapshot(2, 2, 0));
+        listeners.addForVendor(VENDOR_2, diff -> calls.add("vendor 2"), snapshot(2, 2, 0));
+        listeners.addForVendor(VENDOR_0, diff -> calls.add("vendor 0"), snapshot(2, 2, 0));
+        listeners.addForPurpose(PURPOSE_1, diff -> calls.add("purpose 1"), snapshot(2, 2, 0));
+        listeners.addForPurpose(PURPOSE_0, diff -> calls.add("purpose 0"), snapshot(2, 2, 0));
+
+        // a third vendor, granted the first purpose only
+        ConsentSnapshot current = snapshot(3, 2, 1);
+        ConsentDiff diff = listeners.dispatch(current);
+        assertSame(current, diff.getCurrent());
+        assertTrue(calls.contains("any"));
+        assertTrue(calls.contains("vendor 2"));
+        assertTrue(calls.contains("purpose 0"));
+        assertFalse(calls.contains("vendor 0"));
+        assertFalse(calls.contains("purpose 1"));
+
+        // diffed against the previous dispatch, not the first consent
+        calls.clear();
+        assertTrue(listeners.dispatch(snapshot(3, 2, 2)).isEmpty());
+        assertTrue(calls.isEmpty());
+    }
+
+    @Test
+    public void removedListenersArentCalled() throws Exception {
+        ConsentChangeListeners listeners = new ConsentChangeListeners();
+        List<String> calls = new ArrayList<>();
+        GDPRConsentLib.OnConsentChangedCallback callback = diff -> calls.add("called");
+        listeners.addForAny(callback, snapshot(1, 1, 0));
+        listeners.addForVendor(VENDOR_2, callback, snapshot(1, 1, 0));
+
+        assertTrue(listeners.remove(callback));
+        assertFalse(listeners.remove(callback));
+        listeners.dispatch(snapshot(3, 1, 1));
+        assertEquals(0, calls.size());
+    }
+}
@@ -0,0 +1,103 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class ConsentDiffTest {
+
+    private static final String VENDOR_0 = "5e7ced57b8e05c4854221000";
+    private static final String VENDOR_1 = "5e7ced57b8e05c4854221001";
+    private static final String VENDOR_2 = "5e7ced57b8e05c4854221002";
+    private static final String PURPOSE_0 = "5e87321eb31ef52cd96cc500";
+    private static final String PURPOSE_1 = "5e87321eb31ef52cd96cc501";
+
+    private static ConsentDiff diff(GDPRUserConsent previous, GDPRUserConsent current) {
+        return ConsentDiff.between(new ConsentSnapshot(previous, 1), new ConsentSnapshot(current, 2));
+    }
+
+    private static HashSet<String> set(String... values) {
+        return new HashSet<>(Arrays.asList(values));
+    }
+
+    @Test
+    public void theSameConsentIsUnchanged() throws Exception {
+        ConsentDiff diff = diff(FakeWrapperApi.userConsent(3, 2), FakeWrapperApi.userConsent(3, 2));
+        assertTrue(diff.isEmpty());
+        assertTrue(diff.getChangedVendors().isEmpty());
+        assertEquals("unchanged", diff.toString());
+    }
+
+    @Test
+    public void vendorsAddedAndRemoved() throws Exception {
+        ConsentDiff diff = diff(FakeWrapperApi.userConsent(2, 2), FakeWrapperApi.userConsent(3, 2));
+        assertEquals(set(VENDOR_2), diff.getAddedVendors());
+        assertTrue(diff.getRemovedVendors().isEmpty());
+        assertEquals(set(VENDOR_2), diff.getChangedVendors());
+        assertTrue(diff.affectsVendor(VENDOR_2));
+        assertFalse(diff.affectsVendor(VENDOR_0));
+
+        diff = diff(FakeWrapperApi.userConsent(3, 2), FakeWrapperApi.userConsent(2, 2));
+        assertEquals(set(VENDOR_2), diff.getRemovedVendors());
+        assertFalse(diff.isEmpty());
+    }
+
+    @Test
+    public void purposeAndVendorGrantChanges() throws Exception {
+        GDPRUserConsent previous = FakeWrapperApi.userConsent(3, 2), current = FakeWrapperApi.userConsent(3, 2);
+        GDPRUserConsent.VendorGrants.VendorGrant grant = current.vendorGrants.get(VENDOR_0);
+        grant.purposeGrants.put(PURPOSE_1, !grant.purposeGrants.get(PURPOSE_1));
+        current.vendorGrants.get(VENDOR_1).vendorGrant = !current.vendorGrants.get(VENDOR_1).vendorGrant;
+
+        ConsentDiff diff = diff(previous, current);
+        assertEquals(set(VENDOR_0, VENDOR_1), diff.getChangedVendors());
+        assertEquals(set(PURPOSE_1), diff.getChangedPurposes(VENDOR_0));
+        assertTrue(diff.getChangedPurposes(VENDOR_1).isEmpty());
+        assertEquals(set(PURPOSE_1), diff.getChangedPurposes());
+        assertTrue(diff.affectsPurpose(PURPOSE_1));
+        assertFalse(diff.affectsPurpose(PURPOSE_0));
+        assertFalse(diff.affectsVendor(VENDOR_2));
+    }
+
+    @Test
+    public void categoriesAndSpecialFeatures() throws Exception {
+        GDPRUserConsent previous = FakeWrapperApi.userConsent(1, 1), current = FakeWrapperApi.userConsent(1, 1);
+        previous.acceptedCategories = new ArrayList<>(Arrays.asList("category-1", "category-2"));
+        current.acceptedCategories = new ArrayList<>(Arrays.asList("category-2", "category-3"));
+        current.legIntCategories.add("category-4");
+        current.specialFeatures.add("feature-1");
+
+        ConsentDiff diff = diff(previous, current);
+        assertEquals(set("category-1", "category-3", "category-4"), diff.getChangedPurposes());
+        assertEquals(set("feature-1"), diff.getChangedSpecialFeatures());
+        assertTrue(diff.getChangedVendors().isEmpty());
+    }
+
+    @Test
+    public void tcDataAndConsentString() throws Exception {
+        GDPRUserConsent previous = FakeWrapperApi.userConsent(1, 1), current = FakeWrapperApi.userConsent(1, 1);
+        previous.TCData.put("IABTCF_CmpSdkID", 6);
+        previous.TCData.put("IABTCF_TCString", "CO-before");
+        previous.TCData.put("IABTCF_PublisherCC", "FR");
+        current.TCData.put("IABTCF_CmpSdkID", 6);
+        current.TCData.put("IABTCF_TCString", "CO-after");
+        current.TCData.put("IABTCF_gdprApplies", 1);
+        current.consentString = "CO-after";
+
+        ConsentDiff diff = diff(previous, current);
+        assertEquals(set("IABTCF_gdprApplies"), diff.getAddedTCDataKeys());
+        assertEquals(set("IABTCF_TCString"), diff.getChangedTCDataKeys());
+        assertEquals(set("IABTCF_PublisherCC"), diff.getRemovedTCDataKeys());
+        assertTrue(diff.isConsentStringChanged());
+        assertFalse(diff.isEmpty());
+    }
+}
@@ -0,0 +1,176 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class ConsentFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SharedPreferences sharedPreferences;
+    private File file;
+
+    static void assertSameConsent(GDPRUserConsent expected, GDPRUserConsent actual) {
+        assertEquals(expected.uuid, actual.uuid);
+        assertEquals(expected.consentString, actual.consentString);
+        assertEquals(expected.acceptedVendors, actual.acceptedVendors);
+        assertEquals(expected.acceptedCategories, actual.acceptedCategories);
+        assertEquals(expected.specialFeatures, actual.specialFeatures);
+        assertEquals(expected.legIntCategories, actual.legIntCategories);
+        assertEquals(expected.TCData, actual.TCData);
+        assertEquals(expected.vendorGrants.keySet(), actual.vendorGrants.keySet());
+        for (String vendor : expected.vendorGrants.keySet()) {
+            assertEquals(expected.vendorGrants.get(vendor).vendorGrant, actual.vendorGrants.get(vendor).vendorGrant);
+            assertEquals(expected.vendorGrants.get(vendor).purposeGrants, actual.vendorGrants.get(vendor).purposeGrants);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        sharedPreferences = PreferenceManager.getDefaultSharedPreferences(ApplicationProvider.getApplicationContext());
+        sharedPreferences.edit().clear().commit();
+        file = new File(folder.getRoot(), ConsentFile.NAME);
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        GDPRUserConsent userConsent = FakeWrapperApi.userConsent(20, 10);
+        assertSameConsent(userConsent, ConsentFile.decode(ConsentFile.encode(userConsent)));
+    }
+
+    @Test
+    public void roundTripOfEveryTCDataType() throws Exception {
+        GDPRUserConsent userConsent = new GDPRUserConsent();
+        HashMap<String, Object> tcData = new HashMap<>();
+        tcData.put("IABTCF_int", -3);
+        tcData.put("IABTCF_long", 1L << 40);
+        tcData.put("IABTCF_double", 0.5);
+        tcData.put("IABTCF_true", true);
+        tcData.put("IABTCF_false", false);
+        tcData.put("IABTCF_string", "héllo");
+        tcData.put("IABTCF_hex", "0a1b");
+        tcData.put("IABTCF_null", JSONObject.NULL);
+        userConsent.TCData = tcData;
+        assertSameConsent(userConsent, ConsentFile.decode(ConsentFile.encode(userConsent)));
+    }
+
+    @Test
+    public void emptyConsentRoundTrip() throws Exception {
+        GDPRUserConsent userConsent = new GDPRUserConsent();
+        assertSameConsent(userConsent, ConsentFile.decode(ConsentFile.encode(userConsent)));
+    }
+
+    @Test
+    public void isSmallerThanTheJSON() throws Exception {
+        GDPRUserConsent userConsent = FakeWrapperApi.userConsent(300, 10);
+        int binary = ConsentFile.encode(userConsent).length;
+        int json = userConsent.toJsonObject().toString().getBytes("UTF-8").length;
+        assertTrue(binary * 4 < json);
+    }
+
+    @Test
+    public void corruptFilesAreRejected() throws Exception {
+        byte[] encoded = ConsentFile.encode(FakeWrapperApi.userConsent(5, 3));
+
+        byte[] flipped = encoded.clone();
+        flipped[encoded.length / 2] ^= 1;
+        assertRejected(flipped);
+
+        assertRejected(Arrays.copyOf(encoded, encoded.length - 3));
+
+        byte[] newerVersion = encoded.clone();
+        newerVersion[4] = ConsentFile.FORMAT_VERSION + 1;
+        assertRejected(newerVersion);
+
+        assertRejected("{\"not\":\"binary\"}".getBytes("UTF-8"));
+    }
+
+    private static void assertRejected(byte[] bytes) {
+        try {
+            ConsentFile.decode(bytes);
+            fail("decoded a corrupt file");
+        } catch (ConsentLibException expected) { }
+    }
+
+    @Test
+    public void writeAndRead() throws Exception {
+        ConsentFile consentFile = new ConsentFile(file);
+        assertNull(consentFile.read());
+        GDPRUserConsent userConsent = FakeWrapperApi.userConsent(10, 5);
+        assertTrue(consentFile.write(ConsentFile.encode(userConsent)));
+        assertSameConsent(userConsent, new ConsentFile(file).read());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void storeClientKeepsTheConsentInTheFile() throws Exception {
+        GDPRUserConsent userConsent = FakeWrapperApi.userConsent(10, 5);
+        new StoreClient(sharedPreferences, file).setUserConsents(userConsent);
+
+        assertTrue(file.exists());
+        assertFalse(sharedPreferences.contains(StoreClient.USER_CONSENT_KEY));
+        assertSameConsent(userConsent, new StoreClient(sharedPreferences, file).getUserConsent());
+    }
+
+    @Test
+    public void jsonConsentIsMovedToTheFile() throws Exception {
+        GDPRUserConsent userConsent = FakeWrapperApi.userConsent(10, 5);
+        new StoreClient(sharedPreferences).setUserConsents(userConsent);
+        assertTrue(sharedPreferences.contains(StoreClient.USER_CONSENT_KEY));
+
+        StoreClient storeClient = new StoreClient(sharedPreferences, file);
+        assertSameConsent(userConsent, storeClient.getUserConsent());
+        // reading doesn't write
+        assertFalse(file.exists());
+        assertTrue(sharedPreferences.contains(StoreClient.USER_CONSENT_KEY));
+
+        storeClient.migrate();
+        assertTrue(file.exists());
+        assertFalse(sharedPreferences.contains(StoreClient.USER_CONSENT_KEY));
+        assertSameConsent(userConsent, new StoreClient(sharedPreferences, file).getUserConsent());
+    }
+
+    @Test
+    public void consentFallsBackToJSONWhenTheFileCantBeWritten() throws Exception {
+        File notADirectory = folder.newFile("not-a-directory");
+        GDPRUserConsent userConsent = FakeWrapperApi.userConsent(10, 5);
+        new StoreClient(sharedPreferences, new File(notADirectory, ConsentFile.NAME)).setUserConsents(userConsent);
+
+        assertTrue(sharedPreferences.contains(StoreClient.USER_CONSENT_KEY));
+        assertSameConsent(userConsent, new StoreClient(sharedPreferences).getUserConsent());
+    }
+
+    @Test
+    public void fileAndJSONPreferencesReadBackTheSameConsent() throws Exception {
+        GDPRUserConsent userConsent = FakeWrapperApi.userConsent(300, 10);
+        StoreClient jsonClient = new StoreClient(sharedPreferences);
+        ConsentFile consentFile = new ConsentFile(file);
+
+        jsonClient.setUserConsents(userConsent);
+        consentFile.write(ConsentFile.encode(userConsent));
+
+        assertSameConsent(jsonClient.getUserConsent(), consentFile.read());
+    }
+}
@@ -0,0 +1,164 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class ConsentProfilesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SharedPreferences sharedPreferences;
+    private File dir;
+
+    private static ConsentProfiles.Profile profile(String uuid) throws Exception {
+        ConsentProfiles.Profile profile = new ConsentProfiles.Profile();
+        profile.consentUUID = uuid;
+        profile.metaData = "{\"uuid\":\"" + uuid + "\"}";
+        profile.euConsent = "CO-" + uuid;
+        profile.tcData.put("IABTCF_TCString", "CO-" + uuid);
+        profile.tcData.put("IABTCF_gdprApplies", 1);
+        profile.userConsent = ConsentResponse.parse(FakeWrapperApi.consentResponse(uuid, 5, 3)).userConsent;
+        return profile;
+    }
+
+    private StoreClient storeClient(int maxProfiles) {
+        return new StoreClient(sharedPreferences, new File(folder.getRoot(), ConsentFile.NAME), maxProfiles);
+    }
+
+    private void storeConsentOf(StoreClient storeClient, String uuid) throws Exception {
+        ConsentProfiles.Profile profile = profile(uuid);
+        storeClient.edit()
+                .setConsentUuid(profile.consentUUID)
+                .setMetaData(profile.metaData)
+                .setConsentString(profile.euConsent)
+                .setTCData(profile.tcData)
+                .setUserConsents(profile.userConsent)
+                .commit();
+    }
+
+    @Before
+    public void setUp() {
+        sharedPreferences = PreferenceManager.getDefaultSharedPreferences(ApplicationProvider.getApplicationContext());
+        sharedPreferences.edit().clear().commit();
+        dir = new File(folder.getRoot(), ConsentProfiles.DIR_NAME);
+    }
+
+    @Test
+    public void saveAndTake() throws Exception {
+        ConsentProfiles profiles = new ConsentProfiles(dir, 3);
+        ConsentProfiles.Profile saved = profile("alice-uuid");
+        saved.pendingConsentActions = "[{\"requestUUID\":\"r\"}]";
+        profiles.save("alice", saved);
+
+        ConsentProfiles.Profile taken = profiles.take("alice");
+        assertNotNull(taken);
+        assertEquals(saved.consentUUID, taken.consentUUID);
+        assertEquals(saved.metaData, taken.metaData);
+        assertEquals(saved.euConsent, taken.euConsent);
+        assertEquals(saved.pendingConsentActions, taken.pendingConsentActions);
+        assertEquals(saved.tcData, taken.tcData);
+        ConsentFileTest.assertSameConsent(saved.userConsent, taken.userConsent);
+
+        assertNull(profiles.take("alice"));
+        assertNull(profiles.take("bob"));
+    }
+
+    @Test
+    public void fileNamesDontContainTheAuthId() throws Exception {
+        new ConsentProfiles(dir, 3).save("alice@example.com", profile("alice-uuid"));
+        assertFalse(dir.list()[0].contains("alice"));
+    }
+
+    @Test
+    public void leastRecentlyActiveProfilesAreEvicted() throws Exception {
+        ConsentProfiles profiles = new ConsentProfiles(dir, 2);
+        profiles.save("alice", profile("alice-uuid"));
+        profiles.save("bob", profile("bob-uuid"));
+        File[] files = dir.listFiles();
+        for (File file : files) file.setLastModified(System.currentTimeMillis() - 10000);
+        new File(dir, MessageCache.sha256("bob")).setLastModified(System.currentTimeMillis() - 5000);
+        profiles.save("carol", profile("carol-uuid"));
+
+        assertEquals(2, profiles.size());
+        assertNull(profiles.take("alice"));
+        assertNotNull(profiles.take("bob"));
+        assertNotNull(profiles.take("carol"));
+    }
+
+    @Test
+    public void corruptProfileIsDropped() throws Exception {
+        ConsentProfiles profiles = new ConsentProfiles(dir, 2);
+        profiles.save("alice", profile("alice-uuid"));
+        FileOutputStream out = new FileOutputStream(new File(dir, MessageCache.sha256("alice")));
+        out.write(new byte[]{0, 0, 0, 1, 0});
+        out.close();
+
+        assertNull(profiles.take("alice"));
+        assertEquals(0, profiles.size());
+    }
+
+    @Test
+    public void switchingBackRestoresTheConsentOfTheUser() throws Exception {
+        StoreClient storeClient = storeClient(3);
+        storeConsentOf(storeClient, "alice-uuid");
+
+        assertFalse(storeClient.switchUser("alice", "bob"));
+        assertEquals(StoreClient.DEFAULT_EMPTY_UUID, storeClient.getConsentUUID());
+        assertTrue(storeClient.getTCData().isEmpty());
+        storeConsentOf(storeClient, "bob-uuid");
+
+        assertTrue(storeClient.switchUser("bob", "alice"));
+        assertEquals("alice-uuid", storeClient.getConsentUUID());
+        assertEquals("CO-alice-uuid", storeClient.getConsentString());
+        assertEquals("{\"uuid\":\"alice-uuid\"}", storeClient.getMetaData());
+        assertEquals("CO-alice-uuid", sharedPreferences.getString("IABTCF_TCString", null));
+        assertEquals("alice-uuid", storeClient.getUserConsent().uuid);
+        assertEquals("alice-uuid", storeClient(3).getUserConsent().uuid);
+
+        assertTrue(storeClient.switchUser("alice", "bob"));
+        assertEquals("bob-uuid", storeClient.getConsentUUID());
+        assertEquals("CO-bob-uuid", sharedPreferences.getString("IABTCF_TCString", null));
+    }
+
+    @Test
+    public void withoutProfilesSwitchingUsersClearsTheData() throws Exception {
+        StoreClient storeClient = storeClient(0);
+        storeConsentOf(storeClient, "alice-uuid");
+
+        assertFalse(storeClient.switchUser("alice", "bob"));
+        assertFalse(storeClient.switchUser("bob", "alice"));
+        assertEquals(StoreClient.DEFAULT_EMPTY_UUID, storeClient.getConsentUUID());
+        assertFalse(dir.exists());
+    }
+
+    @Test
+    public void clearAllDataDropsTheProfiles() throws Exception {
+        StoreClient storeClient = storeClient(3);
+        storeConsentOf(storeClient, "alice-uuid");
+        storeClient.switchUser("alice", "bob");
+
+        storeClient.clearAllData();
+        assertFalse(storeClient.switchUser("bob", "alice"));
+    }
+}
@@ -0,0 +1,124 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class ConsentResponseTest {
+
+    private static final String USER_CONSENT = "{\"acceptedVendors\":[\"v1\",\"v2\"],\"acceptedCategories\":[\"c1\"],\"specialFeatures\":[],\"legIntCategories\":[\"l1\"],\"euconsent\":\"CO-consent\",\"TCData\":{\"IABTCF_CmpSdkID\":6,\"IABTCF_TCString\":\"CO-consent\",\"IABTCF_gdprApplies\":1},\"grants\":{\"v1\":{\"vendorGrant\":true,\"purposeGrants\":{\"p1\":true,\"p2\":false}}}}";
+
+    private static String response(String extra) {
+        return "{\"uuid\":\"foo-uuid\",\"meta\":\"{\\\"foo\\\":1}\",\"userConsent\":" + USER_CONSENT + extra + "}";
+    }
+
+    @Test
+    public void parsesUuidMetaAndUserConsent() throws Exception {
+        ConsentResponse response = ConsentResponse.parse(response(""));
+        assertEquals("foo-uuid", response.uuid);
+        assertEquals("{\"foo\":1}", response.meta);
+        assertFalse(response.hasMessage());
+
+        GDPRUserConsent userConsent = response.userConsent;
+        assertEquals("foo-uuid", userConsent.uuid);
+        assertEquals("CO-consent", userConsent.consentString);
+        assertEquals(2, userConsent.acceptedVendors.size());
+        assertEquals("c1", userConsent.acceptedCategories.get(0));
+        assertTrue(userConsent.specialFeatures.isEmpty());
+        assertEquals("l1", userConsent.legIntCategories.get(0));
+        assertEquals(6, userConsent.TCData.get("IABTCF_CmpSdkID"));
+        assertEquals("CO-consent", userConsent.TCData.get("IABTCF_TCString"));
+        assertTrue(userConsent.vendorGrants.get("v1").vendorGrant);
+        assertTrue(userConsent.vendorGrants.get("v1").purposeGrants.get("p1"));
+        assertFalse(userConsent.vendorGrants.get("v1").purposeGrants.get("p2"));
+    }
+
+    @Test
+    public void matchesTheJSONObjectPath() throws Exception {
+        String json = response("");
+        GDPRUserConsent streamed = ConsentResponse.parse(json).userConsent;
+        GDPRUserConsent legacy = new GDPRUserConsent(new JSONObject(json).getJSONObject("userConsent"), "foo-uuid");
+        assertEquals(legacy.toJsonObject().toString(), streamed.toJsonObject().toString());
+    }
+
+    @Test
+    public void parsesUrlAndMsgJSON() throws Exception {
+        ConsentResponse withUrl = ConsentResponse.parse(response(",\"url\":\"https://notice.sp-prod.net\""));
+        assertEquals("https://notice.sp-prod.net", withUrl.url);
+        assertNull(withUrl.msgJSON);
+        assertTrue(withUrl.hasMessage());
+
+        ConsentResponse withMsgJSON = ConsentResponse.parse(response(",\"msgJSON\":{\"title\":{\"text\":\"hi\"},\"actions\":[{\"choiceId\":1}]}"));
+        assertEquals("hi", withMsgJSON.msgJSON.getJSONObject("title").getString("text"));
+        assertEquals(1, withMsgJSON.msgJSON.getJSONArray("actions").getJSONObject(0).getInt("choiceId"));
+        assertTrue(withMsgJSON.hasMessage());
+    }
+
+    @Test
+    public void nullsAndUnknownFieldsAreIgnored() throws Exception {
+        ConsentResponse response = ConsentResponse.parse(response(",\"url\":null,\"msgJSON\":null,\"extra\":{\"a\":[1,2]}"));
+        assertNull(response.url);
+        assertFalse(response.hasMessage());
+    }
+
+    @Test
+    public void callersThatLostTheClaimWaitForTheStore() throws Exception {
+        ConsentResponse response = ConsentResponse.parse(response(""));
+        assertTrue(response.claimStore());
+        assertFalse(response.claimStore());
+
+        List<Exception> outcomes = new ArrayList<>();
+        response.whenStored(outcomes::add);
+        assertTrue(outcomes.isEmpty());
+
+        Exception error = new Exception("disk full");
+        response.stored(error);
+        response.whenStored(outcomes::add);
+        assertEquals(2, outcomes.size());
+        assertSame(error, outcomes.get(0));
+        assertSame(error, outcomes.get(1));
+    }
+
+    @Test(expected = ConsentLibException.class)
+    public void missingUuidThrows() throws Exception {
+        ConsentResponse.parse("{\"meta\":\"{}\",\"userConsent\":" + USER_CONSENT + "}");
+    }
+
+    @Test(expected = ConsentLibException.class)
+    public void missingUserConsentFieldThrows() throws Exception {
+        ConsentResponse.parse("{\"uuid\":\"foo\",\"meta\":\"{}\",\"userConsent\":{\"acceptedVendors\":[]}}");
+    }
+
+    @Test(expected = ConsentLibException.class)
+    public void malformedJsonThrows() throws Exception {
+        ConsentResponse.parse("{\"uuid\":");
+    }
+
+    @Test
+    public void largeResponseMatchesTheJSONObjectPath() throws Exception {
+        String json = FakeWrapperApi.consentResponse("foo-uuid", 800, 10);
+        GDPRUserConsent streamed = ConsentResponse.parse(new StringReader(json)).userConsent;
+        JSONObject jsonResult = new JSONObject(json);
+        GDPRUserConsent legacy = new GDPRUserConsent(jsonResult.getJSONObject("userConsent"), jsonResult.getString("uuid"));
+
+        assertEquals(legacy.acceptedVendors, streamed.acceptedVendors);
+        assertEquals(legacy.acceptedCategories, streamed.acceptedCategories);
+        assertEquals(legacy.vendorGrants.size(), streamed.vendorGrants.size());
+        for (String vendorId : legacy.vendorGrants.keySet()) {
+            assertEquals(legacy.vendorGrants.get(vendorId).vendorGrant, streamed.vendorGrants.get(vendorId).vendorGrant);
+            assertEquals(legacy.vendorGrants.get(vendorId).purposeGrants, streamed.vendorGrants.get(vendorId).purposeGrants);
+        }
+    }
+}
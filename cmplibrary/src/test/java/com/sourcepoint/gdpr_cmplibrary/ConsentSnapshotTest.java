@@ -0,0 +1,148 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class ConsentSnapshotTest {
+
+    private static final String VENDOR_0 = "5e7ced57b8e05c4854221000";
+    private static final String VENDOR_1 = "5e7ced57b8e05c4854221001";
+    private static final String PURPOSE_0 = "5e87321eb31ef52cd96cc500";
+    private static final String PURPOSE_1 = "5e87321eb31ef52cd96cc501";
+
+    @Test
+    public void copiesTheConsent() throws Exception {
+        GDPRUserConsent userConsent = FakeWrapperApi.userConsent(4, 3);
+        ConsentSnapshot snapshot = new ConsentSnapshot(userConsent, 7);
+        assertEquals(7, snapshot.getVersion());
+        assertEquals(userConsent.uuid, snapshot.getUuid());
+        assertEquals(userConsent.consentString, snapshot.getConsentString());
+        assertEquals(userConsent.acceptedVendors, snapshot.getAcceptedVendors());
+        assertEquals(userConsent.acceptedCategories, snapshot.getAcceptedCategories());
+        assertEquals(userConsent.TCData, snapshot.getTCData());
+        for (String vendor : userConsent.vendorGrants.keySet()) {
+            assertEquals(userConsent.isVendorGranted(vendor), snapshot.isVendorGranted(vendor));
+            assertEquals(userConsent.vendorGrants.get(vendor).purposeGrants, snapshot.getPurposeGrants(vendor));
+            for (String purpose : userConsent.vendorGrants.get(vendor).purposeGrants.keySet()) {
+                assertEquals(userConsent.hasConsent(vendor, purpose), snapshot.hasConsent(vendor, purpose));
+            }
+        }
+        assertTrue(snapshot.getPurposeGrants("unknown").isEmpty());
+    }
+
+    @Test
+    public void isntChangedByTheConsentItWasCopiedFrom() throws Exception {
+        GDPRUserConsent userConsent = FakeWrapperApi.userConsent(2, 2);
+        ConsentSnapshot snapshot = new ConsentSnapshot(userConsent, 1);
+        boolean granted = snapshot.hasConsent(VENDOR_0, PURPOSE_1);
+
+        userConsent.acceptedVendors.add("added");
+        userConsent.vendorGrants.get(VENDOR_0).purposeGrants.put(PURPOSE_1, !granted);
+        userConsent.vendorGrants.remove(VENDOR_1);
+        userConsent.consentString = "changed";
+
+        assertFalse(snapshot.getAcceptedVendors().contains("added"));
+        assertEquals(granted, snapshot.hasConsent(VENDOR_0, PURPOSE_1));
+        assertEquals(granted, snapshot.getPurposeGrants(VENDOR_0).get(PURPOSE_1));
+        assertFalse(snapshot.getPurposeGrants(VENDOR_1).isEmpty());
+        assertFalse("changed".equals(snapshot.getConsentString()));
+    }
+
+    @Test
+    public void cantBeModified() throws Exception {
+        ConsentSnapshot snapshot = new ConsentSnapshot(FakeWrapperApi.userConsent(2, 2), 1);
+        assertUnsupported(() -> snapshot.getAcceptedVendors().add("vendor"));
+        assertUnsupported(() -> snapshot.getAcceptedCategories().clear());
+        assertUnsupported(() -> snapshot.getSpecialFeatures().add("feature"));
+        assertUnsupported(() -> snapshot.getLegIntCategories().add("category"));
+        assertUnsupported(() -> snapshot.getTCData().put("IABTCF_CmpSdkID", 1));
+        assertUnsupported(() -> snapshot.getPurposeGrants(VENDOR_0).put(PURPOSE_0, true));
+    }
+
+    private static void assertUnsupported(Runnable modification) {
+        try {
+            modification.run();
+            fail("modified the snapshot");
+        } catch (UnsupportedOperationException expected) { }
+    }
+
+    @Test
+    public void toUserConsentIsADetachedCopy() throws Exception {
+        GDPRUserConsent userConsent = FakeWrapperApi.userConsent(3, 2);
+        ConsentSnapshot snapshot = new ConsentSnapshot(userConsent, 1);
+        GDPRUserConsent copy = snapshot.toUserConsent();
+        assertEquals(userConsent.uuid, copy.uuid);
+        assertEquals(userConsent.consentString, copy.consentString);
+        assertEquals(userConsent.acceptedVendors, copy.acceptedVendors);
+        assertEquals(userConsent.TCData, copy.TCData);
+        assertEquals(userConsent.vendorGrants.keySet(), copy.vendorGrants.keySet());
+        for (String vendor : userConsent.vendorGrants.keySet()) {
+            assertEquals(userConsent.vendorGrants.get(vendor).vendorGrant, copy.vendorGrants.get(vendor).vendorGrant);
+            assertEquals(userConsent.vendorGrants.get(vendor).purposeGrants, copy.vendorGrants.get(vendor).purposeGrants);
+        }
+
+        copy.acceptedVendors.add("added");
+        copy.vendorGrants.get(VENDOR_0).purposeGrants.clear();
+        assertFalse(snapshot.getAcceptedVendors().contains("added"));
+        assertFalse(snapshot.getPurposeGrants(VENDOR_0).isEmpty());
+    }
+
+    @Test
+    public void derivedViewsAreBuiltOnce() throws Exception {
+        ConsentSnapshot snapshot = new ConsentSnapshot(FakeWrapperApi.userConsent(2, 2), 1);
+        assertSame(snapshot.getGrantIndex(), snapshot.getGrantIndex());
+        assertNull(snapshot.getTCString());
+        assertEquals(2, snapshot.withVersion(5).getGrantIndex().vendorCount());
+        assertEquals(5, snapshot.withVersion(5).getVersion());
+    }
+
+    @Test
+    public void readersNeverSeeAPartialSnapshot() throws Exception {
+        AtomicReference<ConsentSnapshot> published = new AtomicReference<>(new ConsentSnapshot(FakeWrapperApi.userConsent(50, 5), 0));
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        ArrayList<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread reader = new Thread(() -> {
+                try {
+                    long lastVersion = 0;
+                    while (!done.get()) {
+                        ConsentSnapshot snapshot = published.get();
+                        assertTrue(snapshot.getVersion() >= lastVersion);
+                        lastVersion = snapshot.getVersion();
+                        // every published consent has grants for each of its accepted vendors and no other
+                        assertEquals(snapshot.getAcceptedVendors().size(), snapshot.getGrantIndex().vendorCount());
+                        for (String vendor : snapshot.getAcceptedVendors()) assertEquals(5, snapshot.getPurposeGrants(vendor).size());
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            });
+            readers.add(reader);
+            reader.start();
+        }
+        for (int version = 1; version <= 200; version++) {
+            GDPRUserConsent userConsent = FakeWrapperApi.userConsent(10 + version % 40, 5);
+            published.set(new ConsentSnapshot(userConsent, version));
+            // changing the source after publishing must not reach the readers
+            userConsent.acceptedVendors.add("not-a-vendor");
+            userConsent.vendorGrants.clear();
+        }
+        done.set(true);
+        for (Thread reader : readers) reader.join();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+    }
+}
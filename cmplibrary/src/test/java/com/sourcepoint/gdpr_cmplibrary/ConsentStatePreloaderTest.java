@@ -0,0 +1,95 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+public class ConsentStatePreloaderTest {
+
+    private Context context;
+    private SharedPreferences sharedPreferences;
+
+    @Before
+    public void setUp() {
+        context = ApplicationProvider.getApplicationContext();
+        sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        sharedPreferences.edit().clear()
+                .putString(StoreClient.AUTH_ID_KEY, "alice")
+                .putString(StoreClient.CONSENT_UUID_KEY, "uuid")
+                .putString(StoreClient.META_DATA_KEY, "{\"foo\":1}")
+                .putString(StoreClient.EU_CONSENT_KEY, "CO-consent")
+                .commit();
+    }
+
+    @After
+    public void tearDown() {
+        ConsentStatePreloader.invalidate();
+    }
+
+    @Test
+    public void nothingPreloaded() {
+        assertNull(ConsentStatePreloader.take(null, 1000));
+    }
+
+    @Test
+    public void preloadedStateHasTheStoredValues() {
+        ConsentStatePreloader.start(context);
+        ConsentState state = ConsentStatePreloader.take(null, 5000);
+        assertEquals("alice", state.authId);
+        assertEquals("uuid", state.consentUUID);
+        assertEquals("{\"foo\":1}", state.metaData);
+        assertEquals("CO-consent", state.euConsent);
+    }
+
+    @Test
+    public void defaultsWhenNothingIsStored() {
+        sharedPreferences.edit().clear().commit();
+        ConsentStatePreloader.start(context);
+        ConsentState state = ConsentStatePreloader.take(null, 5000);
+        assertNull(state.authId);
+        assertEquals(StoreClient.DEFAULT_EMPTY_UUID, state.consentUUID);
+        assertEquals(StoreClient.DEFAULT_META_DATA, state.metaData);
+        assertEquals(StoreClient.DEFAULT_EMPTY_CONSENT_STRING, state.euConsent);
+    }
+
+    @Test
+    public void theStateIsTakenOnce() {
+        ConsentStatePreloader.start(context);
+        assertNotNull(ConsentStatePreloader.take(null, 5000));
+        assertNull(ConsentStatePreloader.take(null, 5000));
+    }
+
+    @Test
+    public void writesMakeTheStateStale() {
+        ConsentStatePreloader.start(context);
+        new StoreClient(sharedPreferences).setConsentUuid("newer-uuid");
+        assertNull(ConsentStatePreloader.take(null, 5000));
+    }
+
+    @Test
+    public void stateOfAnotherStorageIsntUsed() {
+        ConsentStatePreloader.start(context);
+        assertNull(ConsentStatePreloader.take(new InMemoryConsentStorage(), 5000));
+    }
+
+    @Test
+    public void stateOfTheSameStorage() {
+        ConsentStorage storage = new InMemoryConsentStorage();
+        storage.edit().putString(StoreClient.CONSENT_UUID_KEY, "stored-uuid").commit();
+        ConsentStatePreloader.start(context, storage);
+        assertEquals("stored-uuid", ConsentStatePreloader.take(storage, 5000).consentUUID);
+    }
+}
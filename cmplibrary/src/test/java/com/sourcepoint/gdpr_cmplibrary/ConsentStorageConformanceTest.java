@@ -0,0 +1,109 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * What every ConsentStorage engine has to do, run against each of them by its subclass.
+ */
+public abstract class ConsentStorageConformanceTest {
+
+    private ConsentStorage storage;
+
+    // an empty storage
+    abstract ConsentStorage newStorage() throws Exception;
+
+    // the same storage as a new process would see it, null if the engine doesn't persist
+    abstract ConsentStorage reopen() throws Exception;
+
+    @Before
+    public void setUpStorage() throws Exception {
+        storage = newStorage();
+    }
+
+    @Test
+    public void missingKeysReadAsTheDefault() {
+        assertFalse(storage.contains("foo"));
+        assertEquals("default", storage.getString("foo", "default"));
+        assertNull(storage.getString("foo", null));
+    }
+
+    @Test
+    public void commitMakesTheValuesVisible() {
+        ConsentStorage.Editor editor = storage.edit().putString("foo", "bar").putString("baz", "qux");
+        assertFalse(storage.contains("foo"));
+        assertTrue(editor.commit());
+        assertEquals("bar", storage.getString("foo", null));
+        assertEquals("qux", storage.getString("baz", null));
+    }
+
+    @Test
+    public void applyMakesTheValuesVisibleRightAway() {
+        storage.edit().putString("foo", "bar").apply();
+        assertEquals("bar", storage.getString("foo", null));
+    }
+
+    @Test
+    public void valuesAreOverwritten() {
+        storage.edit().putString("foo", "bar").commit();
+        storage.edit().putString("foo", "baz").commit();
+        assertEquals("baz", storage.getString("foo", null));
+    }
+
+    @Test
+    public void removeAndNullValuesDeleteKeys() {
+        storage.edit().putString("foo", "bar").putString("baz", "qux").commit();
+        storage.edit().remove("foo").putString("baz", null).commit();
+        assertFalse(storage.contains("foo"));
+        assertFalse(storage.contains("baz"));
+    }
+
+    @Test
+    public void anEditorCanBeReused() {
+        ConsentStorage.Editor editor = storage.edit();
+        editor.putString("foo", "bar").commit();
+        editor.putString("baz", "qux").commit();
+        assertEquals("bar", storage.getString("foo", null));
+        assertEquals("qux", storage.getString("baz", null));
+    }
+
+    @Test
+    public void largeAndNonAsciiValues() {
+        StringBuilder large = new StringBuilder();
+        while (large.length() < 200 * 1024) large.append("{\"vendor\":\"5e7ced57b8e05c4854221ba1\"},");
+        storage.edit().putString("large", large.toString()).putString("unicode", "héllo ✓ 日本").commit();
+        assertEquals(large.toString(), storage.getString("large", null));
+        assertEquals("héllo ✓ 日本", storage.getString("unicode", null));
+    }
+
+    // the lib writes from its background writer while any thread reads
+    @Test
+    public void readsDuringBackgroundWritesSeeWholeValues() throws Exception {
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 100; i++) storage.edit().putString("key-" + i, "value-" + i).putString("last", "value-" + i).commit();
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            String last = storage.getString("last", null);
+            assertTrue(last == null || last.startsWith("value-"));
+        }
+        writer.join();
+        for (int i = 0; i < 100; i++) assertEquals("value-" + i, storage.getString("key-" + i, null));
+        assertEquals("value-99", storage.getString("last", null));
+    }
+
+    @Test
+    public void committedValuesSurviveReopening() throws Exception {
+        storage.edit().putString("foo", "bar").putString("removed", "value").commit();
+        storage.edit().remove("removed").apply();
+        ConsentStorage reopened = reopen();
+        if (reopened == null) return;
+        assertEquals("bar", reopened.getString("foo", null));
+        assertFalse(reopened.contains("removed"));
+    }
+}
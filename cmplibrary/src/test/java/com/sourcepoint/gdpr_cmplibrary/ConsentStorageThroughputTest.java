@@ -0,0 +1,90 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Load harness: commits and reads back the values the lib keeps in every ConsentStorage engine, one
+ * stored response after another, and prints the write and read ops/s of each engine. It's left out of the
+ * default run, enable it with -Dsp.harness=true and raise the iterations with -Dsp.harness.cycles=N.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ConsentStorageThroughputTest {
+
+    private static final int ITERATIONS = Integer.getInteger("sp.harness.cycles", 200);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SharedPreferences sharedPreferences;
+    private String userConsent;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(Boolean.getBoolean("sp.harness"));
+        sharedPreferences = PreferenceManager.getDefaultSharedPreferences(ApplicationProvider.getApplicationContext());
+        sharedPreferences.edit().clear().commit();
+        // the IABTCF_ values share the preferences file, SharedPreferences rewrites them on every commit
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+        for (int i = 0; i < 40; i++) editor.putString("IABTCF_PublisherCustom" + i, "0110101101");
+        editor.commit();
+        userConsent = FakeWrapperApi.userConsent(100, 10).toJsonObject().toString();
+    }
+
+    @Test
+    public void everyEngineReadsBackEachResponse() {
+        System.out.println(String.format(Locale.US, "ConsentStorage throughput, %d responses, user consent of %d chars:",
+                ITERATIONS, userConsent.length()));
+        check("SharedPreferences", new PreferencesConsentStorage(sharedPreferences));
+        check("file", new FileConsentStorage(new File(folder.getRoot(), FileConsentStorage.NAME)));
+        check("in memory", new InMemoryConsentStorage());
+    }
+
+    private void check(String name, ConsentStorage storage) {
+        long writeNanos = 0, readNanos = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            write(storage, i);
+            long written = System.nanoTime();
+            String consentUUID = storage.getString(StoreClient.CONSENT_UUID_KEY, null);
+            String metaData = storage.getString(StoreClient.META_DATA_KEY, null);
+            String storedConsent = storage.getString(StoreClient.USER_CONSENT_KEY, null);
+            readNanos += System.nanoTime() - written;
+            writeNanos += written - start;
+            assertEquals("uuid-" + i, consentUUID);
+            assertEquals("{\"i\":" + i + "}", metaData);
+            assertEquals(userConsent, storedConsent);
+        }
+        System.out.println(String.format(Locale.US, "  %s: write %.1f ops/s, read %.1f ops/s",
+                name, opsPerSecond(writeNanos), opsPerSecond(readNanos)));
+    }
+
+    // a write commits one response, a read gets back its three values
+    private static double opsPerSecond(long nanos) {
+        return ITERATIONS * 1e9 / Math.max(nanos, 1);
+    }
+
+    // one stored response: uuid, meta data and user consent committed together
+    private void write(ConsentStorage storage, int i) {
+        storage.edit()
+                .putString(StoreClient.CONSENT_UUID_KEY, "uuid-" + i)
+                .putString(StoreClient.META_DATA_KEY, "{\"i\":" + i + "}")
+                .putString(StoreClient.USER_CONSENT_KEY, userConsent)
+                .commit();
+    }
+}
@@ -0,0 +1,138 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.app.Activity;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.CountDownTimer;
+import android.preference.PreferenceManager;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+/**
+ * Load harness: drives run() -> onConsentReady cycles against FakeWrapperApi, checks every one of
+ * them completes and reports the throughput and the p50/p95/p99 latency of a cycle. It's left out of
+ * the default run, enable it with -Dsp.harness=true and raise the cycles with -Dsp.harness.cycles=N.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ConsentThroughputTest {
+
+    private static final int CYCLES = Integer.getInteger("sp.harness.cycles", 200);
+
+    private FakeWrapperApi api;
+
+    @Mock
+    Activity activityMock;
+
+    @Mock
+    ConnectivityManager connectivityManagerMock;
+
+    @Mock
+    NetworkInfo networkInfoMock;
+
+    @Mock
+    CountDownTimer timerMock;
+
+    // every cycle gets its own authId, so concurrent cycles aren't coalesced into one request
+    private GDPRConsentLib lib(int cycle, GDPRConsentLib.OnConsentReadyCallback onConsentReady) {
+        return new ConsentLibBuilder(123, "example.com", 321, "abcd", activityMock) {
+            @Override
+            protected StoreClient getStoreClient() {
+                return new StoreClient(PreferenceManager.getDefaultSharedPreferences(ApplicationProvider.getApplicationContext()));
+            }
+            @Override
+            protected ConnectivityManager getConnectivityManager() {
+                return connectivityManagerMock;
+            }
+            @Override
+            CountDownTimer getTimer(Runnable r) {
+                return timerMock;
+            }
+        }.setBaseUrl(api.baseUrl())
+                .setAuthId("user-" + cycle)
+                .setOnConsentReady(onConsentReady)
+                .setOnError(e -> { throw new AssertionError(e.consentLibErrorMessage); })
+                .build();
+    }
+
+    private void runCycles(String name, int cycles, int concurrency) throws Exception {
+        AtomicInteger completed = new AtomicInteger();
+        LatencyTracker latencies = new LatencyTracker(cycles);
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < cycles; i++) {
+            int cycle = i;
+            executor.execute(() -> {
+                CountDownLatch consentReady = new CountDownLatch(1);
+                long cycleStart = System.nanoTime();
+                lib(cycle, c -> consentReady.countDown()).run();
+                try {
+                    if (!consentReady.await(10, TimeUnit.SECONDS)) return;
+                    latencies.record((System.nanoTime() - cycleStart) / 1000000);
+                    completed.incrementAndGet();
+                } catch (InterruptedException ignored) { }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.MINUTES));
+        long elapsed = System.nanoTime() - start;
+        assertEquals(cycles, completed.get());
+
+        System.out.println(String.format(Locale.US, "%s: %d cycles, %d at a time, %.1f cycles/s, p50 %dms, p95 %dms, p99 %dms",
+                name, cycles, concurrency, cycles * 1e9 / elapsed,
+                latencies.percentile(50), latencies.percentile(95), latencies.percentile(99)));
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(Boolean.getBoolean("sp.harness"));
+        initMocks(this);
+        api = new FakeWrapperApi().start();
+        doReturn(networkInfoMock).when(connectivityManagerMock).getActiveNetworkInfo();
+        doReturn(true).when(networkInfoMock).isConnectedOrConnecting();
+        doReturn(timerMock).when(timerMock).start();
+        doAnswer(invocation -> {
+            ((Runnable) invocation.getArgument(0)).run();
+            return null;
+        }).when(activityMock).runOnUiThread(any());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (api != null) api.shutdown();
+    }
+
+    @Test
+    public void sequentialCycles() throws Exception {
+        runCycles("sequential", CYCLES, 1);
+        assertEquals(CYCLES, api.requestCount());
+    }
+
+    @Test
+    public void concurrentCyclesWithLatencyAndLargePayload() throws Exception {
+        api.setLatency(20).setPayload(300, 10);
+        runCycles("concurrent, 20ms latency, 300 vendors", CYCLES, 8);
+    }
+}
@@ -0,0 +1,134 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.app.Activity;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.CountDownTimer;
+import android.preference.PreferenceManager;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import okhttp3.OkHttpClient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class ConsentTransportTest {
+
+    private FakeWrapperApi api;
+
+    @Mock
+    Activity activityMock;
+
+    @Mock
+    ConnectivityManager connectivityManagerMock;
+
+    @Mock
+    NetworkInfo networkInfoMock;
+
+    @Mock
+    CountDownTimer timerMock;
+
+    private ConsentLibBuilder builder() {
+        return new ConsentLibBuilder(123, "example.com", 321, "abcd", activityMock) {
+            @Override
+            protected StoreClient getStoreClient() {
+                return new StoreClient(PreferenceManager.getDefaultSharedPreferences(ApplicationProvider.getApplicationContext()));
+            }
+            @Override
+            protected ConnectivityManager getConnectivityManager() {
+                return connectivityManagerMock;
+            }
+            @Override
+            CountDownTimer getTimer(Runnable r) {
+                return timerMock;
+            }
+        };
+    }
+
+    private GDPRUserConsent runUntilConsentReady(ConsentLibBuilder builder) throws InterruptedException {
+        CountDownLatch consentReady = new CountDownLatch(1);
+        AtomicReference<GDPRUserConsent> userConsent = new AtomicReference<>();
+        builder.setOnConsentReady(c -> {
+            userConsent.set(c);
+            consentReady.countDown();
+        }).build().run();
+        assertTrue(consentReady.await(5, TimeUnit.SECONDS));
+        return userConsent.get();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        api = new FakeWrapperApi().start();
+        doReturn(networkInfoMock).when(connectivityManagerMock).getActiveNetworkInfo();
+        doReturn(true).when(networkInfoMock).isConnectedOrConnecting();
+        doReturn(timerMock).when(timerMock).start();
+        doAnswer(invocation -> {
+            ((Runnable) invocation.getArgument(0)).run();
+            return null;
+        }).when(activityMock).runOnUiThread(any());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        api.shutdown();
+    }
+
+    @Test
+    public void setBaseUrlPointsTheLibAtAnotherBackend() throws Exception {
+        GDPRUserConsent userConsent = runUntilConsentReady(builder().setBaseUrl(api.baseUrl()));
+        assertEquals(1, api.requestCount());
+        assertEquals(10, userConsent.acceptedVendors.size());
+    }
+
+    @Test
+    public void setBaseUrlAddsTheTrailingSlash() {
+        String baseUrl = api.baseUrl();
+        ConsentLibBuilder builder = builder().setBaseUrl(baseUrl.substring(0, baseUrl.length() - 1));
+        assertEquals(baseUrl, builder.getSourcePointClient().baseUrl);
+    }
+
+    @Test
+    public void requestsGoThroughTheCustomTransport() throws Exception {
+        OkHttpClient okHttpClient = new OkHttpClient();
+        List<String> paths = new CopyOnWriteArrayList<>();
+        ConsentTransport transport = request -> {
+            paths.add(request.url().encodedPath());
+            return okHttpClient.newCall(request);
+        };
+
+        runUntilConsentReady(builder().setBaseUrl(api.baseUrl()).setTransport(transport));
+
+        assertEquals(1, paths.size());
+        assertEquals("/message-url", paths.get(0));
+    }
+
+    @Test
+    public void consentArrivesFromASlowBackendWithALargePayload() throws Exception {
+        api.setLatency(150).setPayload(300, 10);
+
+        GDPRUserConsent userConsent = runUntilConsentReady(builder().setBaseUrl(api.baseUrl()));
+
+        assertEquals(300, userConsent.acceptedVendors.size());
+        assertEquals(10, userConsent.vendorGrants.get(userConsent.acceptedVendors.get(0)).purposeGrants.size());
+    }
+}
@@ -0,0 +1,108 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * In-process stand-in for SourcePoint's wrapper-api, backed by MockWebServer, to point the lib at
+ * with ConsentLibBuilder.setBaseUrl(). Every endpoint answers like the real one for a user who
+ * doesn't get a message: the consent uuid is echoed back (or a new one is minted) together with
+ * a userConsent granting `vendors` vendors `purposes` purposes each, after `latency` ms.
+ */
+class FakeWrapperApi {
+
+    private final MockWebServer server = new MockWebServer();
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private volatile long latencyMillis = 0;
+    private volatile int vendors = 10, purposes = 5;
+
+    FakeWrapperApi setLatency(long millis) {
+        latencyMillis = millis;
+        return this;
+    }
+
+    FakeWrapperApi setPayload(int vendors, int purposes) {
+        this.vendors = vendors;
+        this.purposes = purposes;
+        return this;
+    }
+
+    FakeWrapperApi start() throws IOException {
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                requests.incrementAndGet();
+                String path = request.getPath();
+                MockResponse response;
+                if (path.startsWith("/message-url") || path.startsWith("/native-message") || path.startsWith("/consent")) {
+                    response = new MockResponse().setBody(consentResponse(uuidOf(request), vendors, purposes));
+                } else if (path.startsWith("/custom-consent")) {
+                    response = new MockResponse().setBody("{\"vendors\":[],\"categories\":[],\"legIntCategories\":[],\"specialFeatures\":[]}");
+                } else {
+                    response = new MockResponse().setResponseCode(404);
+                }
+                return response.setHeadersDelay(latencyMillis, TimeUnit.MILLISECONDS);
+            }
+        });
+        server.start();
+        return this;
+    }
+
+    void shutdown() throws IOException {
+        server.shutdown();
+    }
+
+    String baseUrl() {
+        return server.url("/").toString();
+    }
+
+    int requestCount() {
+        return requests.get();
+    }
+
+    private static String uuidOf(RecordedRequest request) {
+        try {
+            String uuid = new JSONObject(request.getBody().readUtf8()).optString("uuid", "");
+            return uuid.isEmpty() ? UUID.randomUUID().toString() : uuid;
+        } catch (Exception e) {
+            return UUID.randomUUID().toString();
+        }
+    }
+
+    // a wrapper-api response without a message and with per-vendor purpose grants
+    static String consentResponse(String uuid, int vendors, int purposes) {
+        StringBuilder acceptedVendors = new StringBuilder(), grants = new StringBuilder();
+        for (int v = 0; v < vendors; v++) {
+            String vendorId = String.format("5e7ced57b8e05c4854221%03x", v);
+            if (v > 0) {
+                acceptedVendors.append(',');
+                grants.append(',');
+            }
+            acceptedVendors.append('"').append(vendorId).append('"');
+            grants.append('"').append(vendorId).append("\":{\"vendorGrant\":").append(v % 2 == 0).append(",\"purposeGrants\":{");
+            for (int p = 0; p < purposes; p++) {
+                if (p > 0) grants.append(',');
+                grants.append("\"5e87321eb31ef52cd96cc5").append(String.format("%02x", p)).append("\":").append((v + p) % 3 != 0);
+            }
+            grants.append("}}");
+        }
+        return "{\"uuid\":\"" + uuid + "\",\"meta\":\"{}\",\"userConsent\":{\"acceptedVendors\":[" + acceptedVendors + "],"
+                + "\"acceptedCategories\":[],\"specialFeatures\":[],\"legIntCategories\":[],\"euconsent\":\"CO-consent\","
+                + "\"TCData\":{\"IABTCF_CmpSdkID\":6},\"grants\":{" + grants + "}}}";
+    }
+
+    // the userConsent of consentResponse, decoded
+    static GDPRUserConsent userConsent(int vendors, int purposes) throws ConsentLibException {
+        return ConsentResponse.parse(consentResponse("foo-uuid", vendors, purposes)).userConsent;
+    }
+}
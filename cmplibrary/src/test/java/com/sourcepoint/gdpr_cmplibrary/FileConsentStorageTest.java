@@ -0,0 +1,63 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class FileConsentStorageTest extends ConsentStorageConformanceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Override
+    ConsentStorage newStorage() throws Exception {
+        file = new File(folder.getRoot(), FileConsentStorage.NAME);
+        return new FileConsentStorage(file);
+    }
+
+    @Override
+    ConsentStorage reopen() {
+        return new FileConsentStorage(file);
+    }
+
+    @Test
+    public void writesAreAtomic() {
+        new FileConsentStorage(file).edit().putString("foo", "bar").commit();
+        assertTrue(file.exists());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void aCorruptFileReadsAsEmpty() throws Exception {
+        new FileConsentStorage(file).edit().putString("foo", "bar").commit();
+        RandomAccessFile corrupt = new RandomAccessFile(file, "rw");
+        corrupt.seek(file.length() / 2);
+        int b = corrupt.read();
+        corrupt.seek(file.length() / 2);
+        corrupt.write(b ^ 1);
+        corrupt.close();
+
+        FileConsentStorage reopened = new FileConsentStorage(file);
+        assertFalse(reopened.contains("foo"));
+        reopened.edit().putString("baz", "qux").commit();
+        assertEquals("qux", new FileConsentStorage(file).getString("baz", null));
+    }
+
+    @Test
+    public void failedWritesReturnFalse() throws Exception {
+        File notADirectory = folder.newFile("not-a-directory");
+        assertFalse(new FileConsentStorage(new File(notADirectory, FileConsentStorage.NAME)).edit().putString("foo", "bar").commit());
+    }
+}
@@ -1,26 +1,56 @@
 package com.sourcepoint.gdpr_cmplibrary;
 
 import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
 import android.os.CountDownTimer;
+import android.preference.PreferenceManager;
+
+import androidx.test.core.app.ApplicationProvider;
 
 import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.Answers;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doCallRealMethod;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -40,6 +70,9 @@ public class GDPRConsentLibTest {
     @Mock
     StoreClient storeClientMock;
 
+    @Mock(answer = Answers.RETURNS_SELF)
+    StoreClient.Transaction storeTransactionMock;
+
     @Mock
     SourcePointClient sourcePointClientMock;
 
@@ -55,6 +88,11 @@ public class GDPRConsentLibTest {
     @Captor
     ArgumentCaptor<Runnable> lambdaCaptor;
 
+    // decoding in the background would race with stubbing storeClientMock
+    private Executor consentDecoder = Runnable::run;
+
+    private Executor persistenceExecutor = Runnable::run;
+
     private ConsentLibBuilder builderMock(int accountId, String propertyName, int propertyId, String pmId, Activity activity){
         return new ConsentLibBuilder(accountId, propertyName, propertyId, pmId, activity){
             @Override
@@ -69,6 +107,14 @@ public class GDPRConsentLibTest {
             public CountDownTimer getTimer(Runnable r){
                 return timerMock;
             }
+            @Override
+            PersistenceQueue getPersistenceQueue(){
+                return new PersistenceQueue(persistenceExecutor);
+            }
+            @Override
+            Executor getConsentDecoder(){
+                return consentDecoder;
+            }
         };
     }
 
@@ -77,6 +123,8 @@ public class GDPRConsentLibTest {
     }
 
     private void setStoreClientMock(){
+        // a fresh instance keeps the consent action queues of different tests apart
+        doReturn(mock(SharedPreferences.class)).when(storeClientMock).preferences();
         doReturn(null).when(storeClientMock).getAuthId();
         doReturn("").when(storeClientMock).getConsentString();
         doReturn("").when(storeClientMock).getConsentUUID();
@@ -89,6 +137,47 @@ public class GDPRConsentLibTest {
         doNothing().when(storeClientMock).clearAllData();
         doNothing().when(storeClientMock).clearConsentData();
         doNothing().when(storeClientMock).clearInternalData();
+        doReturn(storeTransactionMock).when(storeClientMock).edit();
+        doCallRealMethod().when(storeClientMock).readConsentState();
+    }
+
+    private static final String NO_MESSAGE_RESPONSE = "{\"uuid\":\"foo-uuid\",\"meta\":\"{}\",\"userConsent\":{\"acceptedVendors\":[],\"acceptedCategories\":[],\"specialFeatures\":[],\"legIntCategories\":[],\"euconsent\":\"\",\"TCData\":{},\"grants\":{}}}";
+
+    private void runActivityUIThreadImmediately(){
+        doAnswer(invocation -> {
+            ((Runnable) invocation.getArgument(0)).run();
+            return null;
+        }).when(activityMock).runOnUiThread(any());
+    }
+
+    private static ConsentResponse parse(String json) {
+        try {
+            return ConsentResponse.parse(json);
+        } catch (ConsentLibException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // the returned latch opens once the first response has been handed to its callback
+    private CountDownLatch answerGetMessage(long delayMillis, boolean success) throws ConsentLibException {
+        CountDownLatch answered = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            GDPRConsentLib.OnLoadComplete callback = invocation.getArgument(4);
+            Runnable response = () -> {
+                if (success) callback.onSuccess(parse(NO_MESSAGE_RESPONSE));
+                else callback.onFailure(new ConsentLibException("network down"));
+                answered.countDown();
+            };
+            if (delayMillis == 0) response.run();
+            else new Thread(() -> {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException ignored) { }
+                response.run();
+            }).start();
+            return null;
+        }).when(sourcePointClientMock).getMessage(anyBoolean(), any(), any(), any(), any());
+        return answered;
     }
 
     private void setTimerMock(){
@@ -187,4 +276,460 @@ public class GDPRConsentLibTest {
         lib.releaseActivity();
         assertNull(lib.activity);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void prefetchDefersConsentReadyUntilRun() throws Exception {
+        runActivityUIThreadImmediately();
+        answerGetMessage(0, true);
+        AtomicInteger consentReadyCalls = new AtomicInteger();
+        GDPRConsentLib lib = builderMock().setOnConsentReady(c -> consentReadyCalls.incrementAndGet()).build();
+
+        lib.prefetch();
+        assertEquals(0, consentReadyCalls.get());
+
+        lib.run();
+        assertEquals(1, consentReadyCalls.get());
+        verify(sourcePointClientMock, times(1)).getMessage(anyBoolean(), any(), any(), any(), any());
+    }
+
+    @Test
+    public void runJoinsInFlightPrefetch() throws Exception {
+        runActivityUIThreadImmediately();
+        answerGetMessage(100, true);
+        CountDownLatch consentReady = new CountDownLatch(1);
+        GDPRConsentLib lib = builderMock().setOnConsentReady(c -> consentReady.countDown()).build();
+
+        lib.prefetch();
+        lib.run();
+
+        assertTrue(consentReady.await(5, TimeUnit.SECONDS));
+        verify(sourcePointClientMock, times(1)).getMessage(anyBoolean(), any(), any(), any(), any());
+    }
+
+    @Test
+    public void failedPrefetchIsDiscarded() throws Exception {
+        runActivityUIThreadImmediately();
+        answerGetMessage(0, false);
+        AtomicInteger consentReadyCalls = new AtomicInteger(), errorCalls = new AtomicInteger();
+        GDPRConsentLib lib = builderMock()
+                .setOnConsentReady(c -> consentReadyCalls.incrementAndGet())
+                .setOnError(e -> errorCalls.incrementAndGet())
+                .build();
+
+        lib.prefetch();
+        assertEquals(0, errorCalls.get());
+
+        answerGetMessage(0, true);
+        lib.run();
+        assertEquals(1, consentReadyCalls.get());
+        assertEquals(0, errorCalls.get());
+        verify(sourcePointClientMock, times(2)).getMessage(anyBoolean(), any(), any(), any(), any());
+    }
+
+    @Test
+    public void runAfterCompletedPrefetchDoesNotWaitForTheNetwork() throws Exception {
+        runActivityUIThreadImmediately();
+        CountDownLatch answered = answerGetMessage(100, true);
+        AtomicInteger consentReadyCalls = new AtomicInteger();
+        GDPRConsentLib lib = builderMock().setOnConsentReady(c -> consentReadyCalls.incrementAndGet()).build();
+
+        lib.prefetch();
+        assertTrue(answered.await(5, TimeUnit.SECONDS));
+        assertEquals(0, consentReadyCalls.get());
+
+        lib.run();
+        assertEquals(1, consentReadyCalls.get());
+        verify(sourcePointClientMock, times(1)).getMessage(anyBoolean(), any(), any(), any(), any());
+    }
+
+    private AtomicReference<String> storePendingConsentActionsInMemory() {
+        AtomicReference<String> pendingActions = new AtomicReference<>();
+        doAnswer(invocation -> {
+            pendingActions.set(invocation.getArgument(0));
+            return null;
+        }).when(storeClientMock).setPendingConsentActions(any());
+        doAnswer(invocation -> pendingActions.get()).when(storeClientMock).getPendingConsentActions();
+        return pendingActions;
+    }
+
+    @Test
+    public void offlineConsentActionIsQueued() throws Exception {
+        runActivityUIThreadImmediately();
+        storePendingConsentActionsInMemory();
+        doThrow(new ConsentLibException.NoInternetConnectionException()).when(sourcePointClientMock).sendConsent(any(), any());
+        AtomicInteger consentReadyCalls = new AtomicInteger(), errorCalls = new AtomicInteger();
+        GDPRConsentLib lib = builderMock()
+                .setOnConsentReady(c -> consentReadyCalls.incrementAndGet())
+                .setOnError(e -> errorCalls.incrementAndGet())
+                .build();
+
+        lib.sendConsent(consentActionMock);
+
+        assertEquals(1, consentReadyCalls.get());
+        assertEquals(0, errorCalls.get());
+        assertEquals(1, lib.consentActionQueue.size());
+        verify(storeClientMock, never()).clearConsentData();
+    }
+
+    @Test
+    public void queuedActionsAreSentWhenTheConnectionComesBack() throws Exception {
+        runActivityUIThreadImmediately();
+        AtomicReference<String> pendingActions = storePendingConsentActionsInMemory();
+        Context context = ApplicationProvider.getApplicationContext();
+        doReturn(context).when(activityMock).getApplicationContext();
+        doThrow(new ConsentLibException.NoInternetConnectionException()).when(sourcePointClientMock).sendConsent(any(), any());
+        GDPRConsentLib lib = builderMock().setOnConsentReady(c -> { }).build();
+        lib.sendConsent(consentActionMock);
+        assertEquals(1, lib.consentActionQueue.size());
+
+        doAnswer(invocation -> {
+            ((GDPRConsentLib.OnLoadComplete) invocation.getArgument(1)).onSuccess(parse(NO_MESSAGE_RESPONSE));
+            return null;
+        }).when(sourcePointClientMock).sendConsent(any(), any());
+        context.sendBroadcast(new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+        ShadowLooper.idleMainLooper();
+
+        assertTrue(lib.consentActionQueue.isEmpty());
+        assertNull(pendingActions.get());
+        assertEquals("foo-uuid", lib.consentUUID);
+
+        // drained, the lib stopped listening
+        context.sendBroadcast(new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+        ShadowLooper.idleMainLooper();
+        verify(sourcePointClientMock, times(2)).sendConsent(any(), any());
+    }
+
+    @Test
+    public void runSendsQueuedActionsBeforeLoadingTheMessage() throws Exception {
+        runActivityUIThreadImmediately();
+        AtomicReference<String> pendingActions = storePendingConsentActionsInMemory();
+        JSONObject queued = new JSONObject().put("uuid", "").put("actionType", ActionTypes.ACCEPT_ALL.code);
+        GDPRConsentLib lib = builderMock().setOnConsentReady(c -> { }).build();
+        lib.consentActionQueue.enqueue(queued);
+        String requestUUID = queued.getString("requestUUID");
+
+        AtomicReference<JSONObject> sent = new AtomicReference<>();
+        doAnswer(invocation -> {
+            sent.set(invocation.getArgument(0));
+            ((GDPRConsentLib.OnLoadComplete) invocation.getArgument(1)).onSuccess(parse(NO_MESSAGE_RESPONSE));
+            return null;
+        }).when(sourcePointClientMock).sendConsent(any(), any());
+        answerGetMessage(0, true);
+
+        lib.run();
+
+        InOrder inOrder = inOrder(sourcePointClientMock);
+        inOrder.verify(sourcePointClientMock).sendConsent(any(), any());
+        inOrder.verify(sourcePointClientMock).getMessage(anyBoolean(), any(), any(), any(), any());
+        assertEquals(requestUUID, sent.get().getString("requestUUID"));
+        assertEquals("foo-uuid", lib.consentUUID);
+        assertNull(pendingActions.get());
+    }
+
+    @Test
+    public void nativeRunSendsQueuedActionsBeforeLoadingTheMessage() throws Exception {
+        runActivityUIThreadImmediately();
+        AtomicReference<String> pendingActions = storePendingConsentActionsInMemory();
+        GDPRConsentLib lib = builderMock().setOnConsentReady(c -> { }).build();
+        lib.consentActionQueue.enqueue(new JSONObject().put("uuid", "").put("actionType", ActionTypes.ACCEPT_ALL.code));
+        doAnswer(invocation -> {
+            ((GDPRConsentLib.OnLoadComplete) invocation.getArgument(1)).onSuccess(parse(NO_MESSAGE_RESPONSE));
+            return null;
+        }).when(sourcePointClientMock).sendConsent(any(), any());
+        answerGetMessage(0, true);
+
+        lib.run(mock(NativeMessage.class));
+
+        InOrder inOrder = inOrder(sourcePointClientMock);
+        inOrder.verify(sourcePointClientMock).sendConsent(any(), any());
+        inOrder.verify(sourcePointClientMock).getMessage(eq(true), any(), any(), any(), any());
+        assertNull(pendingActions.get());
+    }
+
+    @Test
+    public void failedFlushStillLoadsTheMessage() throws Exception {
+        runActivityUIThreadImmediately();
+        storePendingConsentActionsInMemory();
+        GDPRConsentLib lib = builderMock().setOnConsentReady(c -> { }).build();
+        lib.consentActionQueue.enqueue(new JSONObject().put("uuid", "").put("actionType", ActionTypes.REJECT_ALL.code));
+        doAnswer(invocation -> {
+            ((GDPRConsentLib.OnLoadComplete) invocation.getArgument(1)).onFailure(new ConsentLibException("network down"));
+            return null;
+        }).when(sourcePointClientMock).sendConsent(any(), any());
+        answerGetMessage(0, true);
+
+        lib.run();
+
+        verify(sourcePointClientMock).getMessage(anyBoolean(), any(), any(), any(), any());
+        assertEquals(1, lib.consentActionQueue.size());
+    }
+
+    @Test
+    public void runWhileOfflineWithQueuedActionsFinishesWithoutError() throws Exception {
+        runActivityUIThreadImmediately();
+        storePendingConsentActionsInMemory();
+        doThrow(new ConsentLibException.NoInternetConnectionException()).when(sourcePointClientMock).sendConsent(any(), any());
+        doThrow(new ConsentLibException.NoInternetConnectionException()).when(sourcePointClientMock).getMessage(anyBoolean(), any(), any(), any(), any());
+        AtomicInteger consentReadyCalls = new AtomicInteger(), errorCalls = new AtomicInteger();
+        GDPRConsentLib lib = builderMock()
+                .setOnConsentReady(c -> consentReadyCalls.incrementAndGet())
+                .setOnError(e -> errorCalls.incrementAndGet())
+                .build();
+        lib.consentActionQueue.enqueue(new JSONObject().put("uuid", "").put("actionType", ActionTypes.ACCEPT_ALL.code));
+
+        lib.run();
+
+        assertEquals(1, consentReadyCalls.get());
+        assertEquals(0, errorCalls.get());
+        verify(storeClientMock, never()).clearConsentData();
+    }
+
+    @Test
+    public void responseSharedByCoalescedRequestsIsStoredOnce() throws Exception {
+        runActivityUIThreadImmediately();
+        ConsentResponse shared = parse(NO_MESSAGE_RESPONSE);
+        doAnswer(invocation -> {
+            ((GDPRConsentLib.OnLoadComplete) invocation.getArgument(4)).onSuccess(shared);
+            return null;
+        }).when(sourcePointClientMock).getMessage(anyBoolean(), any(), any(), any(), any());
+        AtomicInteger consentReadyCalls = new AtomicInteger();
+
+        builderMock().setOnConsentReady(c -> consentReadyCalls.incrementAndGet()).build().run();
+        builderMock().setOnConsentReady(c -> consentReadyCalls.incrementAndGet()).build().run();
+
+        assertEquals(2, consentReadyCalls.get());
+        verify(storeTransactionMock, times(1)).setUserConsents(any());
+        verify(storeTransactionMock, times(1)).apply();
+    }
+
+    @Test
+    public void consentIsStoredInASingleAppliedTransaction() throws Exception {
+        runActivityUIThreadImmediately();
+        doAnswer(invocation -> {
+            ((GDPRConsentLib.OnLoadComplete) invocation.getArgument(4)).onSuccess(parse(NO_MESSAGE_RESPONSE));
+            return null;
+        }).when(sourcePointClientMock).getMessage(anyBoolean(), any(), any(), any(), any());
+
+        AtomicInteger consentReadyCalls = new AtomicInteger();
+
+        builderMock().setOnConsentReady(c -> consentReadyCalls.incrementAndGet()).build().run();
+
+        assertEquals(1, consentReadyCalls.get());
+        InOrder inOrder = inOrder(storeClientMock, storeTransactionMock);
+        inOrder.verify(storeClientMock).edit();
+        inOrder.verify(storeTransactionMock).setConsentUuid(any());
+        inOrder.verify(storeTransactionMock).setUserConsents(any());
+        inOrder.verify(storeTransactionMock).apply();
+        verify(storeTransactionMock, never()).commit();
+        verify(storeClientMock, never()).setConsentUuid(any());
+        verify(storeClientMock, never()).setUserConsents(any());
+    }
+
+    @Test
+    public void storedConsentIsNotDecodedOnTheBuildingThread() throws Exception {
+        GDPRUserConsent stored = new GDPRUserConsent();
+        stored.uuid = "stored-uuid";
+        AtomicReference<Thread> decodingThread = new AtomicReference<>();
+        doAnswer(invocation -> {
+            decodingThread.set(Thread.currentThread());
+            return stored;
+        }).when(storeClientMock).getUserConsent();
+        consentDecoder = StoredUserConsent.decoder();
+
+        GDPRConsentLib lib = builderMock().build();
+
+        // one decode for the lib built in setUp, one for this one
+        verify(storeClientMock, timeout(5000).times(2)).getUserConsent();
+        assertTrue(decodingThread.get() != Thread.currentThread());
+        // the field is set once the decode is done, without anyone asking for the consent
+        for (int i = 0; i < 250 && lib.userConsent == null; i++) Thread.sleep(20);
+        assertEquals("stored-uuid", lib.userConsent.uuid);
+        assertEquals("stored-uuid", lib.getUserConsent().uuid);
+        verify(storeClientMock, times(2)).getUserConsent();
+    }
+
+    @Test
+    public void buildingDoesNotWaitForTheStoredData() throws Exception {
+        runActivityUIThreadImmediately();
+        answerGetMessage(0, true);
+        doReturn("stored-uuid").when(storeClientMock).getConsentUUID();
+        List<Runnable> writes = new ArrayList<>();
+        persistenceExecutor = writes::add;
+        AtomicInteger consentReadyCalls = new AtomicInteger();
+        GDPRConsentLib lib = builderMock().setOnConsentReady(c -> consentReadyCalls.incrementAndGet()).build();
+
+        // nothing was read yet, run() waits for the writer to read it
+        assertNull(lib.consentUUID);
+        lib.run();
+        verify(sourcePointClientMock, never()).getMessage(anyBoolean(), any(), any(), any(), any());
+
+        for (int i = 0; i < writes.size(); i++) writes.get(i).run();
+        verify(sourcePointClientMock).getMessage(anyBoolean(), eq("stored-uuid"), any(), any(), any());
+        assertEquals(1, consentReadyCalls.get());
+    }
+
+    @Test
+    public void clearingTheDataWhileItIsReadWins() throws Exception {
+        doReturn("stored-uuid").when(storeClientMock).getConsentUUID();
+        List<Runnable> writes = new ArrayList<>();
+        persistenceExecutor = writes::add;
+        GDPRConsentLib lib = builderMock().build();
+
+        lib.clearAllData();
+        for (int i = 0; i < writes.size(); i++) writes.get(i).run();
+        assertNull(lib.consentUUID);
+        verify(storeClientMock).clearAllData();
+    }
+
+    @Test
+    public void changingTheAuthIdSwitchesTheStoredUser() {
+        doReturn("alice").when(storeClientMock).getAuthId();
+        builderMock().setAuthId("bob").build();
+        verify(storeClientMock).switchUser("alice", "bob");
+        verify(storeClientMock, never()).clearAllData();
+    }
+
+    @Test
+    public void aPreloadedConsentStateIsUsedInsteadOfReadingTheStore() throws Exception {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(ApplicationProvider.getApplicationContext());
+        preferences.edit().clear().putString(StoreClient.CONSENT_UUID_KEY, "preloaded-uuid").commit();
+        ConsentStatePreloader.start(ApplicationProvider.getApplicationContext());
+        clearInvocations(storeClientMock);
+
+        GDPRConsentLib lib = builderMock().build();
+
+        assertEquals("preloaded-uuid", lib.consentUUID);
+        verify(storeClientMock, never()).readConsentState();
+    }
+
+    @Test
+    public void everyNewConsentPublishesANewSnapshot() throws Exception {
+        runActivityUIThreadImmediately();
+        answerGetMessage(0, true);
+        GDPRConsentLib lib = builderMock().setOnConsentReady(c -> { }).build();
+        ConsentSnapshot stored = lib.getConsentSnapshot();
+        assertEquals(0, stored.getVersion());
+
+        lib.run();
+        ConsentSnapshot fromResponse = lib.getConsentSnapshot();
+        assertEquals(1, fromResponse.getVersion());
+        assertEquals(lib.userConsent.consentString, fromResponse.getConsentString());
+
+        lib.clearAllData();
+        assertEquals(2, lib.getConsentSnapshot().getVersion());
+        assertTrue(lib.getConsentSnapshot().getAcceptedVendors().isEmpty());
+        assertEquals(1, fromResponse.getVersion());
+    }
+
+    @Test
+    public void tcStringFollowsTheMessageResponse() throws Exception {
+        runActivityUIThreadImmediately();
+        String consentString = TCStringTest.bitfieldString();
+        doAnswer(invocation -> {
+            GDPRConsentLib.OnLoadComplete callback = invocation.getArgument(4);
+            callback.onSuccess(parse(NO_MESSAGE_RESPONSE.replace("\"euconsent\":\"\"", "\"euconsent\":\"" + consentString + "\"")));
+            return null;
+        }).when(sourcePointClientMock).getMessage(anyBoolean(), any(), any(), any(), any());
+        GDPRConsentLib lib = builderMock().setOnConsentReady(c -> { }).build();
+        assertNull(lib.getTCString());
+
+        lib.run();
+        assertEquals(consentString, lib.getTCString().consentString);
+        assertTrue(lib.getTCString().isVendorConsented(70));
+    }
+
+    @Test
+    public void changeListenersAreCalledBeforeOnConsentReady() throws Exception {
+        runActivityUIThreadImmediately();
+        answerGetMessage(0, true);
+        // the stored consent has two vendors, the response none
+        doReturn(FakeWrapperApi.userConsent(2, 2)).when(storeClientMock).getUserConsent();
+        List<String> calls = new ArrayList<>();
+        GDPRConsentLib lib = builderMock().setOnConsentReady(c -> calls.add("consent ready")).build();
+        lib.addVendorChangeListener("5e7ced57b8e05c4854221000", diff -> calls.add("vendor 0 " + diff.getRemovedVendors().size()));
+        lib.addVendorChangeListener("not-a-vendor", diff -> calls.add("not a vendor"));
+
+        lib.run();
+        assertEquals(Arrays.asList("vendor 0 2", "consent ready"), calls);
+    }
+
+    private static final String CUSTOM_CONSENT_RESPONSE = "{\"vendors\":[\"vendor-1\",\"vendor-2\"],\"categories\":[\"category-1\"],\"specialFeatures\":[],\"legIntCategories\":[\"category-2\"]}";
+
+    @Test
+    public void customConsentIsMergedIntoTheCurrentConsent() throws Exception {
+        runActivityUIThreadImmediately();
+        GDPRUserConsent stored = FakeWrapperApi.userConsent(2, 2);
+        doReturn(stored).when(storeClientMock).getUserConsent();
+        doAnswer(invocation -> {
+            ((GDPRConsentLib.OnLoadComplete) invocation.getArgument(1)).onSuccess(CUSTOM_CONSENT_RESPONSE);
+            return null;
+        }).when(sourcePointClientMock).sendCustomConsents(any(), any());
+        AtomicReference<GDPRUserConsent> consent = new AtomicReference<>();
+        GDPRConsentLib lib = builderMock().build();
+
+        lib.customConsentTo(new ArrayList<>(Arrays.asList("vendor-1")), new ArrayList<>(), new ArrayList<>(), consent::set);
+
+        GDPRUserConsent merged = consent.get();
+        assertEquals(Arrays.asList("vendor-1", "vendor-2"), merged.acceptedVendors);
+        assertEquals(Arrays.asList("category-1"), merged.acceptedCategories);
+        assertEquals(Arrays.asList("category-2"), merged.legIntCategories);
+        assertEquals(stored.consentString, merged.consentString);
+        assertEquals(stored.TCData, merged.TCData);
+        assertEquals(stored.vendorGrants.keySet(), merged.vendorGrants.keySet());
+        for (String vendor : stored.vendorGrants.keySet()) {
+            assertEquals(stored.vendorGrants.get(vendor).purposeGrants, merged.vendorGrants.get(vendor).purposeGrants);
+            assertTrue(stored.vendorGrants.get(vendor) != merged.vendorGrants.get(vendor));
+        }
+        assertTrue(stored.acceptedVendors.isEmpty() || !stored.acceptedVendors.equals(merged.acceptedVendors));
+    }
+
+    @Test
+    public void customConsentsWithinTheBatchWindowAreSentOnce() throws Exception {
+        runActivityUIThreadImmediately();
+        ArgumentCaptor<JSONObject> params = ArgumentCaptor.forClass(JSONObject.class);
+        doAnswer(invocation -> {
+            ((GDPRConsentLib.OnLoadComplete) invocation.getArgument(1)).onSuccess(CUSTOM_CONSENT_RESPONSE);
+            return null;
+        }).when(sourcePointClientMock).sendCustomConsents(params.capture(), any());
+        CountDownLatch called = new CountDownLatch(2);
+        AtomicInteger calls = new AtomicInteger();
+        GDPRConsentLib.OnConsentReadyCallback first = c -> { calls.incrementAndGet(); called.countDown(); };
+        GDPRConsentLib.OnConsentReadyCallback second = c -> { calls.incrementAndGet(); called.countDown(); };
+        GDPRConsentLib lib = builderMock().setCustomConsentBatchWindow(100).build();
+
+        lib.customConsentTo(new ArrayList<>(Arrays.asList("vendor-1")), new ArrayList<>(Arrays.asList("category-1")), new ArrayList<>(), first);
+        lib.customConsentTo(new ArrayList<>(Arrays.asList("vendor-2", "vendor-1")), new ArrayList<>(), new ArrayList<>(), second);
+        lib.customConsentTo(new ArrayList<>(Arrays.asList("vendor-3")), new ArrayList<>(), new ArrayList<>(Arrays.asList("category-2")), first);
+
+        assertTrue(called.await(5, TimeUnit.SECONDS));
+        verify(sourcePointClientMock, times(1)).sendCustomConsents(any(), any());
+        assertEquals("[\"vendor-1\",\"vendor-2\",\"vendor-3\"]", params.getValue().getJSONArray("vendors").toString());
+        assertEquals("[\"category-1\"]", params.getValue().getJSONArray("categories").toString());
+        assertEquals("[\"category-2\"]", params.getValue().getJSONArray("legIntCategories").toString());
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void aBusyRetrySchedulerDoesntHoldTheBatch() throws Exception {
+        runActivityUIThreadImmediately();
+        doAnswer(invocation -> {
+            ((GDPRConsentLib.OnLoadComplete) invocation.getArgument(1)).onSuccess(CUSTOM_CONSENT_RESPONSE);
+            return null;
+        }).when(sourcePointClientMock).sendCustomConsents(any(), any());
+        CountDownLatch retryReleased = new CountDownLatch(1);
+        RetryPolicy.scheduler().execute(() -> {
+            try {
+                retryReleased.await();
+            } catch (InterruptedException ignored) { }
+        });
+        CountDownLatch called = new CountDownLatch(1);
+        GDPRConsentLib lib = builderMock().setCustomConsentBatchWindow(10).build();
+
+        try {
+            lib.customConsentTo(new ArrayList<>(Arrays.asList("vendor-1")), new ArrayList<>(), new ArrayList<>(), c -> called.countDown());
+            assertTrue(called.await(5, TimeUnit.SECONDS));
+        } finally {
+            retryReleased.countDown();
+        }
+    }
+}
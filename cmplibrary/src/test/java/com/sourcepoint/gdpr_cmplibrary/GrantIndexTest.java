@@ -0,0 +1,106 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class GrantIndexTest {
+
+    private static final String VENDOR_0 = "5e7ced57b8e05c4854221000";
+    private static final String VENDOR_1 = "5e7ced57b8e05c4854221001";
+    private static final String PURPOSE_0 = "5e87321eb31ef52cd96cc500";
+    private static final String PURPOSE_1 = "5e87321eb31ef52cd96cc501";
+
+    private static boolean mapsSay(GDPRUserConsent userConsent, String vendor, String purpose) {
+        GDPRUserConsent.VendorGrants.VendorGrant grant = userConsent.vendorGrants.get(vendor);
+        return grant != null && Boolean.TRUE.equals(grant.purposeGrants.get(purpose));
+    }
+
+    @Test
+    public void agreesWithTheMaps() throws Exception {
+        // more than 64 purposes, so each vendor needs several words
+        GDPRUserConsent userConsent = FakeWrapperApi.userConsent(150, 70);
+        GrantIndex index = userConsent.getGrantIndex();
+        assertEquals(150, index.vendorCount());
+        assertEquals(70, index.purposeCount());
+        for (String vendor : userConsent.vendorGrants.keySet()) {
+            assertEquals(userConsent.vendorGrants.get(vendor).vendorGrant, userConsent.isVendorGranted(vendor));
+            for (int p = 0; p < 70; p++) {
+                String purpose = String.format("5e87321eb31ef52cd96cc5%02x", p);
+                assertEquals(mapsSay(userConsent, vendor, purpose), userConsent.hasConsent(vendor, purpose));
+                assertEquals(mapsSay(userConsent, vendor, purpose),
+                        index.isPurposeGranted(index.vendorOrdinal(vendor), index.purposeOrdinal(purpose)));
+            }
+        }
+    }
+
+    @Test
+    public void unknownIdsAreNotGranted() throws Exception {
+        GDPRUserConsent userConsent = FakeWrapperApi.userConsent(2, 2);
+        GrantIndex index = userConsent.getGrantIndex();
+        assertEquals(-1, index.vendorOrdinal("unknown"));
+        assertEquals(-1, index.purposeOrdinal("unknown"));
+        assertFalse(userConsent.isVendorGranted("unknown"));
+        assertFalse(userConsent.hasConsent("unknown", PURPOSE_1));
+        assertFalse(userConsent.hasConsent(VENDOR_0, "unknown"));
+        assertFalse(index.isPurposeGranted(-1, -1));
+        assertFalse(index.isVendorGranted(2));
+    }
+
+    @Test
+    public void emptyConsentGrantsNothing() {
+        GDPRUserConsent userConsent = new GDPRUserConsent();
+        assertEquals(0, userConsent.getGrantIndex().vendorCount());
+        assertFalse(userConsent.hasConsent(VENDOR_0, PURPOSE_0));
+    }
+
+    @Test
+    public void theIndexIsBuiltOncePerVendorGrants() throws Exception {
+        GDPRUserConsent userConsent = FakeWrapperApi.userConsent(2, 2);
+        GrantIndex index = userConsent.getGrantIndex();
+        assertSame(index, userConsent.getGrantIndex());
+        assertTrue(userConsent.hasConsent(VENDOR_1, PURPOSE_0));
+
+        GDPRUserConsent.VendorGrants replaced = new GDPRUserConsent().vendorGrants;
+        HashMap<String, Boolean> purposeGrants = new HashMap<>();
+        purposeGrants.put(PURPOSE_0, false);
+        replaced.put(VENDOR_1, replaced.new VendorGrant(false, purposeGrants));
+        userConsent.vendorGrants = replaced;
+
+        assertNotSame(index, userConsent.getGrantIndex());
+        assertFalse(userConsent.hasConsent(VENDOR_1, PURPOSE_0));
+    }
+
+    @Test
+    public void decodedConsentIsIndexed() throws Exception {
+        GDPRUserConsent userConsent = ConsentFile.decode(ConsentFile.encode(FakeWrapperApi.userConsent(20, 10)));
+        assertEquals(20, userConsent.getGrantIndex().vendorCount());
+        assertTrue(userConsent.hasConsent(VENDOR_0, PURPOSE_1));
+    }
+
+    @Test
+    public void rebuildingTheIndexGivesTheSameAnswers() throws Exception {
+        GDPRUserConsent userConsent = FakeWrapperApi.userConsent(300, 10);
+        GrantIndex index = userConsent.getGrantIndex();
+        GrantIndex rebuilt = new GrantIndex(userConsent.vendorGrants);
+        assertEquals(300, rebuilt.vendorCount());
+        for (String vendor : userConsent.vendorGrants.keySet()) {
+            int ordinal = rebuilt.vendorOrdinal(vendor);
+            assertEquals(index.isVendorGranted(index.vendorOrdinal(vendor)), rebuilt.isVendorGranted(ordinal));
+            for (int p = 0; p < 10; p++) {
+                String purpose = String.format("5e87321eb31ef52cd96cc5%02x", p);
+                assertEquals(userConsent.hasConsent(vendor, purpose),
+                        rebuilt.isPurposeGranted(ordinal, rebuilt.purposeOrdinal(purpose)));
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.GzipSource;
+import okio.Okio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class GzipRequestInterceptorTest {
+
+    private static final String NO_MESSAGE_RESPONSE = "{\"uuid\":\"foo-uuid\",\"meta\":\"{}\",\"userConsent\":{\"acceptedVendors\":[],\"acceptedCategories\":[],\"specialFeatures\":[],\"legIntCategories\":[],\"euconsent\":\"\",\"TCData\":{},\"grants\":{}}}";
+
+    @Mock
+    ConnectivityManager connectivityManagerMock;
+
+    @Mock
+    NetworkInfo networkInfoMock;
+
+    private MockWebServer server;
+
+    private SourcePointClient client(long compressionThreshold) {
+        SourcePointClientConfig config = new SourcePointClientConfig(new PropertyConfig(22, 1234, "mobile.demo", "1234"), false, false, "{}", null);
+        SourcePointClient client = new SourcePointClient(new OkHttpClient(), config, connectivityManagerMock);
+        client.baseUrl = server.url("/").toString();
+        client.requestCompressionThreshold = compressionThreshold;
+        return client;
+    }
+
+    private RecordedRequest sendConsent(long compressionThreshold, JSONObject params) throws Exception {
+        server.enqueue(new MockResponse().setBody(NO_MESSAGE_RESPONSE));
+        GDPRConsentLib.OnLoadComplete callback = mock(GDPRConsentLib.OnLoadComplete.class);
+        client(compressionThreshold).sendConsent(params, callback);
+        verify(callback, timeout(5000)).onSuccess(any(ConsentResponse.class));
+        return server.takeRequest(5, TimeUnit.SECONDS);
+    }
+
+    private static JSONObject largeParams() throws Exception {
+        StringBuilder meta = new StringBuilder();
+        for (int i = 0; i < 200; i++) meta.append("{\"vendor\":").append(i).append(",\"consent\":true}");
+        return new JSONObject().put("uuid", "uuid").put("meta", meta.toString());
+    }
+
+    static Buffer gzip(String body) throws Exception {
+        Buffer gzipped = new Buffer();
+        GzipRequestInterceptor.gzip(okhttp3.RequestBody.create(null, body)).writeTo(gzipped);
+        return gzipped;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        server = new MockWebServer();
+        server.start();
+        doReturn(networkInfoMock).when(connectivityManagerMock).getActiveNetworkInfo();
+        doReturn(true).when(networkInfoMock).isConnectedOrConnecting();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void bodiesAreNotCompressedByDefault() throws Exception {
+        RecordedRequest request = sendConsent(-1, largeParams());
+        assertNull(request.getHeader("Content-Encoding"));
+        assertEquals("uuid", new JSONObject(request.getBody().readUtf8()).getString("uuid"));
+    }
+
+    @Test
+    public void bodiesOverTheThresholdAreGzipped() throws Exception {
+        JSONObject params = largeParams();
+        RecordedRequest request = sendConsent(1024, params);
+
+        assertEquals("gzip", request.getHeader("Content-Encoding"));
+        assertTrue(request.getBodySize() < params.toString().length());
+        String body = Okio.buffer(new GzipSource(request.getBody())).readUtf8();
+        assertEquals(params.getString("meta"), new JSONObject(body).getString("meta"));
+    }
+
+    @Test
+    public void bodiesUnderTheThresholdAreSentAsIs() throws Exception {
+        RecordedRequest request = sendConsent(1024, new JSONObject().put("uuid", "uuid"));
+        assertNull(request.getHeader("Content-Encoding"));
+    }
+
+    @Test
+    public void gzippedResponsesAreDecompressed() throws Exception {
+        server.enqueue(new MockResponse().setBody(gzip(NO_MESSAGE_RESPONSE)).setHeader("Content-Encoding", "gzip"));
+        GDPRConsentLib.OnLoadComplete callback = mock(GDPRConsentLib.OnLoadComplete.class);
+
+        client(-1).getMessage(false, "gzip-uuid", "{}", "", callback);
+
+        verify(callback, timeout(5000)).onSuccess(any(ConsentResponse.class));
+        assertEquals("gzip", server.takeRequest().getHeader("Accept-Encoding"));
+    }
+}
@@ -0,0 +1,149 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.app.Activity;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.CountDownTimer;
+import android.preference.PreferenceManager;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class HttpClientProviderTest {
+
+    private static final String NO_MESSAGE_RESPONSE = "{\"uuid\":\"foo-uuid\",\"meta\":\"{}\",\"userConsent\":{\"acceptedVendors\":[],\"acceptedCategories\":[],\"specialFeatures\":[],\"legIntCategories\":[],\"euconsent\":\"\",\"TCData\":{},\"grants\":{}}}";
+
+    private MockWebServer server;
+
+    @Mock
+    Activity activityMock;
+
+    @Mock
+    ConnectivityManager connectivityManagerMock;
+
+    @Mock
+    NetworkInfo networkInfoMock;
+
+    @Mock
+    CountDownTimer timerMock;
+
+    private ConsentLibBuilder builder(OkHttpClient httpClient) {
+        ConsentLibBuilder builder = new ConsentLibBuilder(123, "example.com", 321, "abcd", activityMock) {
+            @Override
+            protected SourcePointClient getSourcePointClient() {
+                SourcePointClient client = super.getSourcePointClient();
+                client.baseUrl = server.url("/").toString();
+                return client;
+            }
+            @Override
+            protected StoreClient getStoreClient() {
+                return new StoreClient(PreferenceManager.getDefaultSharedPreferences(ApplicationProvider.getApplicationContext()));
+            }
+            @Override
+            protected ConnectivityManager getConnectivityManager() {
+                return connectivityManagerMock;
+            }
+            @Override
+            CountDownTimer getTimer(Runnable r) {
+                return timerMock;
+            }
+        };
+        return httpClient != null ? builder.setHttpClient(httpClient) : builder;
+    }
+
+    private void runUntilConsentReady(ConsentLibBuilder builder) throws InterruptedException {
+        CountDownLatch consentReady = new CountDownLatch(1);
+        builder.setOnConsentReady(c -> consentReady.countDown()).build().run();
+        assertTrue(consentReady.await(5, TimeUnit.SECONDS));
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        server = new MockWebServer();
+        server.start();
+        doReturn(networkInfoMock).when(connectivityManagerMock).getActiveNetworkInfo();
+        doReturn(true).when(networkInfoMock).isConnectedOrConnecting();
+        doReturn(timerMock).when(timerMock).start();
+        doAnswer(invocation -> {
+            ((Runnable) invocation.getArgument(0)).run();
+            return null;
+        }).when(activityMock).runOnUiThread(any());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void getSharedClientIsLazySingleton() {
+        assertSame(HttpClientProvider.getSharedClient(), HttpClientProvider.getSharedClient());
+    }
+
+    @Test
+    public void buildersShareTheDefaultClient() {
+        assertSame(builder(null).getSourcePointClient().httpClient, builder(null).getSourcePointClient().httpClient);
+        assertSame(HttpClientProvider.getSharedClient(), builder(null).getSourcePointClient().httpClient);
+    }
+
+    @Test
+    public void setHttpClientOverridesTheSharedClient() {
+        OkHttpClient custom = new OkHttpClient();
+        assertSame(custom, builder(custom).getSourcePointClient().httpClient);
+        assertNotSame(HttpClientProvider.getSharedClient(), builder(custom).getSourcePointClient().httpClient);
+    }
+
+    @Test
+    public void repeatedRunsReuseOneConnection() throws Exception {
+        int runs = 5;
+        for (int i = 0; i < runs; i++) server.enqueue(new MockResponse().setBody(NO_MESSAGE_RESPONSE));
+
+        // a fresh client per test keeps connections from other tests out of the count
+        OkHttpClient client = HttpClientProvider.getSharedClient().newBuilder().build();
+        for (int i = 0; i < runs; i++) runUntilConsentReady(builder(client));
+
+        for (int i = 0; i < runs; i++) {
+            RecordedRequest request = server.takeRequest(1, TimeUnit.SECONDS);
+            // the sequence number is the index of the request on its connection
+            assertEquals(i, request.getSequenceNumber());
+        }
+        assertEquals(runs, server.getRequestCount());
+    }
+
+    @Test
+    public void newClientPerRunOpensOneConnectionPerRun() throws Exception {
+        int runs = 3;
+        for (int i = 0; i < runs; i++) server.enqueue(new MockResponse().setBody(NO_MESSAGE_RESPONSE));
+
+        for (int i = 0; i < runs; i++) runUntilConsentReady(builder(new OkHttpClient()));
+
+        for (int i = 0; i < runs; i++) {
+            assertEquals(0, server.takeRequest(1, TimeUnit.SECONDS).getSequenceNumber());
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class InMemoryConsentStorageTest extends ConsentStorageConformanceTest {
+
+    @Override
+    ConsentStorage newStorage() {
+        return new InMemoryConsentStorage();
+    }
+
+    @Override
+    ConsentStorage reopen() {
+        return null;
+    }
+}
@@ -0,0 +1,35 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyTrackerTest {
+
+    @Test
+    public void percentileOfEmptyTrackerIsNegative() {
+        assertEquals(-1, new LatencyTracker(4).percentile(50));
+    }
+
+    @Test
+    public void nearestRankPercentiles() {
+        LatencyTracker tracker = new LatencyTracker(10);
+        for (long millis = 10; millis >= 1; millis--) tracker.record(millis * 10);
+        assertEquals(10, tracker.percentile(0));
+        assertEquals(50, tracker.percentile(50));
+        assertEquals(90, tracker.percentile(90));
+        assertEquals(100, tracker.percentile(95));
+        assertEquals(100, tracker.percentile(100));
+    }
+
+    @Test
+    public void keepsOnlyTheMostRecentSamples() {
+        LatencyTracker tracker = new LatencyTracker(3);
+        tracker.record(1000);
+        tracker.record(1);
+        tracker.record(2);
+        tracker.record(3);
+        assertEquals(3, tracker.size());
+        assertEquals(3, tracker.percentile(100));
+    }
+}
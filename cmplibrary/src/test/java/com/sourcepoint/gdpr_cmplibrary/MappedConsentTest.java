@@ -0,0 +1,153 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class MappedConsentTest {
+
+    private static final String VENDOR_0 = "5e7ced57b8e05c4854221000";
+    private static final String VENDOR_1 = "5e7ced57b8e05c4854221001";
+    private static final String PURPOSE_0 = "5e87321eb31ef52cd96cc500";
+    private static final String PURPOSE_1 = "5e87321eb31ef52cd96cc501";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SharedPreferences sharedPreferences;
+    private File file;
+
+    private static HashMap<String, Object> tcData() {
+        HashMap<String, Object> tcData = new HashMap<>();
+        tcData.put("IABTCF_CmpSdkID", 6);
+        tcData.put("IABTCF_TCString", "CO-consent");
+        tcData.put("IABTCF_PurposeConsents", "0110");
+        tcData.put("IABTCF_gdprApplies", 1);
+        return tcData;
+    }
+
+    @Before
+    public void setUp() {
+        sharedPreferences = PreferenceManager.getDefaultSharedPreferences(ApplicationProvider.getApplicationContext());
+        sharedPreferences.edit().clear().commit();
+        file = new File(folder.getRoot(), MappedConsent.FILE_NAME);
+    }
+
+    @Test
+    public void nothingPublished() {
+        MappedConsent mappedConsent = new MappedConsent(file);
+        assertEquals(0, mappedConsent.getSequence());
+        assertNull(mappedConsent.getTCValue("IABTCF_CmpSdkID"));
+        assertNull(mappedConsent.isVendorGranted(VENDOR_0));
+        assertNull(mappedConsent.isPurposeGranted(VENDOR_0, PURPOSE_0));
+        assertFalse(mappedConsent.refresh());
+    }
+
+    @Test
+    public void lookups() throws Exception {
+        assertTrue(MappedConsent.publish(file, tcData(), FakeWrapperApi.userConsent(20, 4).vendorGrants));
+        MappedConsent mappedConsent = new MappedConsent(file);
+
+        assertEquals(1, mappedConsent.getSequence());
+        assertEquals(4, mappedConsent.getTCDataSize());
+        assertEquals(20, mappedConsent.getVendorCount());
+        for (String key : tcData().keySet()) assertEquals(tcData().get(key), mappedConsent.getTCValue(key));
+        assertNull(mappedConsent.getTCValue("IABTCF_unknown"));
+
+        // vendors with an even index are granted, purpose p of vendor v is granted unless (v + p) % 3 == 0
+        assertEquals(true, mappedConsent.isVendorGranted(VENDOR_0));
+        assertEquals(false, mappedConsent.isVendorGranted(VENDOR_1));
+        assertEquals(false, mappedConsent.isPurposeGranted(VENDOR_0, PURPOSE_0));
+        assertEquals(true, mappedConsent.isPurposeGranted(VENDOR_0, PURPOSE_1));
+        assertEquals(true, mappedConsent.isPurposeGranted(VENDOR_1, PURPOSE_0));
+        assertNull(mappedConsent.isVendorGranted("unknown"));
+        assertNull(mappedConsent.isPurposeGranted(VENDOR_0, "unknown"));
+        assertNull(mappedConsent.isPurposeGranted("unknown", PURPOSE_0));
+    }
+
+    @Test
+    public void everyGrantIsFound() throws Exception {
+        GDPRUserConsent userConsent = FakeWrapperApi.userConsent(300, 10);
+        MappedConsent.publish(file, new HashMap<String, Object>(), userConsent.vendorGrants);
+        MappedConsent mappedConsent = new MappedConsent(file);
+        for (String vendor : userConsent.vendorGrants.keySet()) {
+            GDPRUserConsent.VendorGrants.VendorGrant grant = userConsent.vendorGrants.get(vendor);
+            assertEquals(grant.vendorGrant, mappedConsent.isVendorGranted(vendor));
+            for (String purpose : grant.purposeGrants.keySet()) {
+                assertEquals(grant.purposeGrants.get(purpose), mappedConsent.isPurposeGranted(vendor, purpose));
+            }
+        }
+    }
+
+    @Test
+    public void refreshMapsNewerSnapshots() throws Exception {
+        MappedConsent.publish(file, tcData(), FakeWrapperApi.userConsent(2, 2).vendorGrants);
+        MappedConsent mappedConsent = new MappedConsent(file);
+        assertFalse(mappedConsent.refresh());
+
+        HashMap<String, Object> changed = tcData();
+        changed.put("IABTCF_TCString", "CO-changed");
+        MappedConsent.publish(file, changed, FakeWrapperApi.userConsent(2, 2).vendorGrants);
+
+        // the mapped snapshot doesn't change under the reader until it asks for the newer one
+        assertEquals("CO-consent", mappedConsent.getTCValue("IABTCF_TCString"));
+        assertTrue(mappedConsent.refresh());
+        assertEquals(2, mappedConsent.getSequence());
+        assertEquals("CO-changed", mappedConsent.getTCValue("IABTCF_TCString"));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void storeClientPublishesWithTheUserConsent() throws Exception {
+        StoreClient storeClient = new StoreClient(sharedPreferences, new File(folder.getRoot(), ConsentFile.NAME));
+        storeClient.mappedConsentFile = file;
+        storeClient.edit().setTCData(tcData()).setUserConsents(FakeWrapperApi.userConsent(5, 3)).commit();
+
+        MappedConsent mappedConsent = new MappedConsent(file);
+        assertEquals("CO-consent", mappedConsent.getTCValue("IABTCF_TCString"));
+        assertEquals(true, mappedConsent.isVendorGranted(VENDOR_0));
+
+        storeClient.clearConsentData();
+        assertTrue(mappedConsent.refresh());
+        assertEquals(0, mappedConsent.getTCDataSize());
+        assertEquals(0, mappedConsent.getVendorCount());
+    }
+
+    @Test
+    public void storeClientDoesntPublishByDefault() throws Exception {
+        new StoreClient(sharedPreferences, new File(folder.getRoot(), ConsentFile.NAME)).setUserConsents(FakeWrapperApi.userConsent(5, 3));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void mappedValuesMatchThePreferences() throws Exception {
+        GDPRUserConsent userConsent = FakeWrapperApi.userConsent(300, 10);
+        StoreClient storeClient = new StoreClient(sharedPreferences);
+        storeClient.setTCData(tcData());
+        MappedConsent.publish(file, tcData(), userConsent.vendorGrants);
+        MappedConsent mappedConsent = new MappedConsent(file);
+
+        assertEquals(sharedPreferences.getString("IABTCF_TCString", null), mappedConsent.getTCValue("IABTCF_TCString"));
+        assertEquals(sharedPreferences.getInt("IABTCF_CmpSdkID", -1), mappedConsent.getTCValue("IABTCF_CmpSdkID"));
+        assertEquals(300, mappedConsent.getVendorCount());
+        assertEquals(userConsent.vendorGrants.get(VENDOR_1).purposeGrants.get(PURPOSE_1),
+                mappedConsent.isPurposeGranted(VENDOR_1, PURPOSE_1));
+    }
+}
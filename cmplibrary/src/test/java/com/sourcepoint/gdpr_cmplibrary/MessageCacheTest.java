@@ -0,0 +1,296 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.app.Activity;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.CountDownTimer;
+import android.preference.PreferenceManager;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class MessageCacheTest {
+
+    private static final String NO_MESSAGE_RESPONSE = "{\"uuid\":\"foo-uuid\",\"meta\":\"{}\",\"userConsent\":{\"acceptedVendors\":[],\"acceptedCategories\":[],\"specialFeatures\":[],\"legIntCategories\":[],\"euconsent\":\"\",\"TCData\":{},\"grants\":{}}}";
+    private static final String MESSAGE_RESPONSE = "{\"uuid\":\"foo-uuid\",\"meta\":\"{}\",\"userConsent\":{\"acceptedVendors\":[],\"acceptedCategories\":[],\"specialFeatures\":[],\"legIntCategories\":[],\"euconsent\":\"\",\"TCData\":{},\"grants\":{}},\"url\":\"https://notice.sp-prod.net/?message_id=1\"}";
+    private static final long TTL = 60000;
+
+    private static ConsentResponse responseWithMeta(String meta) {
+        return argThat(response -> response instanceof ConsentResponse && meta.equals(((ConsentResponse) response).meta));
+    }
+
+    private static String bodyOf(MessageCache.Entry entry) {
+        return entry != null ? entry.body : null;
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    ConnectivityManager connectivityManagerMock;
+
+    @Mock
+    NetworkInfo networkInfoMock;
+
+    @Mock
+    Activity activityMock;
+
+    @Mock
+    CountDownTimer timerMock;
+
+    private MockWebServer server;
+    private File dir;
+
+    private MessageCache cache(long maxSize) {
+        return new MessageCache(dir, TTL, TTL, maxSize);
+    }
+
+    private SourcePointClient client(MessageCache cache) {
+        SourcePointClientConfig config = new SourcePointClientConfig(new PropertyConfig(22, 1234, "mobile.demo", "1234"), false, false, "{}", null);
+        SourcePointClient client = new SourcePointClient(new OkHttpClient(), config, connectivityManagerMock, cache);
+        client.baseUrl = server.url("/").toString();
+        return client;
+    }
+
+    private GDPRConsentLib lib(GDPRConsentLib.OnConsentReadyCallback onConsentReady) {
+        return new ConsentLibBuilder(22, "mobile.demo", 1234, "1234", activityMock) {
+            @Override
+            protected StoreClient getStoreClient() {
+                return new StoreClient(PreferenceManager.getDefaultSharedPreferences(ApplicationProvider.getApplicationContext()));
+            }
+            @Override
+            protected ConnectivityManager getConnectivityManager() {
+                return connectivityManagerMock;
+            }
+            @Override
+            CountDownTimer getTimer(Runnable r) {
+                return timerMock;
+            }
+        }.setBaseUrl(server.url("/").toString())
+                .setMessageCacheTtl(TTL)
+                .setOnConsentReady(onConsentReady)
+                .build();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        dir = new File(folder.getRoot(), MessageCache.DIR_NAME);
+        server = new MockWebServer();
+        server.start();
+        doReturn(networkInfoMock).when(connectivityManagerMock).getActiveNetworkInfo();
+        doReturn(true).when(networkInfoMock).isConnectedOrConnecting();
+        doReturn(folder.getRoot()).when(activityMock).getCacheDir();
+        doReturn(timerMock).when(timerMock).start();
+        doAnswer(invocation -> {
+            ((Runnable) invocation.getArgument(0)).run();
+            return null;
+        }).when(activityMock).runOnUiThread(any());
+        PreferenceManager.getDefaultSharedPreferences(ApplicationProvider.getApplicationContext()).edit().clear().commit();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void keyIgnoresRequestUUID() throws Exception {
+        JSONObject params = new JSONObject().put("uuid", "foo").put("requestUUID", "a");
+        JSONObject sameParams = new JSONObject().put("uuid", "foo").put("requestUUID", "b");
+        JSONObject otherParams = new JSONObject().put("uuid", "bar").put("requestUUID", "a");
+        assertEquals(MessageCache.key("url", params), MessageCache.key("url", sameParams));
+        assertNotEquals(MessageCache.key("url", params), MessageCache.key("url", otherParams));
+        assertNotEquals(MessageCache.key("url", params), MessageCache.key("other-url", params));
+    }
+
+    @Test
+    public void putAndGet() {
+        MessageCache cache = cache(MessageCache.DEFAULT_MAX_SIZE);
+        cache.put("key", NO_MESSAGE_RESPONSE, "etag");
+        MessageCache.Entry entry = cache.get("key");
+        assertNotNull(entry);
+        assertEquals(NO_MESSAGE_RESPONSE, entry.body);
+        assertEquals("etag", entry.etag);
+        assertTrue(entry.isFresh(System.currentTimeMillis()));
+    }
+
+    @Test
+    public void staleEntryIsUsableUntilMaxStale() {
+        MessageCache cache = cache(MessageCache.DEFAULT_MAX_SIZE);
+        long now = System.currentTimeMillis();
+        cache.put("stale", NO_MESSAGE_RESPONSE, null, now - TTL - 1);
+        cache.put("expired", NO_MESSAGE_RESPONSE, null, now - 2 * TTL - 1);
+
+        MessageCache.Entry stale = cache.get("stale");
+        assertNotNull(stale);
+        assertFalse(stale.isFresh(now));
+        assertTrue(stale.isUsable(now));
+        assertNull(cache.get("expired"));
+        assertFalse(new File(dir, "expired").exists());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedEntries() {
+        cache(MessageCache.DEFAULT_MAX_SIZE).put("first", NO_MESSAGE_RESPONSE, null);
+        MessageCache cache = cache(3 * new File(dir, "first").length());
+        cache.put("second", NO_MESSAGE_RESPONSE, null);
+        new File(dir, "first").setLastModified(System.currentTimeMillis() - 10000);
+        new File(dir, "second").setLastModified(System.currentTimeMillis() - 5000);
+        cache.put("third", NO_MESSAGE_RESPONSE, null);
+        cache.put("fourth", NO_MESSAGE_RESPONSE, null);
+
+        assertNull(cache.get("first"));
+        assertNotNull(cache.get("fourth"));
+    }
+
+    @Test
+    public void freshEntryIsServedWithoutNetwork() throws Exception {
+        server.enqueue(new MockResponse().setBody(NO_MESSAGE_RESPONSE));
+        MessageCache cache = cache(MessageCache.DEFAULT_MAX_SIZE);
+
+        GDPRConsentLib.OnLoadComplete first = mock(GDPRConsentLib.OnLoadComplete.class);
+        client(cache).getMessage(false, "uuid", "{}", "", first);
+        verify(first, timeout(5000)).onSuccess(responseWithMeta("{}"));
+
+        GDPRConsentLib.OnLoadComplete second = mock(GDPRConsentLib.OnLoadComplete.class);
+        client(cache).getMessage(false, "uuid", "{}", "", second);
+        verify(second, timeout(5000)).onSuccess(responseWithMeta("{}"));
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void freshEntryIsServedWhenOffline() throws Exception {
+        server.enqueue(new MockResponse().setBody(NO_MESSAGE_RESPONSE));
+        MessageCache cache = cache(MessageCache.DEFAULT_MAX_SIZE);
+
+        GDPRConsentLib.OnLoadComplete online = mock(GDPRConsentLib.OnLoadComplete.class);
+        client(cache).getMessage(false, "uuid", "{}", "", online);
+        verify(online, timeout(5000)).onSuccess(responseWithMeta("{}"));
+
+        doReturn(false).when(networkInfoMock).isConnectedOrConnecting();
+        GDPRConsentLib.OnLoadComplete offline = mock(GDPRConsentLib.OnLoadComplete.class);
+        client(cache).getMessage(false, "uuid", "{}", "", offline);
+        verify(offline, timeout(5000)).onSuccess(responseWithMeta("{}"));
+    }
+
+    @Test
+    public void staleEntryIsServedAndRevalidated() throws Exception {
+        String updated = "{\"uuid\":\"foo-uuid\",\"meta\":\"{\\\"updated\\\":true}\",\"userConsent\":{\"acceptedVendors\":[],\"acceptedCategories\":[],\"specialFeatures\":[],\"legIntCategories\":[],\"euconsent\":\"\",\"TCData\":{},\"grants\":{}}}";
+        server.enqueue(new MockResponse().setBody(NO_MESSAGE_RESPONSE));
+        server.enqueue(new MockResponse().setBody(updated));
+        MessageCache cache = new MessageCache(dir, 0, TTL, MessageCache.DEFAULT_MAX_SIZE);
+
+        GDPRConsentLib.OnLoadComplete first = mock(GDPRConsentLib.OnLoadComplete.class);
+        client(cache).getMessage(false, "uuid", "{}", "", first);
+        verify(first, timeout(5000)).onSuccess(responseWithMeta("{}"));
+
+        GDPRConsentLib.OnLoadComplete second = mock(GDPRConsentLib.OnLoadComplete.class);
+        client(cache).getMessage(false, "uuid", "{}", "", second);
+        verify(second, timeout(5000)).onSuccess(responseWithMeta("{}"));
+        assertNotNull(server.takeRequest(5, TimeUnit.SECONDS));
+        assertNotNull(server.takeRequest(5, TimeUnit.SECONDS));
+
+        // the background revalidation replaces the entry once its response has been read
+        String key = dir.list((d, name) -> !name.endsWith(".tmp"))[0];
+        for (int i = 0; i < 100 && !updated.equals(bodyOf(cache.get(key))); i++) Thread.sleep(20);
+        assertEquals(updated, bodyOf(cache.get(key)));
+        assertEquals(2, server.getRequestCount());
+
+        GDPRConsentLib.OnLoadComplete third = mock(GDPRConsentLib.OnLoadComplete.class);
+        client(cache).getMessage(false, "uuid", "{}", "", third);
+        verify(third, timeout(5000)).onSuccess(responseWithMeta("{\"updated\":true}"));
+    }
+
+    @Test
+    public void cacheHitIsDeliveredOffTheCallingThread() throws Exception {
+        server.enqueue(new MockResponse().setBody(NO_MESSAGE_RESPONSE));
+        MessageCache cache = cache(MessageCache.DEFAULT_MAX_SIZE);
+        SourcePointClient client = client(cache);
+        GDPRConsentLib.OnLoadComplete first = mock(GDPRConsentLib.OnLoadComplete.class);
+        client.getMessage(false, "uuid", "{}", "", first);
+        verify(first, timeout(5000)).onSuccess(responseWithMeta("{}"));
+
+        Thread caller = Thread.currentThread();
+        Thread[] deliveredOn = new Thread[1];
+        CountDownLatch delivered = new CountDownLatch(1);
+        client.getMessage(false, "uuid", "{}", "", new GDPRConsentLib.OnLoadComplete() {
+            @Override
+            public void onSuccess(Object result) {
+                deliveredOn[0] = Thread.currentThread();
+                delivered.countDown();
+            }
+        });
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        assertNotEquals(caller, deliveredOn[0]);
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void responsesWithAMessageAreNotCached() throws Exception {
+        server.enqueue(new MockResponse().setBody(MESSAGE_RESPONSE));
+        server.enqueue(new MockResponse().setBody(MESSAGE_RESPONSE));
+        MessageCache cache = cache(MessageCache.DEFAULT_MAX_SIZE);
+
+        GDPRConsentLib.OnLoadComplete first = mock(GDPRConsentLib.OnLoadComplete.class);
+        client(cache).getMessage(false, "uuid", "{}", "", first);
+        verify(first, timeout(5000)).onSuccess(responseWithMeta("{}"));
+
+        GDPRConsentLib.OnLoadComplete second = mock(GDPRConsentLib.OnLoadComplete.class);
+        client(cache).getMessage(false, "uuid", "{}", "", second);
+        verify(second, timeout(5000)).onSuccess(responseWithMeta("{}"));
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void clearingTheDataDropsTheCachedMessages() throws Exception {
+        server.enqueue(new MockResponse().setBody(NO_MESSAGE_RESPONSE));
+        server.enqueue(new MockResponse().setBody(NO_MESSAGE_RESPONSE));
+        CountDownLatch first = new CountDownLatch(1);
+        GDPRConsentLib lib = lib(c -> first.countDown());
+        lib.clearAllData();
+        lib.run();
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+
+        // cleared again, the lib asks with the same state the cached response was keyed by
+        CountDownLatch second = new CountDownLatch(1);
+        lib = lib(c -> second.countDown());
+        lib.clearAllData();
+        lib.run();
+        assertTrue(second.await(5, TimeUnit.SECONDS));
+        assertEquals(2, server.getRequestCount());
+    }
+}
@@ -0,0 +1,51 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class NetworkTimingsTest {
+
+    private final NetworkTimings networkTimings = NetworkTimings.getInstance();
+
+    private static CallTimings call(long dnsMs, long ttfbMs, long totalMs, String error) {
+        return new CallTimings("url", dnsMs, -1, -1, 1, ttfbMs, 1, totalMs, 10, 100, dnsMs < 0, error);
+    }
+
+    @Before
+    public void setUp() {
+        networkTimings.reset();
+    }
+
+    @Test
+    public void percentilesPerPhase() {
+        for (int i = 1; i <= 100; i++) networkTimings.record(call(-1, i, 2 * i, null));
+        assertEquals(50, networkTimings.percentile(CallTimings.Phase.TTFB, 50));
+        assertEquals(95, networkTimings.percentile(CallTimings.Phase.TTFB, 95));
+        assertEquals(190, networkTimings.percentile(CallTimings.Phase.TOTAL, 95));
+    }
+
+    @Test
+    public void phasesThatDidNotHappenAreNotSampled() {
+        networkTimings.record(call(-1, 10, 20, null));
+        networkTimings.record(call(5, 10, 20, null));
+        assertEquals(1, networkTimings.sampleCount(CallTimings.Phase.DNS));
+        assertEquals(0, networkTimings.sampleCount(CallTimings.Phase.TLS));
+        assertEquals(-1, networkTimings.percentile(CallTimings.Phase.TLS, 50));
+        assertEquals(2, networkTimings.sampleCount(CallTimings.Phase.TOTAL));
+    }
+
+    @Test
+    public void failedCallsAreNotSampled() {
+        networkTimings.record(call(5, 10, 20, "java.net.SocketTimeoutException"));
+        assertEquals(0, networkTimings.sampleCount(CallTimings.Phase.TOTAL));
+    }
+
+    @Test
+    public void keepsTheMostRecentCalls() {
+        for (int i = 0; i < NetworkTimings.SAMPLES; i++) networkTimings.record(call(-1, 1000, 1000, null));
+        for (int i = 0; i < NetworkTimings.SAMPLES; i++) networkTimings.record(call(-1, 10, 10, null));
+        assertEquals(10, networkTimings.percentile(CallTimings.Phase.TTFB, 100));
+    }
+}
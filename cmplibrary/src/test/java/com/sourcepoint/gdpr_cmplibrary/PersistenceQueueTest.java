@@ -0,0 +1,107 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class PersistenceQueueTest {
+
+    private final List<String> log = new CopyOnWriteArrayList<>();
+
+    // a queue whose writer is stuck on its first write until the returned latch is released
+    private CountDownLatch blockedQueue(PersistenceQueue queue) {
+        CountDownLatch release = new CountDownLatch(1);
+        queue.submit(null, () -> release.await(5, TimeUnit.SECONDS));
+        return release;
+    }
+
+    @Test
+    public void writesRunInSubmissionOrder() {
+        PersistenceQueue queue = PersistenceQueue.getInstance();
+        for (int i = 0; i < 20; i++) {
+            String write = "write " + i;
+            queue.submit(null, () -> log.add(write));
+        }
+        assertTrue(queue.flush(5000));
+        for (int i = 0; i < 20; i++) assertEquals("write " + i, log.get(i));
+    }
+
+    @Test
+    public void waitingWriteIsReplacedByANewerOneWithTheSameKey() {
+        PersistenceQueue queue = new PersistenceQueue(Executors.newSingleThreadExecutor());
+        CountDownLatch release = blockedQueue(queue);
+
+        queue.submit("consent", () -> log.add("store 1"), error -> log.add("stored 1"));
+        queue.submit(null, () -> log.add("clear"));
+        queue.submit("consent", () -> log.add("store 2"), error -> log.add("stored 2"));
+        release.countDown();
+
+        assertTrue(queue.flush(5000));
+        assertEquals(Arrays.asList("clear", "store 2", "stored 1", "stored 2"), log);
+    }
+
+    @Test
+    public void runningWriteIsNotReplaced() throws Exception {
+        PersistenceQueue queue = new PersistenceQueue(Executors.newSingleThreadExecutor());
+        CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1);
+        queue.submit("consent", () -> {
+            started.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            log.add("store 1");
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        queue.submit("consent", () -> log.add("store 2"));
+        release.countDown();
+
+        assertTrue(queue.flush(5000));
+        assertEquals(Arrays.asList("store 1", "store 2"), log);
+    }
+
+    @Test
+    public void failedWriteIsReportedAndDoesntStopTheQueue() {
+        PersistenceQueue queue = new PersistenceQueue(Executors.newSingleThreadExecutor());
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        AtomicReference<Exception> success = new AtomicReference<>(new Exception("not called"));
+        queue.submit("consent", () -> { throw new ConsentLibException("disk full"); }, failure::set);
+        queue.submit(null, () -> log.add("next"), success::set);
+
+        assertTrue(queue.flush(5000));
+        assertEquals("disk full", ((ConsentLibException) failure.get()).consentLibErrorMessage);
+        assertNull(success.get());
+        assertEquals(Arrays.asList("next"), log);
+    }
+
+    @Test
+    public void flushTimesOutWhileAWriteIsStuck() {
+        PersistenceQueue queue = new PersistenceQueue(Executors.newSingleThreadExecutor());
+        CountDownLatch release = blockedQueue(queue);
+        assertFalse(queue.flush(50));
+        release.countDown();
+        assertTrue(queue.flush(5000));
+    }
+
+    @Test
+    public void flushFromAWriteDoesntDeadlock() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        PersistenceQueue queue = new PersistenceQueue(executor);
+        queue.submit(null, () -> log.add("flushed " + queue.flush(5000)));
+        assertTrue(queue.flush(5000));
+        assertEquals(Arrays.asList("flushed true"), log);
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,27 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class PreferencesConsentStorageTest extends ConsentStorageConformanceTest {
+
+    private SharedPreferences sharedPreferences;
+
+    @Override
+    ConsentStorage newStorage() {
+        sharedPreferences = PreferenceManager.getDefaultSharedPreferences(ApplicationProvider.getApplicationContext());
+        sharedPreferences.edit().clear().commit();
+        return new PreferencesConsentStorage(sharedPreferences);
+    }
+
+    @Override
+    ConsentStorage reopen() {
+        return new PreferencesConsentStorage(sharedPreferences);
+    }
+}
@@ -0,0 +1,87 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+
+    private static Response response(int code, String retryAfter) {
+        Response.Builder response = new Response.Builder()
+                .request(new Request.Builder().url("https://example.com").build())
+                .protocol(Protocol.HTTP_1_1)
+                .code(code)
+                .message("");
+        if (retryAfter != null) response.header("Retry-After", retryAfter);
+        return response.build();
+    }
+
+    @Test
+    public void classifiesRetryableStatusCodes() {
+        for (int code : new int[]{408, 425, 429, 500, 502, 503, 504}) assertTrue(RetryPolicy.isRetryable(code));
+        for (int code : new int[]{200, 304, 400, 401, 403, 404, 501}) assertFalse(RetryPolicy.isRetryable(code));
+    }
+
+    @Test
+    public void requestsThatArentIdempotentOnlyRetryWhatTheServerDidntProcess() {
+        assertTrue(RetryPolicy.isRetryable(response(500, null), true));
+        assertFalse(RetryPolicy.isRetryable(response(500, null), false));
+        assertFalse(RetryPolicy.isRetryable(response(408, null), false));
+        assertFalse(RetryPolicy.isRetryable(response(503, null), false));
+        assertTrue(RetryPolicy.isRetryable(response(503, "1"), false));
+        assertTrue(RetryPolicy.isRetryable(response(429, "1"), false));
+
+        assertTrue(RetryPolicy.isRetryable(new SocketTimeoutException(), true));
+        assertFalse(RetryPolicy.isRetryable(new SocketTimeoutException(), false));
+        assertFalse(RetryPolicy.isRetryable(new IOException("unexpected end of stream"), false));
+        assertTrue(RetryPolicy.isRetryable(new ConnectException(), false));
+    }
+
+    @Test
+    public void backoffIsJitteredUnderACappedExponential() {
+        RetryPolicy policy = new RetryPolicy(10, 100, 1000, 10000, 0);
+        long[] caps = {100, 200, 400, 800, 1000, 1000, 1000};
+        for (int retry = 0; retry < caps.length; retry++) {
+            for (int i = 0; i < 100; i++) {
+                long backoff = policy.backoff(retry);
+                assertTrue(backoff >= 0 && backoff < caps[retry]);
+            }
+        }
+    }
+
+    @Test
+    public void retryAfterHeaderOverridesBackoff() {
+        RetryPolicy policy = new RetryPolicy(2, 100, 1000, 10000, 0);
+        assertEquals(3000, policy.retryDelay(0, response(503, "3")));
+        assertTrue(policy.retryDelay(0, response(503, "Wed, 21 Oct 2015 07:28:00 GMT")) < 100);
+        assertTrue(policy.retryDelay(0, null) < 100);
+    }
+
+    @Test
+    public void hedgeNeedsEnoughSamples() {
+        LatencyTracker latencies = new LatencyTracker(64);
+        RetryPolicy policy = new RetryPolicy(2, 100, 1000, 10000, 90);
+        for (int i = 1; i < RetryPolicy.HEDGE_MIN_SAMPLES; i++) latencies.record(i * 10);
+        assertEquals(-1, policy.hedgeDelay(latencies));
+        for (int i = RetryPolicy.HEDGE_MIN_SAMPLES; i <= 10; i++) latencies.record(i * 10);
+        assertEquals(90, policy.hedgeDelay(latencies));
+    }
+
+    @Test
+    public void hedgeIsDisabledWithoutPercentileOrRetries() {
+        LatencyTracker latencies = new LatencyTracker(64);
+        for (int i = 0; i < 10; i++) latencies.record(100);
+        assertEquals(-1, new RetryPolicy(2, 100, 1000, 10000, 0).hedgeDelay(latencies));
+        assertEquals(-1, new RetryPolicy(0, 100, 1000, 10000, 90).hedgeDelay(latencies));
+    }
+}
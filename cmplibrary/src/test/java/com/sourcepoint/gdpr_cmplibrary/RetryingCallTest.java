@@ -0,0 +1,204 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class RetryingCallTest {
+
+    private static final String NO_MESSAGE_RESPONSE = "{\"uuid\":\"foo-uuid\",\"meta\":\"{}\",\"userConsent\":{\"acceptedVendors\":[],\"acceptedCategories\":[],\"specialFeatures\":[],\"legIntCategories\":[],\"euconsent\":\"\",\"TCData\":{},\"grants\":{}}}";
+
+    @Mock
+    ConnectivityManager connectivityManagerMock;
+
+    @Mock
+    NetworkInfo networkInfoMock;
+
+    private MockWebServer server;
+
+    // okhttp's own silent retry on connection failures is off so only the policy retries
+    private final OkHttpClient httpClient = new OkHttpClient.Builder().retryOnConnectionFailure(false).build();
+
+    private SourcePointClient client(RetryPolicy policy) {
+        SourcePointClientConfig config = new SourcePointClientConfig(new PropertyConfig(22, 1234, "mobile.demo", "1234"), false, false, "{}", null);
+        SourcePointClient client = new SourcePointClient(httpClient, config, connectivityManagerMock);
+        client.baseUrl = server.url("/").toString();
+        client.retryPolicy = policy;
+        return client;
+    }
+
+    private GDPRConsentLib.OnLoadComplete getMessage(RetryPolicy policy) throws ConsentLibException {
+        GDPRConsentLib.OnLoadComplete callback = mock(GDPRConsentLib.OnLoadComplete.class);
+        client(policy).getMessage(false, "uuid", "{}", "", callback);
+        return callback;
+    }
+
+    private GDPRConsentLib.OnLoadComplete sendConsent(RetryPolicy policy) throws Exception {
+        GDPRConsentLib.OnLoadComplete callback = mock(GDPRConsentLib.OnLoadComplete.class);
+        client(policy).sendConsent(new JSONObject().put("uuid", "foo-uuid"), callback);
+        return callback;
+    }
+
+    private static String requestUUIDOf(RecordedRequest request) throws Exception {
+        return new JSONObject(request.getBody().readUtf8()).getString("requestUUID");
+    }
+
+    private static MockResponse ok() {
+        return new MockResponse().setBody(NO_MESSAGE_RESPONSE);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        server = new MockWebServer();
+        server.start();
+        doReturn(networkInfoMock).when(connectivityManagerMock).getActiveNetworkInfo();
+        doReturn(true).when(networkInfoMock).isConnectedOrConnecting();
+        RetryPolicy.messageLatencies.clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+        RetryPolicy.messageLatencies.clear();
+    }
+
+    @Test
+    public void retriesRetryableStatus() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setResponseCode(429));
+        server.enqueue(ok());
+
+        GDPRConsentLib.OnLoadComplete callback = getMessage(new RetryPolicy(2, 10, 50, 5000, 0));
+
+        verify(callback, timeout(5000)).onSuccess(any(ConsentResponse.class));
+        verify(callback, never()).onFailure(any(ConsentLibException.class));
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void retriesDroppedConnections() throws Exception {
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+        server.enqueue(ok());
+
+        GDPRConsentLib.OnLoadComplete callback = getMessage(new RetryPolicy(2, 10, 50, 5000, 0));
+
+        verify(callback, timeout(5000)).onSuccess(any(ConsentResponse.class));
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void doesNotRetryClientErrors() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(400));
+        server.enqueue(ok());
+
+        GDPRConsentLib.OnLoadComplete callback = getMessage(new RetryPolicy(2, 10, 50, 5000, 0));
+
+        verify(callback, timeout(5000)).onFailure(any(ConsentLibException.class));
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void doesNotRetryConsentsTheServerMayHaveStored() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(500));
+        server.enqueue(ok());
+
+        GDPRConsentLib.OnLoadComplete callback = sendConsent(new RetryPolicy(2, 10, 50, 5000, 0));
+
+        verify(callback, timeout(5000)).onFailure(any(ConsentLibException.class));
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void retriesConsentsTurnedAwayWithRetryAfter() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "0"));
+        server.enqueue(ok());
+
+        GDPRConsentLib.OnLoadComplete callback = sendConsent(new RetryPolicy(2, 10, 50, 5000, 0));
+
+        verify(callback, timeout(5000)).onSuccess(any());
+        assertEquals(2, server.getRequestCount());
+        assertEquals(requestUUIDOf(server.takeRequest()), requestUUIDOf(server.takeRequest()));
+    }
+
+    @Test
+    public void givesUpAfterMaxRetries() throws Exception {
+        for (int i = 0; i < 4; i++) server.enqueue(new MockResponse().setResponseCode(500));
+
+        GDPRConsentLib.OnLoadComplete callback = getMessage(new RetryPolicy(2, 10, 50, 5000, 0));
+
+        verify(callback, timeout(5000)).onFailure(any(ConsentLibException.class));
+        verify(callback, never()).onSuccess(any());
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void noRetriesByDefault() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(ok());
+
+        GDPRConsentLib.OnLoadComplete callback = getMessage(RetryPolicy.NO_RETRIES);
+
+        verify(callback, timeout(5000)).onFailure(any(ConsentLibException.class));
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void retriesStayWithinTheBudget() throws Exception {
+        // the server asks for a retry in 1s, past the 300ms budget
+        server.enqueue(new MockResponse().setResponseCode(503).setHeader("Retry-After", "1"));
+        server.enqueue(ok());
+
+        GDPRConsentLib.OnLoadComplete callback = getMessage(new RetryPolicy(2, 10, 50, 300, 0));
+
+        verify(callback, timeout(5000)).onFailure(any(ConsentLibException.class));
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void hedgesSlowMessageRequests() throws Exception {
+        for (int i = 0; i < RetryPolicy.HEDGE_MIN_SAMPLES; i++) RetryPolicy.messageLatencies.record(50);
+        // the first request never gets an answer, only the hedge can complete the call
+        server.enqueue(ok().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+        server.enqueue(ok());
+
+        GDPRConsentLib.OnLoadComplete callback = getMessage(new RetryPolicy(2, 10, 50, 10000, 95));
+
+        verify(callback, timeout(5000)).onSuccess(any(ConsentResponse.class));
+        assertEquals(2, server.getRequestCount());
+        verify(callback, never()).onFailure(any(ConsentLibException.class));
+    }
+
+    @Test
+    public void recordsMessageLatencies() throws Exception {
+        server.enqueue(ok());
+
+        GDPRConsentLib.OnLoadComplete callback = getMessage(new RetryPolicy(2, 10, 50, 5000, 0));
+
+        verify(callback, timeout(5000)).onSuccess(any(ConsentResponse.class));
+        assertEquals(1, RetryPolicy.messageLatencies.size());
+    }
+}
@@ -0,0 +1,190 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class SingleFlightTest {
+
+    private static final String NO_MESSAGE_RESPONSE = "{\"uuid\":\"foo-uuid\",\"meta\":\"{}\",\"userConsent\":{\"acceptedVendors\":[],\"acceptedCategories\":[],\"specialFeatures\":[],\"legIntCategories\":[],\"euconsent\":\"\",\"TCData\":{},\"grants\":{}}}";
+
+    @Mock
+    ConnectivityManager connectivityManagerMock;
+
+    @Mock
+    NetworkInfo networkInfoMock;
+
+    private MockWebServer server;
+
+    private final OkHttpClient httpClient = new OkHttpClient();
+
+    // every client has its own random requestUUID, which must not keep identical requests apart
+    private SourcePointClient client() {
+        SourcePointClientConfig config = new SourcePointClientConfig(new PropertyConfig(22, 1234, "mobile.demo", "1234"), false, false, "{}", null);
+        SourcePointClient client = new SourcePointClient(httpClient, config, connectivityManagerMock);
+        client.baseUrl = server.url("/").toString();
+        return client;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        server = new MockWebServer();
+        server.start();
+        doReturn(networkInfoMock).when(connectivityManagerMock).getActiveNetworkInfo();
+        doReturn(true).when(networkInfoMock).isConnectedOrConnecting();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void firstCallerMakesTheRequest() {
+        GDPRConsentLib.OnLoadComplete first = mock(GDPRConsentLib.OnLoadComplete.class);
+        GDPRConsentLib.OnLoadComplete second = mock(GDPRConsentLib.OnLoadComplete.class);
+        assertTrue(SingleFlight.join("key", first));
+        assertFalse(SingleFlight.join("key", second));
+        assertTrue(SingleFlight.join("other-key", second));
+
+        Object result = new Object();
+        SingleFlight.completion("key").onSuccess(result);
+        SingleFlight.completion("other-key").onSuccess(result);
+
+        verify(first).onSuccess(result);
+        verify(second, times(2)).onSuccess(result);
+        assertTrue(SingleFlight.join("key", first));
+        SingleFlight.completion("key").onSuccess(result);
+    }
+
+    @Test
+    public void failuresAreFannedOut() {
+        GDPRConsentLib.OnLoadComplete first = mock(GDPRConsentLib.OnLoadComplete.class);
+        GDPRConsentLib.OnLoadComplete second = mock(GDPRConsentLib.OnLoadComplete.class);
+        SingleFlight.join("key", first);
+        SingleFlight.join("key", second);
+
+        ConsentLibException error = new ConsentLibException("network down");
+        SingleFlight.completion("key").onFailure(error);
+
+        verify(first).onFailure(error);
+        verify(second).onFailure(error);
+    }
+
+    @Test
+    public void aThrowingCallbackDoesNotStopTheOthers() {
+        GDPRConsentLib.OnLoadComplete first = mock(GDPRConsentLib.OnLoadComplete.class);
+        GDPRConsentLib.OnLoadComplete second = mock(GDPRConsentLib.OnLoadComplete.class);
+        doThrow(new IllegalStateException()).when(first).onSuccess(any());
+        SingleFlight.join("key", first);
+        SingleFlight.join("key", second);
+
+        SingleFlight.completion("key").onSuccess("result");
+
+        verify(second).onSuccess("result");
+    }
+
+    @Test
+    public void concurrentIdenticalMessageRequestsShareOneCall() throws Exception {
+        server.enqueue(new MockResponse().setBody(NO_MESSAGE_RESPONSE).setHeadersDelay(300, TimeUnit.MILLISECONDS));
+        server.enqueue(new MockResponse().setBody(NO_MESSAGE_RESPONSE));
+        GDPRConsentLib.OnLoadComplete first = mock(GDPRConsentLib.OnLoadComplete.class);
+        GDPRConsentLib.OnLoadComplete second = mock(GDPRConsentLib.OnLoadComplete.class);
+        GDPRConsentLib.OnLoadComplete third = mock(GDPRConsentLib.OnLoadComplete.class);
+
+        client().getMessage(false, "uuid", "{}", "", first);
+        client().getMessage(false, "uuid", "{}", "", second);
+        client().getMessage(false, "other-uuid", "{}", "", third);
+
+        ArgumentCaptor<Object> firstResult = ArgumentCaptor.forClass(Object.class);
+        ArgumentCaptor<Object> secondResult = ArgumentCaptor.forClass(Object.class);
+        ArgumentCaptor<Object> thirdResult = ArgumentCaptor.forClass(Object.class);
+        verify(first, timeout(5000)).onSuccess(firstResult.capture());
+        verify(second, timeout(5000)).onSuccess(secondResult.capture());
+        verify(third, timeout(5000)).onSuccess(thirdResult.capture());
+        assertSame(firstResult.getValue(), secondResult.getValue());
+        assertNotSame(firstResult.getValue(), thirdResult.getValue());
+        assertEquals(2, server.getRequestCount());
+
+        // only one of the callers that shared the response gets to persist it
+        assertTrue(((ConsentResponse) firstResult.getValue()).claimStore());
+        assertFalse(((ConsentResponse) secondResult.getValue()).claimStore());
+    }
+
+    @Test
+    public void concurrentIdenticalConsentRequestsShareOneCall() throws Exception {
+        server.enqueue(new MockResponse().setBody(NO_MESSAGE_RESPONSE).setHeadersDelay(300, TimeUnit.MILLISECONDS));
+        GDPRConsentLib.OnLoadComplete first = mock(GDPRConsentLib.OnLoadComplete.class);
+        GDPRConsentLib.OnLoadComplete second = mock(GDPRConsentLib.OnLoadComplete.class);
+
+        client().sendConsent(new JSONObject().put("uuid", "uuid").put("actionType", 11), first);
+        client().sendConsent(new JSONObject().put("uuid", "uuid").put("actionType", 11), second);
+
+        verify(first, timeout(5000)).onSuccess(any(ConsentResponse.class));
+        verify(second, timeout(5000)).onSuccess(any(ConsentResponse.class));
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void failingToStartTheCallEndsTheFlight() throws Exception {
+        SourcePointClient failing = client();
+        failing.transport = request -> {
+            throw new IllegalStateException("dispatcher shut down");
+        };
+        GDPRConsentLib.OnLoadComplete first = mock(GDPRConsentLib.OnLoadComplete.class);
+        failing.sendConsent(new JSONObject().put("uuid", "uuid").put("actionType", 11), first);
+        verify(first).onFailure(any(ConsentLibException.class));
+
+        // the key was dropped, the next identical request makes its own call
+        server.enqueue(new MockResponse().setBody(NO_MESSAGE_RESPONSE));
+        GDPRConsentLib.OnLoadComplete second = mock(GDPRConsentLib.OnLoadComplete.class);
+        client().sendConsent(new JSONObject().put("uuid", "uuid").put("actionType", 11), second);
+        verify(second, timeout(5000)).onSuccess(any(ConsentResponse.class));
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void sequentialRequestsAreNotCoalesced() throws Exception {
+        server.enqueue(new MockResponse().setBody(NO_MESSAGE_RESPONSE));
+        server.enqueue(new MockResponse().setBody(NO_MESSAGE_RESPONSE));
+        GDPRConsentLib.OnLoadComplete first = mock(GDPRConsentLib.OnLoadComplete.class);
+        GDPRConsentLib.OnLoadComplete second = mock(GDPRConsentLib.OnLoadComplete.class);
+
+        client().getMessage(false, "uuid", "{}", "", first);
+        verify(first, timeout(5000)).onSuccess(any(ConsentResponse.class));
+        client().getMessage(false, "uuid", "{}", "", second);
+        verify(second, timeout(5000)).onSuccess(any(ConsentResponse.class));
+
+        assertEquals(2, server.getRequestCount());
+    }
+}
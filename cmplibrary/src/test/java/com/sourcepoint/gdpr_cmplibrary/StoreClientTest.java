@@ -12,8 +12,13 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static org.junit.Assert.*;
 
@@ -114,7 +119,9 @@ public class StoreClientTest {
 
     @Test
     public void clearInternalData() {
+        storeClient.setPendingConsentActions("[]");
         storeClient.clearInternalData();
+        assertFalse(sharedPreferences.contains(StoreClient.PENDING_CONSENT_ACTIONS_KEY));
         assertFalse(sharedPreferences.contains(StoreClient.CONSENT_UUID_KEY));
         assertFalse(sharedPreferences.contains(StoreClient.META_DATA_KEY));
         assertFalse(sharedPreferences.contains(StoreClient.EU_CONSENT_KEY));
@@ -205,4 +212,279 @@ public class StoreClientTest {
         assertEquals(clientTCData.get(keyForStringVlaue).getClass(), String.class);
         assertEquals(clientTCData.get(keyForIntValue).getClass(), Integer.class);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void transactionWritesEveryValueTogether() throws Exception {
+        editor.clear().putString("IABTCF_stale", "stale").commit();
+        GDPRUserConsent userConsent = new GDPRUserConsent();
+        HashMap<String, Object> tcData = new HashMap<>();
+        tcData.put("IABTCF_foo", "foo");
+        tcData.put("IABTCF_number", 4);
+
+        storeClient.edit()
+                .setConsentUuid("consentUUID")
+                .setMetaData("metaData")
+                .setTCData(tcData)
+                .setConsentString("euconsent")
+                .setUserConsents(userConsent)
+                .apply();
+
+        assertEquals("consentUUID", storeClient.getConsentUUID());
+        assertEquals("metaData", storeClient.getMetaData());
+        assertEquals("euconsent", storeClient.getConsentString());
+        assertEquals(userConsent.toJsonObject().toString(), storeClient.getUserConsent().toJsonObject().toString());
+        assertEquals("foo", sharedPreferences.getString("IABTCF_foo", null));
+        assertEquals(4, sharedPreferences.getInt("IABTCF_number", 0));
+        assertFalse(sharedPreferences.contains("IABTCF_stale"));
+    }
+
+    @Test
+    public void nothingIsWrittenUntilTheTransactionIsFinished() {
+        editor.clear().commit();
+        StoreClient.Transaction transaction = storeClient.edit().setConsentUuid("consentUUID");
+        assertFalse(sharedPreferences.contains(StoreClient.CONSENT_UUID_KEY));
+        assertTrue(transaction.commit());
+        assertTrue(sharedPreferences.contains(StoreClient.CONSENT_UUID_KEY));
+    }
+
+    @Test
+    public void transactionWritesValuesStagedBeforeIt() {
+        editor.clear().commit();
+        storeClient.setCmpSdkID();
+        storeClient.edit().setConsentUuid("consentUUID").apply();
+        storeClient.flush();
+        assertEquals(6, sharedPreferences.getInt("IABTCF_CmpSdkID", 0));
+    }
+
+    @Test
+    public void tcDataIsReadAndClearedWithoutScanningPreferences() {
+        editor.clear().putString("host.app.key", "foo").commit();
+        HashMap<String, Object> tcData = new HashMap<>();
+        tcData.put("IABTCF_foo", "foo");
+        tcData.put("IABTCF_number", 4);
+        storeClient.setTCData(tcData);
+
+        CountingPreferences prefs = new CountingPreferences(sharedPreferences);
+        StoreClient client = new StoreClient(prefs);
+        assertEquals(tcData, client.getTCData());
+        assertEquals(Integer.class, client.getTCData().get("IABTCF_number").getClass());
+        client.clearConsentData();
+
+        assertEquals(0, prefs.getAlls);
+        assertTrue(client.getTCData().isEmpty());
+        assertFalse(sharedPreferences.contains("IABTCF_foo"));
+        assertFalse(sharedPreferences.contains("IABTCF_number"));
+        assertFalse(sharedPreferences.contains(StoreClient.TC_DATA_KEYS_KEY));
+        assertEquals("foo", sharedPreferences.getString("host.app.key", null));
+    }
+
+    @Test
+    public void untrackedTCDataIsIndexedByASingleScan() {
+        editor.clear().putString("IABTCF_legacy", "legacy").putInt("IABTCF_number", 4).commit();
+
+        CountingPreferences prefs = new CountingPreferences(sharedPreferences);
+        StoreClient client = new StoreClient(prefs);
+        assertEquals("legacy", client.getTCData().get("IABTCF_legacy"));
+        assertEquals(4, client.getTCData().get("IABTCF_number"));
+        assertEquals(1, prefs.getAlls);
+        // reading doesn't write, the index is stored with the next write
+        assertFalse(sharedPreferences.contains(StoreClient.TC_DATA_KEYS_KEY));
+        client.setCmpSdkID();
+        client.setConsentUuid("consentUUID");
+        assertTrue(sharedPreferences.contains(StoreClient.TC_DATA_KEYS_KEY));
+
+        CountingPreferences reopenedPrefs = new CountingPreferences(sharedPreferences);
+        new StoreClient(reopenedPrefs).clearConsentData();
+        assertEquals(0, reopenedPrefs.getAlls);
+        assertFalse(sharedPreferences.contains("IABTCF_legacy"));
+        assertFalse(sharedPreferences.contains("IABTCF_number"));
+    }
+
+    @Test
+    public void stagedTCDataIsCachedAndTracked() {
+        editor.clear().commit();
+        storeClient.setCmpSdkID();
+        storeClient.setCmpSdkVersion();
+        assertEquals(6, storeClient.getTCData().get("IABTCF_CmpSdkID"));
+
+        storeClient.setConsentUuid("consentUUID");
+        assertEquals(2, new StoreClient(sharedPreferences).getTCData().size());
+    }
+
+    @Test
+    public void onlyChangedTCDataKeysAreWritten() {
+        editor.clear().commit();
+        HashMap<String, Object> tcData = new HashMap<>();
+        tcData.put("IABTCF_same", "same");
+        tcData.put("IABTCF_changed", 1);
+        tcData.put("IABTCF_removed", "removed");
+        storeClient.setTCData(tcData);
+
+        List<String> changedKeys = new ArrayList<>();
+        SharedPreferences.OnSharedPreferenceChangeListener listener = (prefs, key) -> changedKeys.add(key);
+        sharedPreferences.registerOnSharedPreferenceChangeListener(listener);
+
+        storeClient.setTCData(new HashMap<>(tcData));
+        assertTrue(changedKeys.isEmpty());
+
+        HashMap<String, Object> newTCData = new HashMap<>();
+        newTCData.put("IABTCF_same", "same");
+        newTCData.put("IABTCF_changed", 2);
+        newTCData.put("IABTCF_added", "added");
+        TCDataDelta delta = storeClient.edit().setTCData(newTCData).getTCDataDelta();
+        assertTrue(storeClient.edit().commit());
+        sharedPreferences.unregisterOnSharedPreferenceChangeListener(listener);
+
+        assertEquals(Collections.singleton("IABTCF_added"), delta.added);
+        assertEquals(Collections.singleton("IABTCF_changed"), delta.changed);
+        assertEquals(Collections.singleton("IABTCF_removed"), delta.removed);
+        assertFalse(changedKeys.contains("IABTCF_same"));
+        assertTrue(changedKeys.containsAll(Arrays.asList("IABTCF_added", "IABTCF_changed", "IABTCF_removed")));
+        assertEquals(newTCData, new StoreClient(sharedPreferences).getTCData());
+        assertEquals(3, storeClient.getTCDataWrites());
+        assertEquals(2, storeClient.getTCDataChanges());
+    }
+
+    @Test
+    public void unchangedTCDataHasAnEmptyDelta() {
+        editor.clear().commit();
+        HashMap<String, Object> tcData = new HashMap<>();
+        tcData.put("IABTCF_foo", "foo");
+        assertFalse(storeClient.edit().setTCData(tcData).getTCDataDelta().isEmpty());
+        assertTrue(storeClient.edit().setTCData(tcData).getTCDataDelta().isEmpty());
+        assertEquals("unchanged", storeClient.edit().setTCData(tcData).getTCDataDelta().toString());
+    }
+
+    @Test
+    public void tcDataIsDiffedAgainstWritesOfOtherClients() {
+        editor.clear().commit();
+        StoreClient other = new StoreClient(sharedPreferences);
+        HashMap<String, Object> tcData = new HashMap<>();
+        tcData.put("IABTCF_foo", "foo");
+        storeClient.setTCData(tcData);
+
+        HashMap<String, Object> otherTCData = new HashMap<>();
+        otherTCData.put("IABTCF_foo", "bar");
+        other.setTCData(otherTCData);
+
+        assertEquals("bar", storeClient.getTCData().get("IABTCF_foo"));
+        StoreClient.Transaction transaction = storeClient.edit().setTCData(tcData);
+        assertFalse(transaction.getTCDataDelta().isEmpty());
+        transaction.commit();
+        assertEquals("foo", sharedPreferences.getString("IABTCF_foo", null));
+    }
+
+    @Test
+    public void storageKeepsTheLibValuesOutOfThePreferences() throws Exception {
+        editor.clear().commit();
+        ConsentStorage storage = new InMemoryConsentStorage();
+        StoreClient client = new StoreClient(sharedPreferences, null, 0, storage);
+        HashMap<String, Object> tcData = new HashMap<>();
+        tcData.put("IABTCF_foo", "foo");
+        client.edit().setConsentUuid("uuid").setMetaData("{}").setTCData(tcData).setUserConsents(new GDPRUserConsent()).commit();
+        client.setAuthId("authId");
+
+        assertEquals("uuid", storage.getString(StoreClient.CONSENT_UUID_KEY, null));
+        assertEquals("authId", client.getAuthId());
+        assertTrue(storage.contains(StoreClient.USER_CONSENT_KEY));
+        assertFalse(sharedPreferences.contains(StoreClient.CONSENT_UUID_KEY));
+        assertFalse(sharedPreferences.contains(StoreClient.USER_CONSENT_KEY));
+        assertEquals("foo", sharedPreferences.getString("IABTCF_foo", null));
+
+        client.clearInternalData();
+        assertFalse(storage.contains(StoreClient.CONSENT_UUID_KEY));
+        assertFalse(storage.contains(StoreClient.AUTH_ID_KEY));
+    }
+
+    @Test
+    public void valuesInThePreferencesAreMovedToTheStorage() throws Exception {
+        editor.clear().commit();
+        storeClient.setConsentUuid("uuid");
+        storeClient.setMetaData("{\"foo\":1}");
+        ConsentStorage storage = new InMemoryConsentStorage();
+        storage.edit().putString(StoreClient.META_DATA_KEY, "{\"newer\":1}").commit();
+
+        StoreClient client = new StoreClient(sharedPreferences, null, 0, storage);
+        assertEquals("uuid", client.getConsentUUID());
+        // a value already in the storage is newer than the one left in the preferences
+        assertEquals("{\"newer\":1}", client.getMetaData());
+        // reading doesn't write
+        assertTrue(sharedPreferences.contains(StoreClient.CONSENT_UUID_KEY));
+
+        client.migrate();
+        assertFalse(sharedPreferences.contains(StoreClient.CONSENT_UUID_KEY));
+        assertFalse(sharedPreferences.contains(StoreClient.META_DATA_KEY));
+        assertEquals("uuid", client.getConsentUUID());
+        assertEquals("{\"newer\":1}", client.getMetaData());
+    }
+
+    @Test
+    public void transactionStoresAResponseInOneWrite() throws Exception {
+        ConsentResponse response = ConsentResponse.parse(FakeWrapperApi.consentResponse("foo-uuid", 300, 10));
+        GDPRUserConsent userConsent = response.userConsent;
+
+        CountingPreferences setterPrefs = new CountingPreferences(sharedPreferences);
+        StoreClient setterClient = new StoreClient(setterPrefs);
+        setterClient.setConsentUuid(response.uuid);
+        setterClient.setMetaData(response.meta);
+        setterClient.setTCData(userConsent.TCData);
+        setterClient.setConsentString(userConsent.consentString);
+        setterClient.setUserConsents(userConsent);
+        assertEquals(5, setterPrefs.commits);
+
+        CountingPreferences transactionPrefs = new CountingPreferences(sharedPreferences);
+        StoreClient transactionClient = new StoreClient(transactionPrefs);
+        transactionClient.edit()
+                .setConsentUuid(response.uuid)
+                .setMetaData(response.meta)
+                .setTCData(userConsent.TCData)
+                .setConsentString(userConsent.consentString)
+                .setUserConsents(userConsent)
+                .apply();
+        assertEquals(0, transactionPrefs.commits);
+        assertEquals(1, transactionPrefs.applies);
+
+        transactionClient.flush();
+        assertEquals("foo-uuid", transactionClient.getConsentUUID());
+        assertEquals(userConsent.consentString, transactionClient.getConsentString());
+        assertEquals(userConsent.acceptedVendors, transactionClient.getUserConsent().acceptedVendors);
+    }
+
+    // Counts the full scans of the wrapped SharedPreferences and the writes going through its editors
+    private static class CountingPreferences implements SharedPreferences {
+        private final SharedPreferences prefs;
+        int commits, applies, getAlls;
+
+        CountingPreferences(SharedPreferences prefs) {
+            this.prefs = prefs;
+        }
+
+        @Override public Map<String, ?> getAll() { getAlls++; return prefs.getAll(); }
+        @Override public String getString(String key, String defValue) { return prefs.getString(key, defValue); }
+        @Override public Set<String> getStringSet(String key, Set<String> defValues) { return prefs.getStringSet(key, defValues); }
+        @Override public int getInt(String key, int defValue) { return prefs.getInt(key, defValue); }
+        @Override public long getLong(String key, long defValue) { return prefs.getLong(key, defValue); }
+        @Override public float getFloat(String key, float defValue) { return prefs.getFloat(key, defValue); }
+        @Override public boolean getBoolean(String key, boolean defValue) { return prefs.getBoolean(key, defValue); }
+        @Override public boolean contains(String key) { return prefs.contains(key); }
+        @Override public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) { prefs.registerOnSharedPreferenceChangeListener(listener); }
+        @Override public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) { prefs.unregisterOnSharedPreferenceChangeListener(listener); }
+
+        @Override
+        public Editor edit() {
+            Editor editor = prefs.edit();
+            return new Editor() {
+                @Override public Editor putString(String key, String value) { editor.putString(key, value); return this; }
+                @Override public Editor putStringSet(String key, Set<String> values) { editor.putStringSet(key, values); return this; }
+                @Override public Editor putInt(String key, int value) { editor.putInt(key, value); return this; }
+                @Override public Editor putLong(String key, long value) { editor.putLong(key, value); return this; }
+                @Override public Editor putFloat(String key, float value) { editor.putFloat(key, value); return this; }
+                @Override public Editor putBoolean(String key, boolean value) { editor.putBoolean(key, value); return this; }
+                @Override public Editor remove(String key) { editor.remove(key); return this; }
+                @Override public Editor clear() { editor.clear(); return this; }
+                @Override public boolean commit() { commits++; return editor.commit(); }
+                @Override public void apply() { applies++; editor.apply(); }
+            };
+        }
+    }
+}
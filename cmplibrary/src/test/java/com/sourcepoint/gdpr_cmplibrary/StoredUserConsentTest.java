@@ -0,0 +1,51 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class StoredUserConsentTest {
+
+    @Mock
+    StoreClient storeClientMock;
+
+    private final GDPRUserConsent stored = new GDPRUserConsent();
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        stored.uuid = "stored-uuid";
+        doReturn(stored).when(storeClientMock).getUserConsent();
+    }
+
+    @Test
+    public void decodesOnFirstGetOnly() throws Exception {
+        StoredUserConsent storedUserConsent = new StoredUserConsent(storeClientMock);
+        verifyZeroInteractions(storeClientMock);
+
+        assertSame(stored, storedUserConsent.get());
+        assertSame(stored, storedUserConsent.get());
+        verify(storeClientMock, times(1)).getUserConsent();
+    }
+
+    @Test
+    public void undecodableConsentIsReplacedByAnEmptyOne() throws Exception {
+        doThrow(new ConsentLibException("corrupt")).when(storeClientMock).getUserConsent();
+        GDPRUserConsent userConsent = new StoredUserConsent(storeClientMock).get();
+        assertNotNull(userConsent);
+        assertTrue(userConsent.acceptedVendors.isEmpty());
+    }
+}
@@ -0,0 +1,223 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class TCStringTest {
+
+    // Writes TCF v2 core segments field by field, as laid out in the spec
+    static class Encoder {
+        private final StringBuilder bits = new StringBuilder();
+
+        Encoder number(long value, int length) {
+            for (int b = length - 1; b >= 0; b--) bits.append((value >>> b) & 1);
+            return this;
+        }
+
+        Encoder bool(boolean value) {
+            return number(value ? 1 : 0, 1);
+        }
+
+        Encoder letters(String code) {
+            return number(code.charAt(0) - 'A', 6).number(code.charAt(1) - 'A', 6);
+        }
+
+        Encoder ids(List<Integer> ids, int length) {
+            for (int id = 1; id <= length; id++) bool(ids.contains(id));
+            return this;
+        }
+
+        Encoder header(int version, List<Integer> specialFeatures, List<Integer> purposes, List<Integer> legitimateInterests) {
+            return number(version, 6)
+                    .number(15100000000L, 36)
+                    .number(15900000000L, 36)
+                    .number(6, 12)
+                    .number(2, 12)
+                    .number(3, 6)
+                    .letters("EN")
+                    .number(45, 12)
+                    .number(2, 6)
+                    .bool(true)
+                    .bool(false)
+                    .ids(specialFeatures, 12)
+                    .ids(purposes, 24)
+                    .ids(legitimateInterests, 24)
+                    .bool(true)
+                    .letters("FR");
+        }
+
+        Encoder bitfield(int maxVendorId, List<Integer> vendors) {
+            return number(maxVendorId, 16).bool(false).ids(vendors, maxVendorId);
+        }
+
+        // ranges are {start, end} pairs, a single vendor has start == end
+        Encoder ranges(int maxVendorId, int[]... ranges) {
+            number(maxVendorId, 16).bool(true).number(ranges.length, 12);
+            for (int[] range : ranges) {
+                bool(range[0] != range[1]).number(range[0], 16);
+                if (range[0] != range[1]) number(range[1], 16);
+            }
+            return this;
+        }
+
+        String encode() {
+            String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+            while (bits.length() % 6 != 0) bits.append('0');
+            StringBuilder encoded = new StringBuilder();
+            for (int i = 0; i < bits.length(); i += 6) encoded.append(alphabet.charAt(Integer.parseInt(bits.substring(i, i + 6), 2)));
+            return encoded.toString();
+        }
+    }
+
+    static String bitfieldString() {
+        return new Encoder()
+                .header(2, Arrays.asList(1, 12), Arrays.asList(1, 3, 24), Arrays.asList(2, 7))
+                .bitfield(70, Arrays.asList(1, 63, 64, 70))
+                .bitfield(10, Arrays.asList(2, 10))
+                .number(0, 12)
+                .encode();
+    }
+
+    @Test
+    public void header() throws Exception {
+        TCString tcString = TCString.parse(bitfieldString());
+        assertEquals(2, tcString.getVersion());
+        assertEquals(1510000000000L, tcString.getCreated());
+        assertEquals(1590000000000L, tcString.getLastUpdated());
+        assertEquals(6, tcString.getCmpId());
+        assertEquals(2, tcString.getCmpVersion());
+        assertEquals(3, tcString.getConsentScreen());
+        assertEquals("EN", tcString.getConsentLanguage());
+        assertEquals(45, tcString.getVendorListVersion());
+        assertEquals(2, tcString.getPolicyVersion());
+        assertTrue(tcString.isServiceSpecific());
+        assertFalse(tcString.useNonStandardStacks());
+        assertTrue(tcString.isPurposeOneTreatment());
+        assertEquals("FR", tcString.getPublisherCC());
+    }
+
+    @Test
+    public void purposesAndSpecialFeatures() throws Exception {
+        TCString tcString = TCString.parse(bitfieldString());
+        assertTrue(tcString.isSpecialFeatureOptedIn(1));
+        assertFalse(tcString.isSpecialFeatureOptedIn(2));
+        assertTrue(tcString.isSpecialFeatureOptedIn(12));
+        assertTrue(tcString.isPurposeConsented(1));
+        assertFalse(tcString.isPurposeConsented(2));
+        assertTrue(tcString.isPurposeConsented(24));
+        assertTrue(tcString.isPurposeLegitimateInterest(7));
+        assertFalse(tcString.isPurposeLegitimateInterest(1));
+        assertFalse(tcString.isPurposeConsented(0));
+        assertFalse(tcString.isPurposeConsented(25));
+    }
+
+    @Test
+    public void bitfieldVendorSections() throws Exception {
+        TCString tcString = TCString.parse(bitfieldString());
+        assertEquals(70, tcString.getMaxVendorId());
+        for (int id : new int[]{1, 63, 64, 70}) assertTrue(tcString.isVendorConsented(id));
+        for (int id : new int[]{0, 2, 62, 65, 69, 71, 1000}) assertFalse(tcString.isVendorConsented(id));
+        assertTrue(tcString.isVendorLegitimateInterest(2));
+        assertTrue(tcString.isVendorLegitimateInterest(10));
+        assertFalse(tcString.isVendorLegitimateInterest(1));
+    }
+
+    @Test
+    public void rangeVendorSections() throws Exception {
+        TCString tcString = TCString.parse(new Encoder()
+                .header(2, Arrays.<Integer>asList(), Arrays.asList(1), Arrays.<Integer>asList())
+                .ranges(800, new int[]{5, 5}, new int[]{100, 200}, new int[]{800, 800})
+                .ranges(300, new int[]{1, 3})
+                .number(0, 12)
+                .encode());
+        assertEquals(800, tcString.getMaxVendorId());
+        for (int id : new int[]{5, 100, 150, 200, 800}) assertTrue(tcString.isVendorConsented(id));
+        for (int id : new int[]{4, 6, 99, 201, 799}) assertFalse(tcString.isVendorConsented(id));
+        assertTrue(tcString.isVendorLegitimateInterest(3));
+        assertFalse(tcString.isVendorLegitimateInterest(4));
+    }
+
+    @Test
+    public void onlyTheCoreSegmentIsRead() throws Exception {
+        TCString tcString = TCString.parse(bitfieldString() + ".IFoEUQQgAIQwgIwQABAEAAAAOIAACAIAAAAQAIAgEAACEAAAAAgAQBAAAAAAAGBAAgAAAAAAAFAAECAAAgAAQARAEQAAAAAJAAIAAgAAAYQEAAAQmAgBC3ZAYzUw");
+        assertTrue(tcString.isVendorConsented(63));
+    }
+
+    @Test
+    public void invalidStringsAreRejected() {
+        assertRejected(null);
+        assertRejected("");
+        assertRejected("CO+invalid");
+        assertRejected(bitfieldString().substring(0, 30));
+        assertRejected(new Encoder().header(1, Arrays.<Integer>asList(), Arrays.<Integer>asList(), Arrays.<Integer>asList())
+                .bitfield(1, Arrays.asList(1)).encode());
+    }
+
+    private static void assertRejected(String consentString) {
+        try {
+            TCString.parse(consentString);
+            fail("decoded " + consentString);
+        } catch (ConsentLibException expected) { }
+    }
+
+    @Test
+    public void aTruncatedVendorSectionGrantsNothing() throws Exception {
+        String full = new Encoder()
+                .header(2, Arrays.<Integer>asList(), Arrays.asList(1), Arrays.<Integer>asList())
+                .bitfield(600, Arrays.asList(1, 600))
+                .encode();
+        TCString tcString = TCString.parse(full.substring(0, 60));
+        assertTrue(tcString.isPurposeConsented(1));
+        assertFalse(tcString.isVendorConsented(1));
+        assertFalse(tcString.isVendorLegitimateInterest(1));
+    }
+
+    @Test
+    public void userConsentDecodesItsConsentString() throws Exception {
+        GDPRUserConsent userConsent = new GDPRUserConsent();
+        assertNull(userConsent.getTCString());
+        userConsent.consentString = bitfieldString();
+        TCString tcString = userConsent.getTCString();
+        assertTrue(tcString.isVendorConsented(70));
+        assertTrue(tcString == userConsent.getTCString());
+        userConsent.consentString = "not a consent string";
+        assertNull(userConsent.getTCString());
+    }
+
+    @Test
+    public void bitfieldAndRangesDecodeTheSameVendors() throws Exception {
+        List<Integer> vendors = new ArrayList<>();
+        for (int id = 1; id <= 800; id++) if (id <= 300 || id >= 400) vendors.add(id);
+        String bitfield = new Encoder()
+                .header(2, Arrays.asList(1), Arrays.asList(1, 2, 3, 4), Arrays.asList(2, 7))
+                .bitfield(800, vendors)
+                .bitfield(800, vendors)
+                .number(0, 12)
+                .encode();
+        String ranges = new Encoder()
+                .header(2, Arrays.asList(1), Arrays.asList(1, 2, 3, 4), Arrays.asList(2, 7))
+                .ranges(800, new int[]{1, 300}, new int[]{400, 800})
+                .ranges(800, new int[]{1, 300}, new int[]{400, 800})
+                .number(0, 12)
+                .encode();
+        TCString fromBitfield = TCString.parse(bitfield), fromRanges = TCString.parse(ranges);
+        assertEquals(fromBitfield.getCmpId(), fromRanges.getCmpId());
+        for (int id = 1; id <= 801; id++) {
+            assertEquals(vendors.contains(id), fromBitfield.isVendorConsented(id));
+            assertEquals(vendors.contains(id), fromRanges.isVendorConsented(id));
+            assertEquals(vendors.contains(id), fromRanges.isVendorLegitimateInterest(id));
+        }
+    }
+}
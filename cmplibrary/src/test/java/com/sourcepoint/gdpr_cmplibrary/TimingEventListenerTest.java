@@ -0,0 +1,165 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.SocketPolicy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class TimingEventListenerTest {
+
+    private static final String NO_MESSAGE_RESPONSE = "{\"uuid\":\"foo-uuid\",\"meta\":\"{}\",\"userConsent\":{\"acceptedVendors\":[],\"acceptedCategories\":[],\"specialFeatures\":[],\"legIntCategories\":[],\"euconsent\":\"\",\"TCData\":{},\"grants\":{}}}";
+
+    @Mock
+    ConnectivityManager connectivityManagerMock;
+
+    @Mock
+    NetworkInfo networkInfoMock;
+
+    private MockWebServer server;
+
+    private final List<CallTimings> timings = new CopyOnWriteArrayList<>();
+
+    private SourcePointClient client(OkHttpClient httpClient) {
+        SourcePointClientConfig config = new SourcePointClientConfig(new PropertyConfig(22, 1234, "mobile.demo", "1234"), false, false, "{}", null);
+        SourcePointClient client = new SourcePointClient(httpClient, config, connectivityManagerMock);
+        client.baseUrl = server.url("/").toString();
+        client.onNetworkTimings = timings::add;
+        return client;
+    }
+
+    private CallTimings getMessage(SourcePointClient client, String consentUUID) throws Exception {
+        int before = timings.size();
+        GDPRConsentLib.OnLoadComplete callback = mock(GDPRConsentLib.OnLoadComplete.class);
+        client.getMessage(false, consentUUID, "{}", "", callback);
+        verify(callback, timeout(5000)).onSuccess(any(ConsentResponse.class));
+        // the call ends once the body has been consumed, right after onSuccess
+        for (int i = 0; i < 100 && timings.size() == before; i++) Thread.sleep(10);
+        return timings.get(timings.size() - 1);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        server = new MockWebServer();
+        server.start();
+        doReturn(networkInfoMock).when(connectivityManagerMock).getActiveNetworkInfo();
+        doReturn(true).when(networkInfoMock).isConnectedOrConnecting();
+        NetworkTimings.getInstance().reset();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void reportsPhasesOfANewConnection() throws Exception {
+        server.enqueue(new MockResponse().setBody(NO_MESSAGE_RESPONSE).setHeadersDelay(200, TimeUnit.MILLISECONDS));
+
+        CallTimings call = getMessage(client(new OkHttpClient()), "uuid");
+
+        assertFalse(call.reusedConnection);
+        assertTrue(call.connectMs >= 0);
+        assertEquals(-1, call.tlsMs);
+        assertTrue(call.requestMs >= 0);
+        assertTrue(call.ttfbMs >= 200);
+        assertTrue(call.bodyMs >= 0);
+        assertTrue(call.totalMs >= call.ttfbMs);
+        assertTrue(call.requestBytes > 0);
+        assertEquals(NO_MESSAGE_RESPONSE.length(), call.responseBytes);
+        assertTrue(call.url.endsWith("message-url?inApp=true"));
+        assertNull(call.error);
+    }
+
+    @Test
+    public void reusedConnectionsHaveNoConnectPhases() throws Exception {
+        server.enqueue(new MockResponse().setBody(NO_MESSAGE_RESPONSE));
+        server.enqueue(new MockResponse().setBody(NO_MESSAGE_RESPONSE));
+        OkHttpClient httpClient = new OkHttpClient();
+
+        getMessage(client(httpClient), "first");
+        CallTimings second = getMessage(client(httpClient), "second");
+
+        assertTrue(second.reusedConnection);
+        assertEquals(-1, second.dnsMs);
+        assertEquals(-1, second.connectMs);
+    }
+
+    @Test
+    public void failedCallsAreReportedButNotAggregated() throws Exception {
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+        GDPRConsentLib.OnLoadComplete callback = mock(GDPRConsentLib.OnLoadComplete.class);
+
+        client(new OkHttpClient.Builder().retryOnConnectionFailure(false).build()).getMessage(false, "failing", "{}", "", callback);
+
+        verify(callback, timeout(5000)).onFailure(any(ConsentLibException.class));
+        for (int i = 0; i < 100 && timings.isEmpty(); i++) Thread.sleep(10);
+        assertNotNull(timings.get(0).error);
+        assertEquals(0, NetworkTimings.getInstance().sampleCount(CallTimings.Phase.TOTAL));
+    }
+
+    @Test
+    public void callsAreAggregatedIntoPercentiles() throws Exception {
+        for (int i = 0; i < 3; i++) server.enqueue(new MockResponse().setBody(NO_MESSAGE_RESPONSE));
+        OkHttpClient httpClient = new OkHttpClient();
+
+        for (int i = 0; i < 3; i++) getMessage(client(httpClient), "uuid-" + i);
+
+        NetworkTimings networkTimings = NetworkTimings.getInstance();
+        assertEquals(3, networkTimings.sampleCount(CallTimings.Phase.TOTAL));
+        assertEquals(3, networkTimings.sampleCount(CallTimings.Phase.TTFB));
+        assertEquals(1, networkTimings.sampleCount(CallTimings.Phase.CONNECT));
+        assertTrue(networkTimings.percentile(CallTimings.Phase.TOTAL, 95) >= networkTimings.percentile(CallTimings.Phase.TOTAL, 50));
+    }
+
+    @Test
+    public void hostEventListenerStillGetsEvents() throws Exception {
+        server.enqueue(new MockResponse().setBody(NO_MESSAGE_RESPONSE));
+        List<String> hostEvents = new CopyOnWriteArrayList<>();
+        OkHttpClient httpClient = new OkHttpClient.Builder().eventListener(new EventListener() {
+            @Override
+            public void callStart(Call call) {
+                hostEvents.add("callStart");
+            }
+
+            @Override
+            public void callEnd(Call call) {
+                hostEvents.add("callEnd");
+            }
+        }).build();
+
+        getMessage(client(httpClient), "uuid");
+
+        assertTrue(hostEvents.contains("callStart"));
+        assertTrue(hostEvents.contains("callEnd"));
+    }
+}
@@ -0,0 +1,111 @@
+package com.sourcepoint.gdpr_cmplibrary;
+
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class TransferStatsTest {
+
+    @Mock
+    ConnectivityManager connectivityManagerMock;
+
+    @Mock
+    NetworkInfo networkInfoMock;
+
+    private MockWebServer server;
+
+    private final TransferStats stats = TransferStats.getInstance();
+
+    private SourcePointClient client(long compressionThreshold) {
+        SourcePointClientConfig config = new SourcePointClientConfig(new PropertyConfig(22, 1234, "mobile.demo", "1234"), false, false, "{}", null);
+        SourcePointClient client = new SourcePointClient(new OkHttpClient(), config, connectivityManagerMock);
+        client.baseUrl = server.url("/").toString();
+        client.requestCompressionThreshold = compressionThreshold;
+        return client;
+    }
+
+    private void sendConsent(SourcePointClient client, JSONObject params) throws Exception {
+        GDPRConsentLib.OnLoadComplete callback = mock(GDPRConsentLib.OnLoadComplete.class);
+        client.sendConsent(params, callback);
+        verify(callback, timeout(5000)).onSuccess(any(ConsentResponse.class));
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        server = new MockWebServer();
+        server.start();
+        doReturn(networkInfoMock).when(connectivityManagerMock).getActiveNetworkInfo();
+        doReturn(true).when(networkInfoMock).isConnectedOrConnecting();
+        stats.reset();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void uncompressedTrafficCountsTheSameOnBothSides() throws Exception {
+        String response = FakeWrapperApi.consentResponse("foo-uuid", 10, 2);
+        server.enqueue(new MockResponse().setBody(response));
+        JSONObject params = new JSONObject().put("uuid", "uncompressed");
+
+        sendConsent(client(-1), params);
+
+        assertEquals(1, stats.getRequests());
+        // params now carry the requestUUID added by the client
+        assertEquals(params.toString().length(), stats.getRequestBodyBytes());
+        assertEquals(stats.getRequestBodyBytes(), stats.getRequestWireBytes());
+        assertEquals(response.length(), stats.getResponseBodyBytes());
+        assertEquals(response.length(), stats.getResponseWireBytes());
+    }
+
+    @Test
+    public void wireSavingsOnVendorGrantPayloads() throws Exception {
+        String response = FakeWrapperApi.consentResponse("foo-uuid", 800, 10);
+        server.enqueue(new MockResponse().setBody(GzipRequestInterceptorTest.gzip(response)).setHeader("Content-Encoding", "gzip"));
+        JSONObject params = new JSONObject().put("uuid", "compressed").put("meta", FakeWrapperApi.consentResponse("foo-uuid", 50, 10));
+
+        sendConsent(client(1024), params);
+
+        assertEquals(response.length(), stats.getResponseBodyBytes());
+        assertTrue(stats.getResponseWireBytes() < stats.getResponseBodyBytes() / 5);
+        assertTrue(stats.getRequestWireBytes() < stats.getRequestBodyBytes() / 5);
+    }
+
+    @Test
+    public void retriesAreCounted() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "0"));
+        server.enqueue(new MockResponse().setBody(FakeWrapperApi.consentResponse("foo-uuid", 1, 1)));
+        SourcePointClient client = client(-1);
+        client.retryPolicy = new RetryPolicy(1, 10, 10, 5000, 0);
+
+        sendConsent(client, new JSONObject().put("uuid", "retried"));
+
+        assertEquals(2, stats.getRequests());
+        assertEquals(stats.getRequestBodyBytes(), stats.getRequestWireBytes());
+        assertEquals(0, stats.getRequestBodyBytes() % 2);
+    }
+}